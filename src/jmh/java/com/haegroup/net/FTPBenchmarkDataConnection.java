@@ -0,0 +1,285 @@
+package com.haegroup.net;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * The client end of a data connection, in the clear or protected with TLS. TLS runs on an engine rather than an
+ * SSLSocket, because a socket looks up the session to resume by the port it is connected to, which for a passive
+ * data connection is a new one every time. The engine is told the control connection's port instead, so it offers
+ * the control connection's session and the server can resume it, as FTPS clients do.
+ */
+class FTPBenchmarkDataConnection implements Closeable
+{
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final Socket socket;
+    private final InputStream socketInput;
+    private final OutputStream socketOutput;
+
+    private final SSLEngine engine;
+
+    /**
+     * Encrypted bytes read from the socket, in fill mode.
+     */
+    private ByteBuffer networkIn;
+
+    /**
+     * One encrypted record at a time on its way to the socket.
+     */
+    private ByteBuffer networkOut;
+
+    /**
+     * Decrypted bytes not yet returned to the reader, in read mode.
+     */
+    private ByteBuffer applicationIn;
+
+    private boolean inboundDone;
+
+    /**
+     * Wraps a connection in the clear.
+     */
+    FTPBenchmarkDataConnection(Socket socket) throws IOException
+    {
+        this.socket = socket;
+        this.socketInput = socket.getInputStream();
+        this.socketOutput = socket.getOutputStream();
+        this.engine = null;
+    }
+
+    /**
+     * Runs the client side of a TLS handshake on the connection.
+     *
+     * @param sessionPort Port the session to resume was made with, the control connection's.
+     */
+    FTPBenchmarkDataConnection(Socket socket, SSLContext context, String host, int sessionPort) throws IOException
+    {
+        this.socket = socket;
+        this.socketInput = socket.getInputStream();
+        this.socketOutput = socket.getOutputStream();
+
+        engine = context.createSSLEngine(host, sessionPort);
+        engine.setUseClientMode(true);
+
+        networkIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        networkOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        applicationIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+        applicationIn.flip();
+
+        engine.beginHandshake();
+        continueHandshake();
+    }
+
+    InputStream getInputStream()
+    {
+        if (engine == null)
+        {
+            return socketInput;
+        }
+
+        return new InputStream()
+        {
+            @Override
+            public int read() throws IOException
+            {
+                final byte[] one = new byte[1];
+
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException
+            {
+                return FTPBenchmarkDataConnection.this.read(buffer, offset, length);
+            }
+        };
+    }
+
+    OutputStream getOutputStream()
+    {
+        if (engine == null)
+        {
+            return socketOutput;
+        }
+
+        return new OutputStream()
+        {
+            @Override
+            public void write(int b) throws IOException
+            {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException
+            {
+                final ByteBuffer source = ByteBuffer.wrap(buffer, offset, length);
+
+                while (source.hasRemaining())
+                {
+                    wrap(source);
+                }
+            }
+        };
+    }
+
+    /**
+     * Ends what is sent, with close_notify under TLS, while the server's end can still be read.
+     */
+    void shutdownOutput() throws IOException
+    {
+        if (engine != null)
+        {
+            engine.closeOutbound();
+
+            while (!engine.isOutboundDone())
+            {
+                wrap(EMPTY);
+            }
+        }
+
+        socket.shutdownOutput();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        socket.close();
+    }
+
+    private int read(byte[] buffer, int offset, int length) throws IOException
+    {
+        while (!applicationIn.hasRemaining())
+        {
+            if (!unwrap())
+            {
+                return -1;
+            }
+
+            // Post-handshake messages, such as a new session ticket, may want an answer.
+            continueHandshake();
+        }
+
+        final int count = Math.min(length, applicationIn.remaining());
+        applicationIn.get(buffer, offset, count);
+
+        return count;
+    }
+
+    private void continueHandshake() throws IOException
+    {
+        while (true)
+        {
+            switch (engine.getHandshakeStatus())
+            {
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null)
+                    {
+                        task.run();
+                    }
+                    break;
+
+                case NEED_WRAP:
+                    wrap(EMPTY);
+                    break;
+
+                case NEED_UNWRAP:
+                    if (!unwrap())
+                    {
+                        throw new SSLException("Data connection closed during the handshake.");
+                    }
+                    break;
+
+                default:
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Encrypts one record and sends it.
+     */
+    private void wrap(ByteBuffer source) throws IOException
+    {
+        networkOut.clear();
+
+        final SSLEngineResult result = engine.wrap(source, networkOut);
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+        {
+            throw new SSLException("TLS record larger than the network buffer.");
+        }
+
+        socketOutput.write(networkOut.array(), 0, networkOut.position());
+    }
+
+    /**
+     * Decrypts one record onto the end of applicationIn, reading from the socket as needed.
+     *
+     * @return False at the end of the stream.
+     */
+    private boolean unwrap() throws IOException
+    {
+        if (inboundDone)
+        {
+            return false;
+        }
+
+        applicationIn.compact();
+
+        try
+        {
+            while (true)
+            {
+                networkIn.flip();
+
+                final SSLEngineResult result;
+                try
+                {
+                    result = engine.unwrap(networkIn, applicationIn);
+                }
+                finally
+                {
+                    networkIn.compact();
+                }
+
+                switch (result.getStatus())
+                {
+                    case OK:
+                        return true;
+
+                    case BUFFER_UNDERFLOW:
+                        final int count = socketInput.read(networkIn.array(), networkIn.position(), networkIn.remaining());
+                        if (count < 0)
+                        {
+                            inboundDone = true;
+                            return false;
+                        }
+
+                        networkIn.position(networkIn.position() + count);
+                        break;
+
+                    case BUFFER_OVERFLOW:
+                        throw new SSLException("TLS record larger than the application buffer.");
+
+                    case CLOSED:
+                    default:
+                        inboundDone = true;
+                        return false;
+                }
+            }
+        }
+        finally
+        {
+            applicationIn.flip();
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.haegroup.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystem;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+/**
+ * A server on a loopback port for benchmarks, serving a temporary directory on disk or a memory file system. Passive
+ * ports come from a fixed pool below the ephemeral range, so transfer heavy benchmarks do not run out of ports to
+ * connections waiting out TIME_WAIT.
+ */
+class FTPBenchmarkServer implements Closeable
+{
+    static final String DISK = "disk";
+    static final String MEMORY = "memory";
+
+    private static final int MIN_PASSIVE_PORT = 21000;
+    private static final int MAX_PASSIVE_PORT = 21063;
+
+    private static final long MEMORY_CAPACITY = 2L * 1024 * 1024 * 1024;
+
+    /**
+     * Seed of the generated file contents, so every run serves the same bytes.
+     */
+    private static final long SEED = 42;
+
+    private final FTPServer server;
+    private final boolean memory;
+    private final Path root;
+    private final int port;
+
+    /**
+     * Starts a server on the blocking engine.
+     *
+     * @param fileSystem {@link #DISK} or {@link #MEMORY}.
+     */
+    FTPBenchmarkServer(String fileSystem) throws IOException
+    {
+        this(fileSystem, false, FTPExecutorMode.PLATFORM, 256);
+    }
+
+    FTPBenchmarkServer(String fileSystem, boolean nonBlocking, FTPExecutorMode executorMode, int maxSessionThreads)
+            throws IOException
+    {
+        // The server logs every command, keep that out of the benchmark output.
+        System.setOut(new PrintStream(new OutputStream()
+        {
+            @Override
+            public void write(int b)
+            {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len)
+            {
+            }
+        }));
+
+        memory = fileSystem.equals(MEMORY);
+
+        final FileSystem served;
+        if (memory)
+        {
+            served = FTPMemoryFileSystem.newFileSystem(MEMORY_CAPACITY);
+            root = Files.createDirectory(served.getPath("/srv"));
+        }
+        else if (fileSystem.equals(DISK))
+        {
+            root = Files.createTempDirectory("angry-ftp-benchmark");
+            served = root.getFileSystem();
+        }
+        else
+        {
+            throw new IllegalArgumentException("Unknown file system " + fileSystem + ".");
+        }
+
+        port = freePort();
+
+        server = new FTPServer(port, root.toString());
+        server.setFileSystem(served);
+        server.setNonBlocking(nonBlocking);
+        server.setExecutorMode(executorMode);
+        server.setMaxSessionThreads(maxSessionThreads);
+        server.setPassivePortRange(MIN_PASSIVE_PORT, MAX_PASSIVE_PORT);
+
+        // The blocking engine accepts on the thread that starts it.
+        final Thread starter = new Thread(() ->
+        {
+            try
+            {
+                server.start();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }, "ftp-benchmark-server");
+        starter.setDaemon(true);
+        starter.start();
+
+        awaitListening();
+    }
+
+    int getPort()
+    {
+        return port;
+    }
+
+    /**
+     * Returns the served root, in the served file system.
+     */
+    Path getRoot()
+    {
+        return root;
+    }
+
+    /**
+     * Creates a file of seeded random bytes under the root, with any missing directories.
+     */
+    Path createFile(String name, long size) throws IOException
+    {
+        final Path path = root.resolve(name);
+
+        if (path.getParent() != null)
+        {
+            Files.createDirectories(path.getParent());
+        }
+
+        final Random random = new Random(SEED);
+        final byte[] chunk = new byte[(int) Math.min(size, 1024 * 1024)];
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            long written = 0;
+
+            while (written < size)
+            {
+                random.nextBytes(chunk);
+
+                final ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, (int) Math.min(chunk.length, size - written));
+                while (buffer.hasRemaining())
+                {
+                    written += channel.write(buffer);
+                }
+            }
+        }
+
+        return path;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        server.stop();
+
+        if (memory)
+        {
+            root.getFileSystem().close();
+        }
+        else
+        {
+            delete(root);
+        }
+    }
+
+    private void awaitListening() throws IOException
+    {
+        final long deadline = System.currentTimeMillis() + 10000;
+
+        while (true)
+        {
+            try (Socket socket = new Socket())
+            {
+                socket.connect(new InetSocketAddress("127.0.0.1", port), 1000);
+                return;
+            }
+            catch (IOException e)
+            {
+                if (System.currentTimeMillis() > deadline)
+                {
+                    throw e;
+                }
+            }
+
+            try
+            {
+                Thread.sleep(20);
+            }
+            catch (InterruptedException e)
+            {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    private static int freePort() throws IOException
+    {
+        try (ServerSocket socket = new ServerSocket(0))
+        {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void delete(Path directory) throws IOException
+    {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException
+            {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException
+            {
+                Files.delete(directory);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,325 @@
+package com.haegroup.net;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * A bare control session for benchmarks that need what {@link com.haegroup.client.FTPClient} does not speak: TLS on
+ * the data connection and MODE B. It trusts any certificate, the server's bundled one is self-signed.
+ */
+class FTPBenchmarkSession implements Closeable
+{
+    private static final String HOST = "127.0.0.1";
+    private static final int BLOCK_EOF = 64;
+
+    private final SSLContext context;
+
+    private Socket socket;
+    private BufferedReader reader;
+    private OutputStream outputStream;
+
+    private boolean protectData;
+    private boolean blockMode;
+
+    /**
+     * Data connection kept open between MODE B transfers.
+     */
+    private FTPBenchmarkDataConnection blockConnection;
+    private DataInputStream blockInput;
+
+    /**
+     * Connects and logs in anonymously, with binary transfers.
+     */
+    FTPBenchmarkSession(int port) throws IOException
+    {
+        context = trustingContext();
+
+        socket = new Socket();
+        socket.connect(new InetSocketAddress(HOST, port));
+        socket.setTcpNoDelay(true);
+        setStreams();
+
+        expect(readReply(), '2');
+        expect(command("USER anonymous"), '3');
+        expect(command("PASS benchmark"), '2');
+        expect(command("TYPE I"), '2');
+    }
+
+    /**
+     * Upgrades the control connection to TLS and protects data connections with it too.
+     */
+    void protect() throws IOException
+    {
+        expect(command("AUTH TLS"), '2');
+
+        final SSLSocket secure = (SSLSocket) context.getSocketFactory().createSocket(socket, HOST, socket.getPort(), true);
+        secure.setUseClientMode(true);
+        secure.startHandshake();
+
+        socket = secure;
+        setStreams();
+
+        expect(command("PBSZ 0"), '2');
+        expect(command("PROT P"), '2');
+        protectData = true;
+    }
+
+    /**
+     * Switches to MODE B, where one data connection carries many files.
+     */
+    void blockMode() throws IOException
+    {
+        expect(command("MODE B"), '2');
+        blockMode = true;
+    }
+
+    /**
+     * Sends a command without waiting for its reply.
+     */
+    void send(String command) throws IOException
+    {
+        outputStream.write((command + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        outputStream.flush();
+    }
+
+    /**
+     * Sends a command and returns its reply.
+     */
+    String command(String command) throws IOException
+    {
+        send(command);
+
+        return readReply();
+    }
+
+    /**
+     * Reads a reply, returning the last line of a multi-line one.
+     */
+    String readReply() throws IOException
+    {
+        String line = reader.readLine();
+
+        while (line != null && (line.length() < 4 || line.charAt(3) != ' ' || !Character.isDigit(line.charAt(0))))
+        {
+            line = reader.readLine();
+        }
+
+        if (line == null)
+        {
+            throw new IOException("Control connection closed.");
+        }
+
+        return line;
+    }
+
+    /**
+     * Retrieves a file, reading it into the buffer over and over.
+     *
+     * @return The number of bytes received.
+     */
+    long retrieve(String path, byte[] buffer) throws IOException
+    {
+        if (blockMode)
+        {
+            return retrieveBlocks(path, buffer);
+        }
+
+        long received = 0;
+
+        try (FTPBenchmarkDataConnection connection = startTransfer("RETR " + path))
+        {
+            final InputStream input = connection.getInputStream();
+
+            int count;
+            while ((count = input.read(buffer)) >= 0)
+            {
+                received += count;
+            }
+        }
+
+        expect(readReply(), '2');
+
+        return received;
+    }
+
+    /**
+     * Stores a file of the given size, sending the chunk over and over.
+     */
+    void store(String path, byte[] chunk, long size) throws IOException
+    {
+        try (FTPBenchmarkDataConnection connection = startTransfer("STOR " + path))
+        {
+            final OutputStream output = connection.getOutputStream();
+
+            for (long sent = 0; sent < size; sent += chunk.length)
+            {
+                output.write(chunk, 0, (int) Math.min(chunk.length, size - sent));
+            }
+
+            output.flush();
+
+            // Half close and wait for the server's end, a hard close can cut off its last TLS records.
+            connection.shutdownOutput();
+            while (connection.getInputStream().read() >= 0)
+            {
+                // Nothing is expected, only the end of the stream.
+            }
+        }
+
+        expect(readReply(), '2');
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            command("QUIT");
+        }
+        catch (IOException ignored)
+        {
+            // Closing anyway.
+        }
+        finally
+        {
+            if (blockConnection != null)
+            {
+                blockConnection.close();
+            }
+
+            socket.close();
+        }
+    }
+
+    private long retrieveBlocks(String path, byte[] buffer) throws IOException
+    {
+        if (blockConnection == null)
+        {
+            blockConnection = startTransfer("RETR " + path);
+            blockInput = new DataInputStream(blockConnection.getInputStream());
+        }
+        else
+        {
+            expect(command("RETR " + path), '1');
+        }
+
+        long received = 0;
+
+        while (true)
+        {
+            final int descriptor = blockInput.readUnsignedByte();
+            final int count = blockInput.readUnsignedShort();
+
+            int remaining = count;
+            while (remaining > 0)
+            {
+                final int read = blockInput.read(buffer, 0, Math.min(buffer.length, remaining));
+                if (read < 0)
+                {
+                    throw new IOException("Data connection closed inside a block.");
+                }
+
+                remaining -= read;
+            }
+
+            received += count;
+
+            if ((descriptor & BLOCK_EOF) != 0)
+            {
+                break;
+            }
+        }
+
+        expect(readReply(), '2');
+
+        return received;
+    }
+
+    /**
+     * Opens a passive data connection and sends the transfer command, which must reply 1xx.
+     */
+    private FTPBenchmarkDataConnection startTransfer(String command) throws IOException
+    {
+        final String reply = expect(command("EPSV"), '2');
+        final int start = reply.indexOf("(|||");
+        final int port = Integer.parseInt(reply.substring(start + 4, reply.indexOf("|)", start)));
+
+        final Socket connection = new Socket();
+        connection.setTcpNoDelay(true);
+        connection.connect(new InetSocketAddress(HOST, port));
+
+        expect(command(command), '1');
+
+        if (!protectData)
+        {
+            return new FTPBenchmarkDataConnection(connection);
+        }
+
+        // The server starts TLS once the transfer starts, which is after the 1xx reply.
+        return new FTPBenchmarkDataConnection(connection, context, HOST, socket.getPort());
+    }
+
+    private void setStreams() throws IOException
+    {
+        reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+        outputStream = socket.getOutputStream();
+    }
+
+    private static String expect(String reply, char statusClass) throws IOException
+    {
+        if (reply.charAt(0) != statusClass)
+        {
+            throw new IOException("Unexpected reply: " + reply);
+        }
+
+        return reply;
+    }
+
+    private static SSLContext trustingContext() throws IOException
+    {
+        final TrustManager trustAll = new X509TrustManager()
+        {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType)
+            {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType)
+            {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers()
+            {
+                return new X509Certificate[0];
+            }
+        };
+
+        try
+        {
+            final SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, new TrustManager[]{trustAll}, null);
+
+            return context;
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IOException(e);
+        }
+    }
+}
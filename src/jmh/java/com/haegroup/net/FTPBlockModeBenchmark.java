@@ -0,0 +1,85 @@
+package com.haegroup.net;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time per file to retrieve a batch of 10,000 4 KB files, in MODE S with a data connection per file and in MODE B
+ * with one data connection for the whole batch.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class FTPBlockModeBenchmark
+{
+    private static final int FILES = 10000;
+    private static final int FILE_SIZE = 4096;
+
+    @Param({"S", "B"})
+    public String mode;
+
+    private FTPBenchmarkServer server;
+    private FTPBenchmarkSession session;
+
+    private final byte[] buffer = new byte[FILE_SIZE];
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        server = new FTPBenchmarkServer(FTPBenchmarkServer.MEMORY);
+
+        for (int i = 0; i < FILES; i++)
+        {
+            server.createFile("batch/" + i + ".bin", FILE_SIZE);
+        }
+
+        session = new FTPBenchmarkSession(server.getPort());
+        if (mode.equals("B"))
+        {
+            session.blockMode();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        session.close();
+        server.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FILES)
+    public long retrieveBatch() throws IOException
+    {
+        long received = 0;
+
+        for (int i = 0; i < FILES; i++)
+        {
+            received += session.retrieve("batch/" + i + ".bin", buffer);
+        }
+
+        if (received != (long) FILES * FILE_SIZE)
+        {
+            throw new IOException("Received " + received + " bytes.");
+        }
+
+        return received;
+    }
+}
@@ -0,0 +1,134 @@
+package com.haegroup.net;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per command cost of framing control lines with {@link FTPCommandReader}, when every socket read brings one command
+ * and when a client pipelines a batch of them into one read.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FTPCommandReaderBenchmark
+{
+    private static final int COMMANDS = 64;
+
+    private static final String[] LINES = {
+            "USER anonymous",
+            "PASS guest@example.com",
+            "TYPE I",
+            "EPSV",
+            "REST 1048576",
+            "RETR /pub/releases/angry-ftp-1.0.tar.gz",
+            "SIZE README.md",
+            "NOOP"
+    };
+
+    @Param({"false", "true"})
+    public boolean pipelined;
+
+    private ReplayStream stream;
+    private FTPCommandReader reader;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        final ByteArrayOutputStream input = new ByteArrayOutputStream();
+        final int[] lineEnds = new int[COMMANDS];
+
+        for (int i = 0; i < COMMANDS; i++)
+        {
+            input.write((LINES[i % LINES.length] + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            lineEnds[i] = input.size();
+        }
+
+        stream = new ReplayStream(input.toByteArray(), pipelined ? new int[]{input.size()} : lineEnds);
+        reader = new FTPCommandReader(stream);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COMMANDS)
+    public void readLine(Blackhole blackhole) throws IOException
+    {
+        stream.rewind();
+
+        // The reader picks up again after the end of the stream once there is more to read.
+        String line;
+        while ((line = reader.readLine()) != null)
+        {
+            blackhole.consume(line);
+        }
+    }
+
+    /**
+     * Replays the same bytes, each read stopping at the next of the given offsets as a socket read would stop at the
+     * end of a segment.
+     */
+    private static class ReplayStream extends InputStream
+    {
+        private final byte[] bytes;
+        private final int[] readEnds;
+
+        private int position;
+        private int nextEnd;
+
+        private ReplayStream(byte[] bytes, int[] readEnds)
+        {
+            this.bytes = bytes;
+            this.readEnds = readEnds;
+        }
+
+        private void rewind()
+        {
+            position = 0;
+            nextEnd = 0;
+        }
+
+        @Override
+        public int read()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(byte[] destination, int offset, int length)
+        {
+            if (nextEnd == readEnds.length)
+            {
+                return -1;
+            }
+
+            final int count = Math.min(length, readEnds[nextEnd] - position);
+            System.arraycopy(bytes, position, destination, offset, count);
+            position += count;
+
+            if (position == readEnds[nextEnd])
+            {
+                nextEnd++;
+            }
+
+            return count;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.haegroup.net;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip time of a command on every one of many open sessions, with sessions on platform threads and on virtual
+ * threads. Every session is sent its command before any reply is read, so the server has them all in flight at once.
+ *
+ * Virtual threads need Java 21, on older runtimes the virtual mode falls back to platform threads and measures the
+ * same thing twice. Run this with a newer JVM through JMH's -jvm option.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FTPExecutorModeBenchmark
+{
+    @Param({"PLATFORM", "VIRTUAL"})
+    public FTPExecutorMode executorMode;
+
+    @Param({"100", "1000"})
+    public int sessions;
+
+    private FTPBenchmarkServer server;
+    private final List<FTPBenchmarkSession> openSessions = new ArrayList<>();
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        // A platform thread per session, as many as there are sessions, so neither mode queues them.
+        server = new FTPBenchmarkServer(FTPBenchmarkServer.MEMORY, false, executorMode, sessions);
+        server.createFile("file.bin", 4096);
+
+        for (int i = 0; i < sessions; i++)
+        {
+            openSessions.add(new FTPBenchmarkSession(server.getPort()));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        for (FTPBenchmarkSession session : openSessions)
+        {
+            session.close();
+        }
+
+        server.close();
+    }
+
+    /**
+     * Sends SIZE on every session and then waits for all the replies, the time is for the whole round.
+     */
+    @Benchmark
+    public void size() throws IOException
+    {
+        for (FTPBenchmarkSession session : openSessions)
+        {
+            session.send("SIZE file.bin");
+        }
+
+        for (FTPBenchmarkSession session : openSessions)
+        {
+            final String reply = session.readReply();
+            if (!reply.startsWith("213"))
+            {
+                throw new IOException("Unexpected reply: " + reply);
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.haegroup.net;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of formatting a directory listing as LIST and MLSD send it, before the listing cache, from reading the
+ * attributes to the encoded lines.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FTPListingBenchmark
+{
+    @Param({FTPListing.FORMAT_LIST, FTPListing.FORMAT_MLSD})
+    public String format;
+
+    @Param({"100", "1000"})
+    public int entries;
+
+    @Param({FTPBenchmarkServer.DISK, FTPBenchmarkServer.MEMORY})
+    public String fileSystem;
+
+    private FTPBenchmarkServer server;
+    private Path directory;
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream(256 * 1024);
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        server = new FTPBenchmarkServer(fileSystem);
+        directory = server.getRoot().resolve("listing");
+
+        for (int i = 0; i < entries; i++)
+        {
+            server.createFile("listing/file-" + i + ".bin", i * 37 % 4096);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        server.close();
+    }
+
+    @Benchmark
+    public int list() throws IOException
+    {
+        output.reset();
+        FTPListing.write(directory, format, output);
+
+        return output.size();
+    }
+}
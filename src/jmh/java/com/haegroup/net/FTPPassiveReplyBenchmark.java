@@ -0,0 +1,51 @@
+package com.haegroup.net;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of formatting the replies to PASV and EPSV, which every MODE S transfer asks for.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FTPPassiveReplyBenchmark
+{
+    private final byte[] address = {(byte) 192, (byte) 168, 17, (byte) 201};
+
+    /**
+     * Changes on every call so the reply cannot be folded into a constant.
+     */
+    private int port = 1024;
+
+    @Benchmark
+    public String passive()
+    {
+        return FTPClientConnection.passiveReply(address, nextPort());
+    }
+
+    @Benchmark
+    public String extendedPassive()
+    {
+        return FTPClientConnection.extendedPassiveReply(nextPort());
+    }
+
+    private int nextPort()
+    {
+        port = port == 65535 ? 1024 : port + 1;
+
+        return port;
+    }
+}
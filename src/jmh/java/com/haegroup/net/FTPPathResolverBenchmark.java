@@ -0,0 +1,76 @@
+package com.haegroup.net;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of resolving the paths clients send, as CWD and every file command do, on a tree under a temporary directory.
+ * The change directory benchmark adds the directory check CWD makes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FTPPathResolverBenchmark
+{
+    @Param({"releases/2016", "/pub/releases/2016/../2015/./", "../../../../../etc"})
+    public String path;
+
+    private Path root;
+    private FTPPathResolver resolver;
+    private FTPPathResolver.Node current;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        root = Files.createTempDirectory("angry-ftp-benchmark");
+        Files.createDirectories(root.resolve("pub/releases/2015"));
+        Files.createDirectories(root.resolve("pub/releases/2016"));
+        Files.createDirectories(root.resolve("etc"));
+
+        resolver = new FTPPathResolver(root);
+        current = resolver.resolve(resolver.getRoot(), "/pub");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        Files.delete(root.resolve("pub/releases/2015"));
+        Files.delete(root.resolve("pub/releases/2016"));
+        Files.delete(root.resolve("pub/releases"));
+        Files.delete(root.resolve("pub"));
+        Files.delete(root.resolve("etc"));
+        Files.delete(root);
+    }
+
+    @Benchmark
+    public FTPPathResolver.Node resolve()
+    {
+        return resolver.resolve(current, path);
+    }
+
+    @Benchmark
+    public boolean changeDirectory()
+    {
+        final FTPPathResolver.Node node = resolver.resolve(current, path);
+
+        return node != null && resolver.isDirectory(node);
+    }
+}
@@ -0,0 +1,96 @@
+package com.haegroup.net;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loopback RETR and STOR throughput over cleartext data connections against PROT P, to show what TLS on the data
+ * connection costs. Files are served from memory so the disk does not hide it. Data connections resume the control
+ * connection's TLS session, as FTPS clients do. The bytes counter is the throughput in bytes per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Thread)
+public class FTPSecureTransferBenchmark
+{
+    @Param({"C", "P"})
+    public String protection;
+
+    @Param({"1048576", "67108864"})
+    public int size;
+
+    private FTPBenchmarkServer server;
+    private FTPBenchmarkSession session;
+
+    private final byte[] buffer = new byte[256 * 1024];
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        server = new FTPBenchmarkServer(FTPBenchmarkServer.MEMORY);
+        server.createFile("download.bin", size);
+
+        session = new FTPBenchmarkSession(server.getPort());
+        if (protection.equals("P"))
+        {
+            session.protect();
+        }
+
+        new Random(42).nextBytes(buffer);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        session.close();
+        server.close();
+    }
+
+    @Benchmark
+    public void retrieve(Bytes bytes) throws IOException
+    {
+        bytes.bytes += session.retrieve("download.bin", buffer);
+    }
+
+    @Benchmark
+    public void store(Bytes bytes) throws IOException
+    {
+        session.store("upload.bin", buffer, size);
+        bytes.bytes += size;
+    }
+
+    /**
+     * Bytes transferred, reported per second.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes
+    {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset()
+        {
+            bytes = 0;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.haegroup.net;
+
+import com.haegroup.client.FTPClient;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loopback RETR and STOR throughput through the client library, for a file of each size on disk and in memory. The
+ * bytes counter is the throughput in bytes per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Thread)
+public class FTPTransferBenchmark
+{
+    @Param({"4096", "1048576", "67108864"})
+    public int size;
+
+    @Param({FTPBenchmarkServer.DISK, FTPBenchmarkServer.MEMORY})
+    public String fileSystem;
+
+    @Param({"false", "true"})
+    public boolean nonBlocking;
+
+    private FTPBenchmarkServer server;
+    private FTPClient client;
+
+    private final DiscardChannel discard = new DiscardChannel();
+    private GeneratedChannel source;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        server = new FTPBenchmarkServer(fileSystem, nonBlocking, FTPExecutorMode.PLATFORM, 256);
+        server.createFile("download.bin", size);
+
+        client = new FTPClient("127.0.0.1", server.getPort());
+        client.connect();
+        client.login("anonymous", "benchmark");
+
+        source = new GeneratedChannel(size);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        client.close();
+        server.close();
+    }
+
+    @Benchmark
+    public void retrieve(Bytes bytes) throws IOException
+    {
+        bytes.bytes += client.retrieve("download.bin", 0, discard);
+    }
+
+    @Benchmark
+    public void store(Bytes bytes) throws IOException
+    {
+        source.rewind();
+        bytes.bytes += client.store("upload.bin", source);
+    }
+
+    /**
+     * Bytes transferred, reported per second.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes
+    {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset()
+        {
+            bytes = 0;
+        }
+    }
+
+    private static class DiscardChannel implements WritableByteChannel
+    {
+        @Override
+        public int write(ByteBuffer source)
+        {
+            final int count = source.remaining();
+            source.position(source.limit());
+
+            return count;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+
+    /**
+     * Produces the same seeded bytes up to the size, without holding a whole file in memory.
+     */
+    private static class GeneratedChannel implements ReadableByteChannel
+    {
+        private final ByteBuffer chunk;
+        private final long size;
+        private long position;
+
+        private GeneratedChannel(long size)
+        {
+            final byte[] bytes = new byte[(int) Math.min(size, 1024 * 1024)];
+            new Random(42).nextBytes(bytes);
+
+            this.chunk = ByteBuffer.wrap(bytes);
+            this.size = size;
+        }
+
+        private void rewind()
+        {
+            position = 0;
+        }
+
+        @Override
+        public int read(ByteBuffer destination)
+        {
+            if (position == size)
+            {
+                return -1;
+            }
+
+            final ByteBuffer slice = chunk.duplicate();
+            slice.position((int) (position % chunk.capacity()));
+            slice.limit((int) Math.min(slice.capacity(), slice.position() + Math.min(destination.remaining(), size - position)));
+
+            final int count = slice.remaining();
+            destination.put(slice);
+            position += count;
+
+            return count;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+}
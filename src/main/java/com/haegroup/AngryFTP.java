@@ -1,5 +1,6 @@
 package com.haegroup;
 
+import com.haegroup.net.FTPExecutorMode;
 import com.haegroup.net.FTPServer;
 
 import java.io.IOException;
@@ -12,6 +13,7 @@ public class AngryFTP
     public static void main(String[] args)
     {
         FTPServer server = new FTPServer("D:/watch");
+        server.setExecutorMode(FTPExecutorMode.valueOf(System.getProperty("angryftp.executor", "PLATFORM").toUpperCase()));
 
         try
         {
@@ -0,0 +1,498 @@
+package com.haegroup.client;
+
+import com.haegroup.net.FTPResponse;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A control session with an FTP server, speaking the subset this server implements: passive data connections over
+ * EPSV or PASV, binary RETR with REST, STOR, LIST and SIZE. Sessions are not thread safe, share them through an
+ * {@link FTPClientPool}.
+ */
+public class FTPClient implements Closeable
+{
+    public static final int DEFAULT_PORT = 21;
+
+    private static final int DEFAULT_TIMEOUT = 60000;
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final String host;
+    private final int port;
+
+    private Socket socket;
+    private BufferedReader reader;
+    private OutputStream outputStream;
+
+    private InetAddress dataAddress;
+    private boolean extendedPassive = true;
+
+    private ByteBuffer buffer;
+    private long lastUsed;
+
+    public FTPClient(String host)
+    {
+        this(host, DEFAULT_PORT);
+    }
+
+    public FTPClient(String host, int port)
+    {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Connects and reads the server's greeting.
+     */
+    public void connect() throws IOException
+    {
+        socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port), DEFAULT_TIMEOUT);
+        socket.setSoTimeout(DEFAULT_TIMEOUT);
+
+        // Commands are small and each waits for its reply, don't let Nagle hold them back.
+        socket.setTcpNoDelay(true);
+
+        reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        outputStream = socket.getOutputStream();
+
+        // Data connections go to the control connection's peer, whatever address a PASV reply names.
+        dataAddress = socket.getInetAddress();
+
+        expect(readResponse(), 2);
+    }
+
+    /**
+     * Logs in and switches to binary transfers.
+     */
+    public void login(String user, String password) throws IOException
+    {
+        FTPResponse response = sendCommand("USER " + user);
+        if (response.getStatusCode() == 331)
+        {
+            response = sendCommand("PASS " + password);
+        }
+
+        expect(response, 2);
+        expect(sendCommand("TYPE I"), 2);
+    }
+
+    /**
+     * Sends a command and returns the final reply to it.
+     */
+    public FTPResponse sendCommand(String command) throws IOException
+    {
+        if (socket == null)
+        {
+            throw new IOException("Not connected.");
+        }
+
+        outputStream.write((command + "\r\n").getBytes(StandardCharsets.UTF_8));
+        outputStream.flush();
+
+        lastUsed = System.currentTimeMillis();
+
+        return readResponse();
+    }
+
+    /**
+     * Returns the size of a file in bytes, from SIZE.
+     */
+    public long size(String path) throws IOException
+    {
+        final FTPResponse response = expect(sendCommand("SIZE " + path), 2);
+
+        try
+        {
+            return Long.parseLong(response.getMessage().trim());
+        }
+        catch (NumberFormatException e)
+        {
+            throw new FTPClientException(response);
+        }
+    }
+
+    /**
+     * Returns the lines of a LIST of the path, or of the current directory if the path is null.
+     */
+    public List<String> list(String path) throws IOException
+    {
+        final List<String> lines = new ArrayList<>();
+
+        try (SocketChannel dataChannel = openDataConnection())
+        {
+            expect(sendCommand(path == null ? "LIST" : "LIST " + path), 1);
+
+            final BufferedReader listReader = new BufferedReader(
+                    new InputStreamReader(dataChannel.socket().getInputStream(), StandardCharsets.UTF_8));
+
+            String line;
+            while ((line = listReader.readLine()) != null)
+            {
+                lines.add(line);
+            }
+        }
+
+        expect(readResponse(), 2);
+
+        return lines;
+    }
+
+    /**
+     * Retrieves a file from the offset to its end.
+     *
+     * @return The number of bytes received.
+     */
+    public long retrieve(String path, long offset, WritableByteChannel destination) throws IOException
+    {
+        if (buffer == null)
+        {
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+
+        long received = 0;
+
+        try (SocketChannel dataChannel = startRetrieve(path, offset))
+        {
+            buffer.clear();
+
+            while (dataChannel.read(buffer) >= 0)
+            {
+                buffer.flip();
+                while (buffer.hasRemaining())
+                {
+                    received += destination.write(buffer);
+                }
+                buffer.clear();
+            }
+        }
+
+        expect(readResponse(), 2);
+
+        return received;
+    }
+
+    /**
+     * Retrieves a range of a file straight into the same range of a local file. The data connection is closed as
+     * soon as the range has arrived, so the rest of the file is never sent in full.
+     *
+     * @return The number of bytes received, less than the length only if the file ended first.
+     */
+    public long retrieve(String path, long offset, long length, FileChannel destination) throws IOException
+    {
+        long received = 0;
+        boolean abandoned = false;
+
+        try (SocketChannel dataChannel = startRetrieve(path, offset))
+        {
+            while (received < length)
+            {
+                final long count = destination.transferFrom(dataChannel, offset + received, length - received);
+                if (count <= 0)
+                {
+                    break;
+                }
+
+                received += count;
+            }
+
+            // Anything still unread is past the range.
+            abandoned = received == length;
+        }
+
+        final FTPResponse response = readResponse();
+
+        // Closing early usually aborts the transfer, unless the server had already sent all of it.
+        if (!abandoned || response.getStatusCode() / 100 != 4)
+        {
+            expect(response, 2);
+        }
+
+        return received;
+    }
+
+    /**
+     * Stores everything the source holds as a file, replacing any file of that name.
+     *
+     * @return The number of bytes sent.
+     */
+    public long store(String path, ReadableByteChannel source) throws IOException
+    {
+        if (buffer == null)
+        {
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+
+        long sent = 0;
+
+        try (SocketChannel dataChannel = startTransfer("STOR " + path))
+        {
+            buffer.clear();
+
+            while (source.read(buffer) >= 0)
+            {
+                buffer.flip();
+                while (buffer.hasRemaining())
+                {
+                    sent += dataChannel.write(buffer);
+                }
+                buffer.clear();
+            }
+        }
+
+        endTransfer();
+
+        return sent;
+    }
+
+    /**
+     * Returns true if the control connection is open, as far as can be told without using it.
+     */
+    public boolean isConnected()
+    {
+        return socket != null && socket.isConnected() && !socket.isClosed();
+    }
+
+    /**
+     * Returns when the session last sent a command.
+     */
+    public long getLastUsed()
+    {
+        return lastUsed;
+    }
+
+    /**
+     * Sends QUIT and closes the control connection.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (socket == null)
+        {
+            return;
+        }
+
+        try
+        {
+            if (!socket.isClosed())
+            {
+                sendCommand("QUIT");
+            }
+        }
+        catch (IOException ignored)
+        {
+            // Closing anyway.
+        }
+        finally
+        {
+            socket.close();
+            socket = null;
+        }
+    }
+
+    /**
+     * Opens a data connection and sends a command that transfers over it, which must reply 1xx. The caller closes
+     * the connection and then calls {@link #endTransfer()}.
+     */
+    SocketChannel startTransfer(String command) throws IOException
+    {
+        final SocketChannel dataChannel = openDataConnection();
+
+        try
+        {
+            expect(sendCommand(command), 1);
+        }
+        catch (IOException e)
+        {
+            dataChannel.close();
+            throw e;
+        }
+
+        return dataChannel;
+    }
+
+    /**
+     * Reads the reply that ends a transfer, which must be 2xx.
+     */
+    void endTransfer() throws IOException
+    {
+        expect(readResponse(), 2);
+    }
+
+    private SocketChannel startRetrieve(String path, long offset) throws IOException
+    {
+        if (offset > 0)
+        {
+            expect(sendCommand("REST " + offset), 3);
+        }
+
+        return startTransfer("RETR " + path);
+    }
+
+    /**
+     * Opens a passive data connection, with EPSV unless the server has refused it before.
+     */
+    private SocketChannel openDataConnection() throws IOException
+    {
+        int dataPort = -1;
+
+        if (extendedPassive)
+        {
+            final FTPResponse response = sendCommand("EPSV");
+            if (response.getStatusCode() == 229)
+            {
+                dataPort = parseExtendedPassive(response);
+            }
+            else if (response.getStatusCode() / 100 == 5)
+            {
+                extendedPassive = false;
+            }
+            else
+            {
+                throw new FTPClientException(response);
+            }
+        }
+
+        if (dataPort < 0)
+        {
+            dataPort = parsePassive(expect(sendCommand("PASV"), 2));
+        }
+
+        final SocketChannel dataChannel = SocketChannel.open();
+
+        try
+        {
+            dataChannel.socket().setSoTimeout(DEFAULT_TIMEOUT);
+            dataChannel.connect(new InetSocketAddress(dataAddress, dataPort));
+        }
+        catch (IOException e)
+        {
+            dataChannel.close();
+            throw e;
+        }
+
+        return dataChannel;
+    }
+
+    /**
+     * Parses the port out of "229 Entering Extended Passive Mode (|||port|)".
+     */
+    private static int parseExtendedPassive(FTPResponse response) throws FTPClientException
+    {
+        final String message = response.getMessage();
+        final int start = message.indexOf("(|||");
+        final int end = start < 0 ? -1 : message.indexOf("|)", start);
+
+        if (end < 0)
+        {
+            throw new FTPClientException(response);
+        }
+
+        try
+        {
+            return Integer.parseInt(message.substring(start + 4, end));
+        }
+        catch (NumberFormatException e)
+        {
+            throw new FTPClientException(response);
+        }
+    }
+
+    /**
+     * Parses the port out of "227 Entering Passive Mode (h1,h2,h3,h4,p1,p2)".
+     */
+    private static int parsePassive(FTPResponse response) throws FTPClientException
+    {
+        final String message = response.getMessage();
+        final int start = message.indexOf('(');
+        final int end = message.indexOf(')', start + 1);
+
+        if (start < 0 || end < 0)
+        {
+            throw new FTPClientException(response);
+        }
+
+        final String[] fields = message.substring(start + 1, end).split(",");
+        if (fields.length != 6)
+        {
+            throw new FTPClientException(response);
+        }
+
+        try
+        {
+            return Integer.parseInt(fields[4].trim()) << 8 | Integer.parseInt(fields[5].trim());
+        }
+        catch (NumberFormatException e)
+        {
+            throw new FTPClientException(response);
+        }
+    }
+
+    /**
+     * Reads a reply, joining the lines of a multi-line reply.
+     */
+    private FTPResponse readResponse() throws IOException
+    {
+        String line = reader.readLine();
+        if (line == null || line.length() < 3)
+        {
+            throw new IOException("Control connection closed.");
+        }
+
+        final int code;
+        try
+        {
+            code = Integer.parseInt(line.substring(0, 3));
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IOException("Malformed reply: " + line);
+        }
+
+        final StringBuilder message = new StringBuilder(line.length() > 4 ? line.substring(4) : "");
+
+        // A multi-line reply ends with a line starting with its code and a space.
+        if (line.length() > 3 && line.charAt(3) == '-')
+        {
+            final String last = line.substring(0, 3) + " ";
+
+            do
+            {
+                line = reader.readLine();
+                if (line == null)
+                {
+                    throw new IOException("Control connection closed.");
+                }
+
+                message.append('\n').append(line.startsWith(last) ? line.substring(4) : line);
+            }
+            while (!line.startsWith(last));
+        }
+
+        return new FTPResponse(code, message.toString());
+    }
+
+    private static FTPResponse expect(FTPResponse response, int statusClass) throws FTPClientException
+    {
+        if (response.getStatusCode() / 100 != statusClass)
+        {
+            throw new FTPClientException(response);
+        }
+
+        return response;
+    }
+}
@@ -0,0 +1,27 @@
+package com.haegroup.client;
+
+import com.haegroup.net.FTPResponse;
+
+import java.io.IOException;
+
+/**
+ * A reply the client did not expect, such as a failure code.
+ */
+public class FTPClientException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+
+    private final FTPResponse response;
+
+    public FTPClientException(FTPResponse response)
+    {
+        super(response.getStatusCode() + " " + response.getMessage());
+
+        this.response = response;
+    }
+
+    public FTPResponse getResponse()
+    {
+        return response;
+    }
+}
@@ -0,0 +1,180 @@
+package com.haegroup.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A bounded pool of logged in control sessions, so transfers skip the connect and login round trips. Sessions idle
+ * for a while are checked with NOOP before being handed out again, and a session that failed should be given back
+ * through {@link #invalidate(FTPClient)} instead of {@link #release(FTPClient)}.
+ */
+public class FTPClientPool implements Closeable
+{
+    private static final long IDLE_CHECK_INTERVAL = 30000;
+
+    private final String host;
+    private final int port;
+    private final String user;
+    private final String password;
+
+    private final int maxSessions;
+    private final Semaphore permits;
+    private final Deque<FTPClient> idle = new ArrayDeque<>();
+
+    private volatile boolean closed;
+
+    public FTPClientPool(String host, int port, String user, String password, int maxSessions)
+    {
+        if (maxSessions < 1)
+        {
+            throw new IllegalArgumentException("The pool needs at least one session.");
+        }
+
+        this.host = host;
+        this.port = port;
+        this.user = user;
+        this.password = password;
+        this.maxSessions = maxSessions;
+        this.permits = new Semaphore(maxSessions, true);
+    }
+
+    /**
+     * Takes a session, waiting for one to be released if all are in use.
+     */
+    public FTPClient acquire() throws IOException
+    {
+        if (closed)
+        {
+            throw new IOException("Pool closed.");
+        }
+
+        try
+        {
+            permits.acquire();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a session.");
+        }
+
+        try
+        {
+            FTPClient client;
+            while ((client = takeIdle()) != null)
+            {
+                if (isUsable(client))
+                {
+                    return client;
+                }
+
+                closeQuietly(client);
+            }
+
+            client = new FTPClient(host, port);
+            client.connect();
+            client.login(user, password);
+
+            return client;
+        }
+        catch (IOException | RuntimeException e)
+        {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a session for reuse.
+     */
+    public void release(FTPClient client)
+    {
+        if (closed || !client.isConnected())
+        {
+            closeQuietly(client);
+        }
+        else
+        {
+            synchronized (idle)
+            {
+                idle.push(client);
+            }
+        }
+
+        permits.release();
+    }
+
+    /**
+     * Closes a session that failed, freeing its place in the pool.
+     */
+    public void invalidate(FTPClient client)
+    {
+        closeQuietly(client);
+        permits.release();
+    }
+
+    public int getMaxSessions()
+    {
+        return maxSessions;
+    }
+
+    /**
+     * Closes the idle sessions, sessions in use are closed when they are released.
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+
+        FTPClient client;
+        while ((client = takeIdle()) != null)
+        {
+            closeQuietly(client);
+        }
+    }
+
+    private FTPClient takeIdle()
+    {
+        synchronized (idle)
+        {
+            return idle.poll();
+        }
+    }
+
+    private static boolean isUsable(FTPClient client)
+    {
+        if (!client.isConnected())
+        {
+            return false;
+        }
+
+        // The server may have timed out a session that sat idle.
+        if (System.currentTimeMillis() - client.getLastUsed() > IDLE_CHECK_INTERVAL)
+        {
+            try
+            {
+                return client.sendCommand("NOOP").getStatusCode() / 100 == 2;
+            }
+            catch (IOException e)
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static void closeQuietly(FTPClient client)
+    {
+        try
+        {
+            client.close();
+        }
+        catch (IOException ignored)
+        {
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package com.haegroup.client;
+
+import com.haegroup.net.FTPDeltaPatcher;
+import com.haegroup.net.FTPRollingChecksum;
+import com.haegroup.net.FTPSignatures;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Updates a file on the server by sending only the parts that changed, with SITE DELTA. The server sends the block
+ * signatures of its copy, the local file is scanned with a rolling checksum for blocks the server already has, and
+ * the server rebuilds the file from those blocks and the literal data in between.
+ */
+public class FTPDeltaUpload
+{
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    private static final int MIN_WINDOW_SIZE = 1024 * 1024;
+
+    /**
+     * Longest literal instruction, so unmatched data is streamed rather than held.
+     */
+    private static final int MAX_LITERAL = 64 * 1024;
+
+    private final FTPClient client;
+
+    private long literalBytes;
+    private long matchedBytes;
+
+    public FTPDeltaUpload(FTPClient client)
+    {
+        this.client = client;
+    }
+
+    /**
+     * Brings an existing remote file up to date with the local one.
+     */
+    public void upload(Path localPath, String remotePath) throws IOException
+    {
+        final FTPSignatures signatures;
+
+        try (SocketChannel dataChannel = client.startTransfer("SITE DELTA SIGNATURES " + remotePath))
+        {
+            signatures = FTPSignatures.read(new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(dataChannel), STREAM_BUFFER_SIZE)));
+        }
+
+        client.endTransfer();
+
+        try (FileChannel file = FileChannel.open(localPath, StandardOpenOption.READ);
+             SocketChannel dataChannel = client.startTransfer("SITE DELTA PATCH " + remotePath))
+        {
+            final DataOutputStream output = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(dataChannel), STREAM_BUFFER_SIZE));
+
+            new Encoder(signatures, file, output).encode();
+            output.flush();
+        }
+
+        client.endTransfer();
+    }
+
+    /**
+     * Returns the bytes sent as literal data by the last upload.
+     */
+    public long getLiteralBytes()
+    {
+        return literalBytes;
+    }
+
+    /**
+     * Returns the bytes the server took from its own copy in the last upload.
+     */
+    public long getMatchedBytes()
+    {
+        return matchedBytes;
+    }
+
+    private static MessageDigest md5()
+    {
+        try
+        {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Scans the local file through a window a few blocks wide, rolling the weak checksum one byte at a time and
+     * confirming candidates with MD5.
+     */
+    private class Encoder
+    {
+        private final FTPSignatures signatures;
+        private final FileChannel file;
+        private final DataOutputStream output;
+
+        private final int blockSize;
+        private final byte[] window;
+
+        private final MessageDigest fileDigest = md5();
+        private final MessageDigest blockDigest = md5();
+
+        /**
+         * Full size blocks by weak checksum, as chains through an open table to avoid boxing on every byte.
+         */
+        private final int[] heads;
+        private final int[] next;
+        private final int mask;
+
+        private int copyStart = -1;
+        private int copyCount;
+
+        private Encoder(FTPSignatures signatures, FileChannel file, DataOutputStream output)
+        {
+            this.signatures = signatures;
+            this.file = file;
+            this.output = output;
+
+            this.blockSize = signatures.getBlockSize();
+            this.window = new byte[Math.max(MIN_WINDOW_SIZE, 4 * blockSize)];
+
+            final int count = signatures.getBlockCount();
+            final int tableSize = Integer.highestOneBit(Math.max(16, count * 2 - 1)) << 1;
+
+            this.heads = new int[tableSize];
+            this.next = new int[count];
+            this.mask = tableSize - 1;
+
+            Arrays.fill(heads, -1);
+
+            for (int i = count - 1; i >= 0; i--)
+            {
+                if (signatures.getBlockLength(i) == blockSize)
+                {
+                    final int slot = slot(signatures.getWeak(i));
+
+                    next[i] = heads[slot];
+                    heads[slot] = i;
+                }
+            }
+
+            literalBytes = 0;
+            matchedBytes = 0;
+        }
+
+        private void encode() throws IOException
+        {
+            int position = 0;
+            int limit = 0;
+            int literalStart = 0;
+
+            long length = 0;
+            boolean endOfFile = false;
+
+            int weak = 0;
+            boolean rolled = false;
+
+            while (true)
+            {
+                if (limit - position < blockSize && !endOfFile)
+                {
+                    // Slide the window, literal data before it has to go out first.
+                    writeLiteral(literalStart, position);
+
+                    System.arraycopy(window, position, window, 0, limit - position);
+                    limit -= position;
+                    position = 0;
+                    literalStart = 0;
+
+                    while (limit < window.length)
+                    {
+                        final int count = file.read(ByteBuffer.wrap(window, limit, window.length - limit));
+                        if (count < 0)
+                        {
+                            endOfFile = true;
+                            break;
+                        }
+
+                        fileDigest.update(window, limit, count);
+                        limit += count;
+                        length += count;
+                    }
+
+                    rolled = false;
+                    continue;
+                }
+
+                if (limit - position < blockSize)
+                {
+                    break;
+                }
+
+                if (!rolled)
+                {
+                    weak = FTPRollingChecksum.of(window, position, blockSize);
+                    rolled = true;
+                }
+
+                final int match = find(weak, position, blockSize);
+                if (match >= 0)
+                {
+                    writeLiteral(literalStart, position);
+                    copy(match);
+
+                    position += blockSize;
+                    literalStart = position;
+                    rolled = false;
+                    continue;
+                }
+
+                if (position - literalStart >= MAX_LITERAL)
+                {
+                    writeLiteral(literalStart, position);
+                    literalStart = position;
+                }
+
+                if (position + blockSize < limit)
+                {
+                    weak = FTPRollingChecksum.roll(weak, window[position], window[position + blockSize], blockSize);
+                }
+                else
+                {
+                    rolled = false;
+                }
+
+                position++;
+            }
+
+            // What is left is shorter than a block, it can only match the server's short last block.
+            final int tail = limit - position;
+            final int last = signatures.getBlockCount() - 1;
+
+            if (tail > 0 && last >= 0 && signatures.getBlockLength(last) == tail
+                    && signatures.getWeak(last) == FTPRollingChecksum.of(window, position, tail)
+                    && signatures.strongEquals(last, digest(position, tail)))
+            {
+                writeLiteral(literalStart, position);
+                copy(last);
+            }
+            else
+            {
+                writeLiteral(literalStart, limit);
+            }
+
+            flushCopy();
+
+            output.writeByte(FTPDeltaPatcher.END);
+            output.writeLong(length);
+            output.write(fileDigest.digest());
+        }
+
+        private int slot(int weak)
+        {
+            return (weak * 0x9E3779B9 >>> 7) & mask;
+        }
+
+        /**
+         * Returns the server's block with the same content as the window at the position, or -1.
+         */
+        private int find(int weak, int position, int length) throws IOException
+        {
+            byte[] digest = null;
+
+            for (int i = heads[slot(weak)]; i >= 0; i = next[i])
+            {
+                if (signatures.getWeak(i) != weak)
+                {
+                    continue;
+                }
+
+                if (digest == null)
+                {
+                    digest = digest(position, length);
+                }
+
+                if (signatures.strongEquals(i, digest))
+                {
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+
+        private byte[] digest(int position, int length)
+        {
+            blockDigest.update(window, position, length);
+            return blockDigest.digest();
+        }
+
+        /**
+         * Adds a block to the run of consecutive blocks being copied.
+         */
+        private void copy(int block) throws IOException
+        {
+            if (copyStart >= 0 && block == copyStart + copyCount)
+            {
+                copyCount++;
+            }
+            else
+            {
+                flushCopy();
+
+                copyStart = block;
+                copyCount = 1;
+            }
+
+            matchedBytes += signatures.getBlockLength(block);
+        }
+
+        private void flushCopy() throws IOException
+        {
+            if (copyStart >= 0)
+            {
+                output.writeByte(FTPDeltaPatcher.COPY);
+                output.writeInt(copyStart);
+                output.writeInt(copyCount);
+
+                copyStart = -1;
+            }
+        }
+
+        private void writeLiteral(int start, int end) throws IOException
+        {
+            if (end <= start)
+            {
+                return;
+            }
+
+            flushCopy();
+
+            output.writeByte(FTPDeltaPatcher.LITERAL);
+            output.writeInt(end - start);
+            output.write(window, start, end - start);
+
+            literalBytes += end - start;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.haegroup.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads one file over several connections at once. The file is split into contiguous ranges, each fetched with
+ * REST and RETR on a session from the pool and written straight into its place in the local file, so a single
+ * transfer is no longer limited by one TCP connection's window.
+ */
+public class FTPSegmentedDownload
+{
+    /**
+     * Ranges smaller than this are not worth a connection of their own.
+     */
+    public static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    private final FTPClientPool pool;
+
+    public FTPSegmentedDownload(FTPClientPool pool)
+    {
+        this.pool = pool;
+    }
+
+    /**
+     * Downloads the remote file to the local path, replacing it, using up to the given number of connections.
+     *
+     * @return The size of the file.
+     */
+    public long download(String remotePath, Path localPath, int segments) throws IOException
+    {
+        if (segments < 1)
+        {
+            throw new IllegalArgumentException("A download needs at least one segment.");
+        }
+
+        final long size = size(remotePath);
+
+        // More segments than sessions would only queue for them.
+        final int count = (int) Math.max(1, Math.min(Math.min(segments, pool.getMaxSessions()), size / MIN_SEGMENT_SIZE));
+        final long segmentSize = (size + count - 1) / count;
+
+        try (FileChannel file = FileChannel.open(localPath,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            if (size == 0)
+            {
+                return 0;
+            }
+
+            // Size the file up front so ranges never write past its end.
+            file.write(ByteBuffer.allocate(1), size - 1);
+
+            final ExecutorService executor = Executors.newFixedThreadPool(count);
+
+            try
+            {
+                final List<Future<?>> futures = new ArrayList<>();
+
+                for (int i = 0; i < count; i++)
+                {
+                    final long offset = i * segmentSize;
+                    final long length = Math.min(segmentSize, size - offset);
+
+                    futures.add(executor.submit(() ->
+                    {
+                        retrieveSegment(remotePath, offset, length, file);
+                        return null;
+                    }));
+                }
+
+                for (Future<?> future : futures)
+                {
+                    await(future);
+                }
+            }
+            finally
+            {
+                executor.shutdownNow();
+            }
+        }
+
+        return size;
+    }
+
+    private long size(String remotePath) throws IOException
+    {
+        final FTPClient client = pool.acquire();
+
+        try
+        {
+            final long size = client.size(remotePath);
+            pool.release(client);
+
+            return size;
+        }
+        catch (IOException e)
+        {
+            pool.invalidate(client);
+            throw e;
+        }
+    }
+
+    private void retrieveSegment(String remotePath, long offset, long length, FileChannel file) throws IOException
+    {
+        final FTPClient client = pool.acquire();
+
+        try
+        {
+            final long received = client.retrieve(remotePath, offset, length, file);
+            if (received < length)
+            {
+                throw new IOException(String.format("%s: range at %d ended after %d of %d bytes, the file shrank.",
+                        remotePath, offset, received, length));
+            }
+
+            pool.release(client);
+        }
+        catch (IOException e)
+        {
+            pool.invalidate(client);
+            throw e;
+        }
+    }
+
+    private static void await(Future<?> future) throws IOException
+    {
+        try
+        {
+            future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading.");
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException) e.getCause();
+            }
+
+            throw new IOException(e.getCause());
+        }
+    }
+}
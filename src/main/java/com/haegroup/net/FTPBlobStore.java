@@ -0,0 +1,254 @@
+package com.haegroup.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Content addressed store for deduplicated uploads. An upload is received into the store's incoming directory while
+ * its SHA-256 is computed, then kept once as a blob named by the digest, and the uploaded path is made a hard link
+ * to the blob. Uploading content that is already stored only adds a link.
+ *
+ * A blob with no link besides its own is unreferenced, the paths that shared it have all been deleted or replaced,
+ * and is removed by a periodic collection.
+ */
+class FTPBlobStore implements Closeable
+{
+    static final FTPHashAlgorithm ALGORITHM = FTPHashAlgorithm.SHA_256;
+
+    private static final long COLLECT_INTERVAL_MINUTES = 10;
+
+    private final Path directory;
+    private final Path incoming;
+
+    private final AtomicLong counter = new AtomicLong();
+
+    /**
+     * Held shared while links are made and exclusively while a blob is checked and removed, so the collector never
+     * removes a blob that is about to be linked.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final ScheduledExecutorService collector;
+
+    /**
+     * @param directory Where blobs are kept, on the same file system as the root so they can be linked into it.
+     */
+    FTPBlobStore(Path directory, Path root) throws IOException
+    {
+        if (!FileSystems.getDefault().supportedFileAttributeViews().contains("unix"))
+        {
+            throw new IOException("Deduplicated storage needs hard link counts, which this platform does not provide.");
+        }
+
+        this.directory = directory.toAbsolutePath().normalize();
+        this.incoming = this.directory.resolve("incoming");
+
+        Files.createDirectories(incoming);
+
+        if (!Files.getFileStore(this.directory).equals(Files.getFileStore(root)))
+        {
+            throw new IOException("Blob directory " + directory + " is not on the same file system as " + root + ".");
+        }
+
+        // Nothing is in flight yet, anything here was left by a crash.
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(incoming))
+        {
+            for (Path file : stream)
+            {
+                Files.deleteIfExists(file);
+            }
+        }
+
+        collector = Executors.newSingleThreadScheduledExecutor(new FTPExecutors.NamedThreadFactory("ftp-blob-collector"));
+        collector.scheduleWithFixedDelay(this::collectQuietly, COLLECT_INTERVAL_MINUTES, COLLECT_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Returns a new file name to receive an upload into.
+     */
+    Path newIncoming()
+    {
+        return incoming.resolve(System.currentTimeMillis() + "-" + counter.getAndIncrement());
+    }
+
+    /**
+     * Returns true if content with the digest is stored.
+     */
+    boolean contains(String digest)
+    {
+        return Files.exists(blob(digest));
+    }
+
+    /**
+     * Stores a completely received upload by its digest, unless the content is stored already, and links it at the
+     * path in place of whatever was there. The incoming file is gone afterwards.
+     *
+     * @return True if the content was already stored.
+     */
+    boolean publish(Path incomingFile, String digest, Path path) throws IOException
+    {
+        final Path blob = blob(digest);
+        final Path link = path.resolveSibling("." + path.getFileName() + "." + counter.getAndIncrement() + ".link");
+
+        boolean duplicate = false;
+
+        lock.readLock().lock();
+        try
+        {
+            Files.createDirectories(blob.getParent());
+
+            try
+            {
+                Files.createLink(blob, incomingFile);
+            }
+            catch (FileAlreadyExistsException e)
+            {
+                duplicate = true;
+            }
+
+            Files.delete(incomingFile);
+
+            Files.createLink(link, blob);
+
+            try
+            {
+                Files.move(link, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            finally
+            {
+                // Renaming over another link to the same blob leaves both in place.
+                Files.deleteIfExists(link);
+            }
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+
+        return duplicate;
+    }
+
+    /**
+     * Gives a path that shares a blob its own copy, before it is written in place.
+     */
+    void unshare(Path path) throws IOException
+    {
+        if (!Files.isRegularFile(path) || linkCount(path) < 2)
+        {
+            return;
+        }
+
+        final Path copy = path.resolveSibling("." + path.getFileName() + "." + counter.getAndIncrement() + ".copy");
+
+        try
+        {
+            Files.copy(path, copy, StandardCopyOption.COPY_ATTRIBUTES);
+            Files.move(copy, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        finally
+        {
+            Files.deleteIfExists(copy);
+        }
+    }
+
+    /**
+     * Removes blobs that no path links to.
+     *
+     * @return The number of bytes freed.
+     */
+    long collect() throws IOException
+    {
+        long freed = 0;
+
+        try (DirectoryStream<Path> prefixes = Files.newDirectoryStream(directory))
+        {
+            for (Path prefix : prefixes)
+            {
+                if (prefix.equals(incoming) || !Files.isDirectory(prefix))
+                {
+                    continue;
+                }
+
+                try (DirectoryStream<Path> blobs = Files.newDirectoryStream(prefix))
+                {
+                    for (Path blob : blobs)
+                    {
+                        freed += collect(blob);
+                    }
+                }
+            }
+        }
+
+        return freed;
+    }
+
+    @Override
+    public void close()
+    {
+        collector.shutdownNow();
+    }
+
+    private long collect(Path blob) throws IOException
+    {
+        lock.writeLock().lock();
+        try
+        {
+            if (linkCount(blob) != 1)
+            {
+                return 0;
+            }
+
+            final long size = Files.size(blob);
+            Files.delete(blob);
+
+            return size;
+        }
+        catch (NoSuchFileException e)
+        {
+            return 0;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void collectQuietly()
+    {
+        try
+        {
+            final long freed = collect();
+            if (freed > 0)
+            {
+                System.out.println("Blob store: " + freed + " bytes of unreferenced blobs removed");
+            }
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    private Path blob(String digest)
+    {
+        return directory.resolve(digest.substring(0, 2)).resolve(digest);
+    }
+
+    private static int linkCount(Path path) throws IOException
+    {
+        return (Integer) Files.getAttribute(path, "unix:nlink");
+    }
+}
@@ -0,0 +1,202 @@
+package com.haegroup.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+
+/**
+ * MODE B data stream for one file over a data connection that outlives it. Data travels in blocks with a three byte
+ * header, a descriptor and a 16 bit count, and the end of the file is a block flagged EOF instead of the connection
+ * closing. Outgoing blocks are gathered in a pooled buffer so headers never go out on their own.
+ */
+class FTPBlockChannel implements ByteChannel
+{
+    private static final int DESCRIPTOR_EOF = 64;
+    private static final int DESCRIPTOR_RESTART = 16;
+
+    private static final int HEADER_SIZE = 3;
+    private static final int MAX_BLOCK_SIZE = 0xFFFF;
+
+    private final ByteChannel channel;
+
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    private ByteBuffer output;
+
+    private int blockRemaining;
+    private int blockDescriptor;
+    private boolean endOfFile;
+
+    /**
+     * @param channel The data connection, which is left open when the file ends.
+     */
+    FTPBlockChannel(ByteChannel channel)
+    {
+        this.channel = channel;
+    }
+
+    /**
+     * Reads file data, returning -1 once the block flagged EOF has been read.
+     */
+    @Override
+    public int read(ByteBuffer destination) throws IOException
+    {
+        while (blockRemaining == 0)
+        {
+            if (endOfFile || (blockDescriptor & DESCRIPTOR_EOF) != 0)
+            {
+                endOfFile = true;
+                return -1;
+            }
+
+            readHeader();
+
+            // Restart markers are not file data, end of record flags need no action on a file.
+            if ((blockDescriptor & DESCRIPTOR_RESTART) != 0)
+            {
+                skip(blockRemaining);
+                blockRemaining = 0;
+            }
+        }
+
+        final int limit = destination.limit();
+        destination.limit(destination.position() + Math.min(destination.remaining(), blockRemaining));
+
+        try
+        {
+            final int count = channel.read(destination);
+            if (count < 0)
+            {
+                throw new EOFException("Data connection closed inside a block.");
+            }
+
+            blockRemaining -= count;
+
+            return count;
+        }
+        finally
+        {
+            destination.limit(limit);
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException
+    {
+        if (output == null)
+        {
+            output = FTPBufferPool.TRANSFER.acquire();
+        }
+
+        final int count = source.remaining();
+
+        while (source.hasRemaining())
+        {
+            if (output.remaining() <= HEADER_SIZE)
+            {
+                flush();
+            }
+
+            final int length = Math.min(Math.min(source.remaining(), MAX_BLOCK_SIZE), output.remaining() - HEADER_SIZE);
+            putHeader(0, length);
+
+            final ByteBuffer slice = source.duplicate();
+            slice.limit(slice.position() + length);
+            output.put(slice);
+            source.position(source.position() + length);
+        }
+
+        return count;
+    }
+
+    /**
+     * Writes the EOF block, ending the file but not the connection.
+     */
+    void finish() throws IOException
+    {
+        if (output == null)
+        {
+            output = FTPBufferPool.TRANSFER.acquire();
+        }
+
+        if (output.remaining() < HEADER_SIZE)
+        {
+            flush();
+        }
+
+        putHeader(DESCRIPTOR_EOF, 0);
+        flush();
+
+        FTPBufferPool.TRANSFER.release(output);
+        output = null;
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return channel.isOpen();
+    }
+
+    /**
+     * Closes the data connection, for transfers that failed part way through a file.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (output != null)
+        {
+            FTPBufferPool.TRANSFER.release(output);
+            output = null;
+        }
+
+        channel.close();
+    }
+
+    private void putHeader(int descriptor, int length)
+    {
+        output.put((byte) descriptor);
+        output.put((byte) (length >> 8));
+        output.put((byte) length);
+    }
+
+    private void flush() throws IOException
+    {
+        output.flip();
+
+        while (output.hasRemaining())
+        {
+            channel.write(output);
+        }
+
+        output.clear();
+    }
+
+    private void readHeader() throws IOException
+    {
+        header.clear();
+
+        while (header.hasRemaining())
+        {
+            if (channel.read(header) < 0)
+            {
+                throw new EOFException("Data connection closed before the end of file block.");
+            }
+        }
+
+        blockDescriptor = header.get(0) & 0xFF;
+        blockRemaining = ((header.get(1) & 0xFF) << 8) | (header.get(2) & 0xFF);
+    }
+
+    private void skip(int count) throws IOException
+    {
+        final ByteBuffer discard = ByteBuffer.allocate(count);
+
+        while (discard.hasRemaining())
+        {
+            if (channel.read(discard) < 0)
+            {
+                throw new EOFException("Data connection closed inside a block.");
+            }
+        }
+    }
+}
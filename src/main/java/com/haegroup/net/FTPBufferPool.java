@@ -0,0 +1,73 @@
+package com.haegroup.net;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of equally sized direct buffers. Direct buffers are expensive to allocate and are only freed by the garbage
+ * collector, so transfers borrow them from here instead of allocating their own.
+ */
+class FTPBufferPool
+{
+    /**
+     * Shared pool for data transfers that cannot use zero-copy.
+     */
+    static final FTPBufferPool TRANSFER = new FTPBufferPool(256 * 1024, 64);
+
+    private final int bufferSize;
+    private final int maxPooled;
+
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * @param bufferSize Capacity of each buffer.
+     * @param maxPooled  Maximum number of idle buffers kept, further released buffers are left to the collector.
+     */
+    FTPBufferPool(int bufferSize, int maxPooled)
+    {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    /**
+     * Returns a cleared buffer.
+     */
+    ByteBuffer acquire()
+    {
+        final ByteBuffer buffer = buffers.poll();
+        if (buffer == null)
+        {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+
+        pooled.decrementAndGet();
+        buffer.clear();
+
+        return buffer;
+    }
+
+    void release(ByteBuffer buffer)
+    {
+        if (buffer == null || buffer.capacity() != bufferSize)
+        {
+            return;
+        }
+
+        if (pooled.incrementAndGet() <= maxPooled)
+        {
+            buffers.add(buffer);
+        }
+        else
+        {
+            pooled.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.haegroup.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A control session driven by an {@link FTPEventLoop}. Commands are framed from a fixed size buffer and executed by
+ * the existing {@link FTPClientConnection} handlers. Commands that may block on the data connection run on a worker
+ * thread, with reading suspended until their reply is queued so that replies keep their order.
+ */
+class FTPChannelSession
+{
+    private final SocketChannel channel;
+    private final FTPEventLoop eventLoop;
+    private final FTPClientConnection connection;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(FTPCommandReader.MAX_LINE_LENGTH);
+    private final Queue<ByteBuffer> pendingWrites = new ConcurrentLinkedQueue<>();
+
+    private SelectionKey key;
+
+    private boolean busy;
+    private boolean discarding;
+    private boolean closing;
+    private boolean handingOff;
+
+    FTPChannelSession(FTPServer server, SocketChannel channel, FTPEventLoop eventLoop)
+    {
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.connection = new FTPClientConnection(server, channel.socket(), new ReplyStream());
+    }
+
+    SocketChannel getChannel()
+    {
+        return channel;
+    }
+
+    SelectionKey getKey()
+    {
+        return key;
+    }
+
+    /**
+     * Called on the loop thread once the channel is registered.
+     */
+    void open(SelectionKey key)
+    {
+        this.key = key;
+
+        reply("220 Service ready for new user.");
+    }
+
+    /**
+     * Called on the loop thread when the channel is readable.
+     */
+    void read()
+    {
+        try
+        {
+            if (channel.read(readBuffer) < 0)
+            {
+                close();
+                return;
+            }
+        }
+        catch (IOException e)
+        {
+            close();
+            return;
+        }
+
+        processLines();
+    }
+
+    private void processLines()
+    {
+        readBuffer.flip();
+
+        String line;
+        while (!busy && !closing && !handingOff && (line = FTPCommandReader.nextLine(readBuffer)) != null)
+        {
+            if (discarding)
+            {
+                // Tail of an over long line.
+                discarding = false;
+                continue;
+            }
+
+            dispatch(line);
+        }
+
+        readBuffer.compact();
+
+        // A full buffer without a line end can never complete, skip to the next line end.
+        if (!readBuffer.hasRemaining())
+        {
+            readBuffer.clear();
+
+            if (!discarding)
+            {
+                discarding = true;
+                reply("500 Command line too long.");
+            }
+        }
+    }
+
+    private void dispatch(final String line)
+    {
+        System.out.println(line);
+
+        if (!FTPClientConnection.isBlockingCommand(FTPClientConnection.commandName(line)))
+        {
+            reply(execute(line));
+            connection.startPendingTransfer();
+            return;
+        }
+
+        // Stop reading until the command completes.
+        busy = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+
+        eventLoop.getWorkerService().execute(() -> {
+            final String response = execute(line);
+
+            eventLoop.execute(() -> {
+                busy = false;
+                reply(response);
+
+                // The transfer may only reply once its preliminary reply is queued.
+                connection.startPendingTransfer();
+
+                if (key.isValid() && !closing && !handingOff)
+                {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                    processLines();
+                }
+            });
+        });
+    }
+
+    private String execute(String line)
+    {
+        try
+        {
+            return connection.execute(line);
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            return "451 Requested action aborted. Local error in processing.";
+        }
+    }
+
+    private void reply(String response)
+    {
+        pendingWrites.add(ByteBuffer.wrap((response + FTPServer.LINE_END).getBytes(StandardCharsets.US_ASCII)));
+
+        if (FTPClientConnection.isQuit(response))
+        {
+            closing = true;
+        }
+        else if (FTPClientConnection.isTlsAccepted(response))
+        {
+            // TLS sessions continue on the blocking handler once the reply is out.
+            handingOff = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+
+        flush();
+    }
+
+    /**
+     * Called on the loop thread to write queued replies.
+     */
+    void flush()
+    {
+        if (key == null || !key.isValid())
+        {
+            return;
+        }
+
+        try
+        {
+            ByteBuffer buffer;
+            while ((buffer = pendingWrites.peek()) != null)
+            {
+                channel.write(buffer);
+
+                if (buffer.hasRemaining())
+                {
+                    break;
+                }
+
+                pendingWrites.poll();
+            }
+        }
+        catch (IOException e)
+        {
+            close();
+            return;
+        }
+
+        if (!pendingWrites.isEmpty())
+        {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+        else
+        {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+
+            if (closing)
+            {
+                close();
+            }
+            else if (handingOff && !busy)
+            {
+                eventLoop.handOff(this);
+            }
+        }
+    }
+
+    /**
+     * Called on a worker thread after the session left its event loop.
+     */
+    void continueBlocking()
+    {
+        try
+        {
+            channel.configureBlocking(true);
+
+            connection.upgradeToTls();
+            connection.handleCommands();
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            close();
+        }
+    }
+
+    void close()
+    {
+        connection.close();
+
+        if (key != null)
+        {
+            key.cancel();
+        }
+
+        try
+        {
+            channel.close();
+        }
+        catch (IOException ignored)
+        {
+        }
+    }
+
+    /**
+     * Reply stream handed to the connection, used by transfer completion callbacks from other threads.
+     */
+    private class ReplyStream extends OutputStream
+    {
+        @Override
+        public void write(int b)
+        {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+            final byte[] copy = new byte[len];
+            System.arraycopy(b, off, copy, 0, len);
+
+            pendingWrites.add(ByteBuffer.wrap(copy));
+            eventLoop.execute(FTPChannelSession.this::flush);
+        }
+    }
+}
@@ -1,55 +1,111 @@
 package com.haegroup.net;
 
-import org.apache.commons.lang3.ArrayUtils;
 
-import javax.net.ssl.KeyManagerFactory;
-import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.security.KeyStore;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import java.util.zip.Deflater;
 
 /**
  * Created by William Connell on 29/01/2016.
  */
 public class FTPClientConnection
 {
+    /**
+     * Extensions listed in the FEAT reply.
+     */
+    private static final String[] FEATURES = {
+            "AUTH TLS",
+            "PBSZ",
+            "PROT",
+            "MDTM",
+            "MLSD",
+            "MLST type*;size*;modify*;perm*;unix.mode*;",
+            "MODE B",
+            "MODE Z",
+            "REST STREAM",
+            "SIZE",
+            "UTF8"
+    };
+
+    private static final String NO_DATA_CONNECTION = "425 Use PORT or PASV first.";
+    private static final String DATA_CONNECTION_OPEN = "125 Data connection already open; transfer starting.";
+
     private final Socket originalSocket;
     private Socket socket;
     private FTPDataConnection dataConnection;
 
-    private InputStream commandInputStream;
+    private FTPCommandReader commandReader;
     private OutputStream commandOutputStream;
 
     private String username;
 
-    private String rootPath;
-    private String currentPath;
+    private final FTPPathResolver pathResolver;
+    private FTPPathResolver.Node currentDirectory;
 
     private char transferCode;
 
-    public FTPClientConnection(Socket socket, String anonymousDirectory) throws IOException
+    /**
+     * Offset set by REST for the next RETR or STOR.
+     */
+    private long restartOffset;
+
+    private boolean protectionBufferSizeSet;
+    private boolean protectData;
+
+    /**
+     * Transfer mode set by MODE, 'S' stream, 'Z' deflate or 'B' block.
+     */
+    private char transferMode = 'S';
+    private int compressionLevel;
+
+    /**
+     * Algorithm used by HASH, selected with OPTS HASH.
+     */
+    private FTPHashAlgorithm hashAlgorithm = FTPHashAlgorithm.SHA_256;
+
+    private final FTPServer server;
+    private final Executor transferService;
+    private Runnable pendingTransfer;
+
+    public FTPClientConnection(FTPServer server, Socket socket) throws IOException
+    {
+        this(server, socket, socket.getOutputStream());
+
+        this.commandReader = new FTPCommandReader(socket.getInputStream());
+    }
+
+    /**
+     * Creates a connection whose replies are written to the given stream rather than the socket, used by the
+     * selector engine which owns the reading side of the socket.
+     */
+    FTPClientConnection(FTPServer server, Socket socket, OutputStream replyStream)
     {
         this.originalSocket = socket;
         this.socket = this.originalSocket;
 
-        this.commandInputStream = socket.getInputStream();
-        this.commandOutputStream = socket.getOutputStream();
+        this.commandReader = null;
+        this.commandOutputStream = replyStream;
 
-        // Store the paths.
-        this.rootPath = anonymousDirectory;// new File(".").getCanonicalPath().replace('\\', '/');
-        this.currentPath = "/";
+        this.server = server;
+        this.transferService = server.getTransferService();
+        this.compressionLevel = server.getCompressionLevel();
+
+        // Start in the root.
+        this.pathResolver = server.getPathResolver();
+        this.currentDirectory = pathResolver.getRoot();
 
         this.dataConnection = null;
     }
@@ -58,280 +114,958 @@ public class FTPClientConnection
     {
         writeLine("220 Service ready for new user.");
 
+        handleCommands();
+    }
+
+    /**
+     * Reads and executes commands from the control socket until the client quits or disconnects.
+     */
+    void handleCommands() throws Exception
+    {
         try
         {
             String line;
             while (true)
             {
-                // Read the line.
-                line = readLine();
-                System.out.println(line);
+                // Read the line.
+                line = readLine();
+
+                // The client went away.
+                if (line == null)
+                {
+                    break;
+                }
+
+                System.out.println(line);
+
+                if (line == FTPCommandReader.LINE_TOO_LONG)
+                {
+                    writeLine("500 Command line too long.");
+                    continue;
+                }
+
+                String response = execute(line);
+
+                if (socket == null || !socket.isConnected())
+                {
+                    break;
+                }
+                else
+                {
+                    writeLine(response);
+                    startPendingTransfer();
+
+                    // Quit message.
+                    if (isQuit(response))
+                    {
+                        break;
+                    }
+
+                    if (isTlsAccepted(response))
+                    {
+                        upgradeToTls();
+                    }
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            throw e;
+        }
+        finally
+        {
+            close();
+        }
+    }
+
+    /**
+     * Executes a single command line and returns the reply, without writing it.
+     */
+    String execute(String line) throws IOException
+    {
+        // Parse the message from the client.
+        String response;
+        final int space = line.indexOf(' ');
+
+        // Retrieve the command and the arguments.
+        String command = commandName(line);
+        String arguments = space < 0 ? null : line.substring(space + 1).trim();
+
+        if (arguments != null && arguments.isEmpty())
+        {
+            arguments = null;
+        }
+
+        // Handle the command.
+        switch (command)
+        {
+            case "AUTH":
+                response = auth(arguments);
+                break;
+
+            case "PBSZ":
+                response = protectionBufferSize(arguments);
+                break;
+
+            case "PROT":
+                response = protection(arguments);
+                break;
+
+            case "USER":
+                response = user(arguments);
+                break;
+
+            case "PASS":
+                response = password(arguments);
+                break;
+
+            case "CWD":
+                response = changeWorkingDirectory(arguments);
+                break;
+
+            case "CDUP":
+                response = changeWorkingDirectory("..");
+                break;
+
+            case "NOOP":
+                response = "200 NOOP ok.";
+                break;
+
+            case "PWD":
+                response = String.format("257 \"%s\" is current directory.", currentDirectory.getVirtualPath());
+                break;
+
+            case "QUIT":
+                response = "221 Service closing control connection.";
+                break;
+
+            case "MODE":
+                response = mode(arguments);
+                break;
+
+            case "OPTS":
+                response = options(arguments);
+                break;
+
+            case "TYPE":
+                if (arguments != null)
+                {
+                    String[] args = arguments.split(" ", 2);
+                    response = type(args[0], args.length > 1 ? args[1] : null);
+                }
+                else
+                {
+                    response = "502 Command not implemented.";
+                }
+
+                break;
+
+            case "DELE":
+                response = delete(arguments);
+                break;
+
+            case "PORT":
+                response = port(arguments);
+                break;
+
+            case "PASV":
+                response = passive(arguments);
+                break;
+
+            case "EPSV":
+                response = extendedPassive(arguments);
+                break;
+
+            case "EPRT":
+                response = extendedPort(arguments);
+                break;
+
+            case "LIST":
+                response = list(arguments, FTPListing.FORMAT_LIST);
+                break;
+
+            case "MLSD":
+                response = list(arguments, FTPListing.FORMAT_MLSD);
+                break;
+
+            case "MLST":
+                response = machineList(arguments);
+                break;
+
+            case "FEAT":
+                response = features();
+                break;
+
+            case "REST":
+                response = restart(arguments);
+                break;
+
+            case "SIZE":
+                response = size(arguments);
+                break;
+
+            case "MDTM":
+                response = modificationTime(arguments);
+                break;
+
+            case "RETR":
+                response = retrieve(arguments);
+                break;
+
+            case "STOR":
+                response = store(arguments);
+                break;
+
+            case "SITE":
+                response = site(arguments);
+                break;
+
+            case "HASH":
+                response = hash(arguments);
+                break;
+
+            case "XCRC":
+                response = extendedHash(arguments, FTPHashAlgorithm.CRC32);
+                break;
+
+            case "XMD5":
+                response = extendedHash(arguments, FTPHashAlgorithm.MD5);
+                break;
+
+            case "XSHA1":
+                response = extendedHash(arguments, FTPHashAlgorithm.SHA_1);
+                break;
+
+            case "XSHA256":
+                response = extendedHash(arguments, FTPHashAlgorithm.SHA_256);
+                break;
+
+            case "XSHA512":
+                response = extendedHash(arguments, FTPHashAlgorithm.SHA_512);
+                break;
+
+            default:
+                response = "502 Command not implemented.";
+                break;
+        }
+
+        return response;
+    }
+
+    /**
+     * Upgrades the control connection to TLS, after the 234 reply has been sent.
+     */
+    void upgradeToTls() throws IOException
+    {
+        // Override the socket.
+        socket = server.getTlsContext().wrap(originalSocket);
+
+        // Store the new streams.
+        commandReader = new FTPCommandReader(socket.getInputStream());
+        commandOutputStream = socket.getOutputStream();
+
+        // A new security exchange starts with an unprotected data channel.
+        protectionBufferSizeSet = false;
+        protectData = false;
+        configureDataConnection();
+    }
+
+    /**
+     * Starts the transfer queued by the last command. Transfers are held back until the command's reply has been
+     * written, so that their completion reply cannot overtake it.
+     */
+    void startPendingTransfer()
+    {
+        if (pendingTransfer != null)
+        {
+            final Runnable transfer = pendingTransfer;
+            pendingTransfer = null;
+
+            transferService.execute(transfer);
+        }
+    }
+
+    private void queueTransfer(Runnable transfer)
+    {
+        pendingTransfer = transfer;
+    }
+
+    /**
+     * Returns the upper-case command name of a command line.
+     */
+    static String commandName(String line)
+    {
+        final int space = line.indexOf(' ');
+
+        return (space < 0 ? line : line.substring(0, space)).trim().toUpperCase();
+    }
+
+    /**
+     * Returns true if the command may block on the data connection and should not be run on an event loop.
+     */
+    static boolean isBlockingCommand(String command)
+    {
+        switch (command)
+        {
+            case "LIST":
+            case "MLSD":
+            case "RETR":
+            case "STOR":
+            case "SITE":
+            case "HASH":
+            case "XCRC":
+            case "XMD5":
+            case "XSHA1":
+            case "XSHA256":
+            case "XSHA512":
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    static boolean isQuit(String response)
+    {
+        return response.startsWith("221");
+    }
+
+    static boolean isTlsAccepted(String response)
+    {
+        return response.startsWith("234");
+    }
+
+    private String auth(String mode)
+    {
+        if (mode == null)
+        {
+            return "501 Syntax error in parameters or arguments.";
+        }
+
+        switch (mode.toUpperCase())
+        {
+            case "TLS":
+                if (server.getTlsContext() == null)
+                {
+                    return "431 Unable to accept security mechanism.";
+                }
+
+                return "234 Enabling TLS Connection.";
+
+            default:
+                return "504 Unrecognised AUTH mode.";
+        }
+    }
+
+    /**
+     * TLS is a stream protocol, so the only buffer size is 0.
+     */
+    private String protectionBufferSize(String size)
+    {
+        if (!(socket instanceof SSLSocket))
+        {
+            return "503 Bad sequence of commands, use AUTH first.";
+        }
+        else if (size == null)
+        {
+            return "501 Syntax error in parameters or arguments.";
+        }
+
+        protectionBufferSizeSet = true;
+
+        return "200 PBSZ=0";
+    }
+
+    private String protection(String level)
+    {
+        if (level == null)
+        {
+            return "501 Syntax error in parameters or arguments.";
+        }
+        else if (!protectionBufferSizeSet)
+        {
+            return "503 Bad sequence of commands, use PBSZ first.";
+        }
+
+        switch (level.toUpperCase())
+        {
+            case "C":
+                protectData = false;
+                configureDataConnection();
+                return "200 Protection level set to Clear.";
+
+            case "P":
+                protectData = true;
+                configureDataConnection();
+                return "200 Protection level set to Private.";
+
+            case "S":
+            case "E":
+                return "536 Requested PROT level not supported by mechanism.";
+
+            default:
+                return "504 Unrecognised PROT level.";
+        }
+    }
+
+    private String mode(String mode)
+    {
+        if (mode == null)
+        {
+            return "501 Syntax error in parameters or arguments.";
+        }
+
+        switch (mode.toUpperCase())
+        {
+            case "S":
+                transferMode = 'S';
+                configureDataConnection();
+                return "200 Mode set to Stream.";
+
+            case "Z":
+                transferMode = 'Z';
+                configureDataConnection();
+                return "200 Mode set to Deflate.";
+
+            case "B":
+                transferMode = 'B';
+                configureDataConnection();
+                return "200 Mode set to Block.";
+
+            default:
+                return "504 Command not implemented for that parameter.";
+        }
+    }
+
+    private String options(String arguments)
+    {
+        if (arguments == null)
+        {
+            return "501 Syntax error in parameters or arguments.";
+        }
+
+        final String[] args = arguments.toUpperCase().split("\\s+");
+
+        if (args[0].equals("UTF8"))
+        {
+            return "200 Always in UTF8 mode.";
+        }
+        else if (args.length == 4 && args[0].equals("MODE") && args[1].equals("Z") && args[2].equals("LEVEL"))
+        {
+            final int level;
+            try
+            {
+                level = Integer.parseInt(args[3]);
+            }
+            catch (NumberFormatException e)
+            {
+                return "501 Syntax error in parameters or arguments.";
+            }
+
+            if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+            {
+                return "501 Compression level out of valid range (0 .. 9).";
+            }
+
+            compressionLevel = level;
+            configureDataConnection();
+
+            return "200 MODE Z LEVEL set to " + level + ".";
+        }
+        else if (args[0].equals("HASH"))
+        {
+            if (args.length == 1)
+            {
+                return "200 " + hashAlgorithm.getName();
+            }
+
+            final FTPHashAlgorithm algorithm = FTPHashAlgorithm.forName(args[1]);
+            if (algorithm == null)
+            {
+                return "504 Unknown hash algorithm.";
+            }
+
+            hashAlgorithm = algorithm;
+
+            return "200 " + algorithm.getName();
+        }
+
+        return "501 Option not understood.";
+    }
+
+    /**
+     * Applies the negotiated PROT and MODE settings to the data connection.
+     */
+    private void configureDataConnection()
+    {
+        if (dataConnection != null)
+        {
+            dataConnection.setProtected(protectData);
+            dataConnection.setTransferMode(transferMode, compressionLevel);
+        }
+    }
+
+    private String delete(String filename) throws IOException
+    {
+        final Path path = resolvePath(filename);
+
+        if (path == null || !Files.exists(path))
+        {
+            return "505 File does not exist.";
+        }
+
+        Files.delete(path);
+        server.invalidate(path);
+
+        return "250 Requested file action okay, completed.";
+    }
+
+    private String store(String filename) throws IOException
+    {
+        if (filename == null)
+        {
+            return "501 Syntax error in parameters or arguments.";
+        }
+        else if (!hasDataConnection())
+        {
+            return NO_DATA_CONNECTION;
+        }
+
+        final FTPPathResolver.Node node = resolve(filename);
+
+        if (node == null || node.getParent() == null || !pathResolver.isDirectory(node.getParent()))
+        {
+            return "505 Path does not exist.";
+        }
+
+        final Path path = node.getPath();
+        final long offset = takeRestartOffset();
+
+        final FTPSegmentedUploads.Upload segmented = server.getSegmentedUploads().get(path);
+        if (segmented != null)
+        {
+            return storeSegment(segmented, offset);
+        }
+
+        // Resuming needs everything before the offset to be there already.
+        if (offset > 0 && (!Files.isRegularFile(path) || Files.size(path) < offset))
+        {
+            return "554 Requested action not taken: invalid REST parameter.";
+        }
+
+        final boolean connected = dataConnection.isConnected();
+
+        if (!dataConnection.store(path, offset, transferReply("226 Closing data connection, file transfer successful.")))
+        {
+            return "505 File not found.";
+        }
+
+        return connected ? DATA_CONNECTION_OPEN : "150 File status okay; about to open data connection.";
+    }
+
+    /**
+     * Stores one range of a segmented upload, starting at the REST offset.
+     */
+    private String storeSegment(FTPSegmentedUploads.Upload upload, long offset) throws IOException
+    {
+        if (offset >= upload.getSize())
+        {
+            return "554 Requested action not taken: invalid REST parameter.";
+        }
+
+        final boolean connected = dataConnection.isConnected();
+
+        if (!dataConnection.storeSegment(upload, offset, transferReply("226 Closing data connection, segment received.")))
+        {
+            return "505 File not found.";
+        }
+
+        return connected ? DATA_CONNECTION_OPEN : "150 File status okay; about to open data connection.";
+    }
+
+    private String retrieve(String filename) throws IOException
+    {
+        if (filename == null)
+        {
+            return "505 File not found.";
+        }
+        else if (!hasDataConnection())
+        {
+            return NO_DATA_CONNECTION;
+        }
+
+        Path path = resolvePath(filename);
+
+        if (path == null)
+        {
+            return "505 File not found.";
+        }
+
+        final long offset = takeRestartOffset();
+
+        if (!Files.exists(path))
+        {
+            final String archive = retrieveArchive(filename, offset);
+            if (archive != null)
+            {
+                return archive;
+            }
+        }
+
+        if (offset > 0 && Files.isRegularFile(path) && Files.size(path) < offset)
+        {
+            return "554 Requested action not taken: invalid REST parameter.";
+        }
+
+        final boolean connected = dataConnection.isConnected();
+
+        if (dataConnection.retrieve(path, offset, transferReply("226 Closing data connection, file transfer successful."), transferCode))
+        {
+            return connected
+                    ? DATA_CONNECTION_OPEN
+                    : String.format("150 Opening %s mode data transfer for RETR", dataConnection.isPassive() ? "PASSIVE" : "ACTIVE");
+        }
+
+        return "505 File not found.";
+    }
+
+    /**
+     * Retrieves "dir.tar", "dir.tar.gz" or "dir.tgz" as an archive of the directory "dir", streamed as it is built.
+     *
+     * @return The reply, or null if the name does not name a directory archive.
+     */
+    private String retrieveArchive(String filename, long offset) throws IOException
+    {
+        final String lowerCase = filename.toLowerCase();
+
+        final String directory;
+        final boolean gzip;
+
+        if (lowerCase.endsWith(".tar"))
+        {
+            directory = filename.substring(0, filename.length() - ".tar".length());
+            gzip = false;
+        }
+        else if (lowerCase.endsWith(".tar.gz"))
+        {
+            directory = filename.substring(0, filename.length() - ".tar.gz".length());
+            gzip = true;
+        }
+        else if (lowerCase.endsWith(".tgz"))
+        {
+            directory = filename.substring(0, filename.length() - ".tgz".length());
+            gzip = true;
+        }
+        else
+        {
+            return null;
+        }
+
+        final FTPPathResolver.Node node = resolve(directory);
+
+        if (directory.isEmpty() || node == null || !pathResolver.isDirectory(node))
+        {
+            return null;
+        }
+
+        final Path path = node.getPath();
+
+        // Archives are built on the fly, there is no stable byte offset to restart from.
+        if (offset > 0)
+        {
+            return "554 Requested action not taken: invalid REST parameter.";
+        }
+
+        final boolean connected = dataConnection.isConnected();
+
+        if (!dataConnection.retrieveArchive(path, gzip, transferReply("226 Closing data connection, archive transfer successful.")))
+        {
+            return "505 File not found.";
+        }
+
+        return connected
+                ? DATA_CONNECTION_OPEN
+                : String.format("150 Opening %s mode data transfer for RETR", dataConnection.isPassive() ? "PASSIVE" : "ACTIVE");
+    }
+
+    private String site(String arguments) throws IOException
+    {
+        if (arguments == null)
+        {
+            return "501 Syntax error in parameters or arguments.";
+        }
+
+        final String[] args = arguments.split("\\s+", 2);
+
+        if (args[0].equalsIgnoreCase("SEGMENT") && args.length == 2)
+        {
+            return segment(args[1]);
+        }
+        else if (args[0].equalsIgnoreCase("DELTA") && args.length == 2)
+        {
+            return delta(args[1]);
+        }
+
+        return "504 SITE command not implemented for that parameter.";
+    }
+
+    /**
+     * Handles SITE SEGMENT, which sets up a file to be uploaded as disjoint ranges over several data connections at
+     * once. Each range is then sent with REST and STOR, in any order and from any session.
+     * <ul>
+     * <li>BEGIN size path: starts the upload, or joins it if one of the same size is in progress.</li>
+     * <li>STATUS path: lists the ranges still missing.</li>
+     * <li>ABORT path: abandons the upload.</li>
+     * </ul>
+     */
+    private String segment(String arguments) throws IOException
+    {
+        final String[] args = arguments.split("\\s+", 3);
+        final String action = args[0].toUpperCase();
+
+        if (action.equals("BEGIN") && args.length == 3)
+        {
+            final long size;
+            try
+            {
+                size = Long.parseLong(args[1]);
+            }
+            catch (NumberFormatException e)
+            {
+                return "501 Syntax error in parameters or arguments.";
+            }
+
+            if (size <= 0)
+            {
+                return "501 Segmented uploads need a size greater than zero.";
+            }
 
-                // Parse the message from the client.
-                String response;
-                String[] commandParts = line.split(" ", 2);
+            final FTPPathResolver.Node node = resolve(args[2]);
 
-                // Retrieve the command and the arguments.
-                String command = commandParts[0].toUpperCase().trim();
-                String arguments = commandParts.length > 1 ? line.substring(command.length() + 1) : null;
+            if (node == null || node.getParent() == null || !pathResolver.isDirectory(node.getParent()))
+            {
+                return "505 Path does not exist.";
+            }
 
-                if (arguments != null)
-                {
-                    arguments = arguments.trim();
+            final Path path = node.getPath();
 
-                    if (arguments.isEmpty())
-                    {
-                        arguments = null;
-                    }
-                }
+            if (server.getSegmentedUploads().begin(path, size) == null)
+            {
+                return "550 A segmented upload of a different size is in progress.";
+            }
 
-                // Handle the command.
-                switch (command)
-                {
-                    case "AUTH":
-                        response = auth(arguments);
-                        break;
+            return String.format("200 Segmented upload of %d bytes ready, send ranges with REST and STOR.", size);
+        }
+        else if ((action.equals("STATUS") || action.equals("ABORT")) && args.length >= 2)
+        {
+            final String pathname = arguments.substring(args[0].length()).trim();
+            final Path path = resolvePath(pathname);
 
-                    case "USER":
-                        response = user(arguments);
-                        break;
+            if (path == null)
+            {
+                return "550 No segmented upload in progress.";
+            }
 
-                    case "PASS":
-                        response = password(arguments);
-                        break;
+            if (action.equals("ABORT"))
+            {
+                return server.getSegmentedUploads().abort(path)
+                        ? "200 Segmented upload aborted."
+                        : "550 No segmented upload in progress.";
+            }
 
-                    case "CWD":
-                        response = changeWorkingDirectory(arguments);
-                        break;
+            final FTPSegmentedUploads.Upload upload = server.getSegmentedUploads().get(path);
+            if (upload == null)
+            {
+                return "550 No segmented upload in progress.";
+            }
 
-                    case "CDUP":
-                        response = changeWorkingDirectory("..");
-                        break;
+            final String missing = upload.missingRanges();
 
-                    case "PWD":
-                        response = String.format("257 \"%s\" is current directory.", currentPath);
-                        break;
+            return "213 " + (missing.isEmpty() ? "Complete" : "Missing " + missing);
+        }
 
-                    case "QUIT":
-                        response = "221 Service closing control connection.";
-                        break;
+        return "501 Syntax error in parameters or arguments.";
+    }
 
-                    case "TYPE":
-                        if (arguments != null)
-                        {
-                            String[] args = arguments.split(" ", 2);
-                            response = type(args[0], args.length > 1 ? args[1] : null);
-                        }
-                        else
-                        {
-                            response = "502 Command not implemented.";
-                        }
+    /**
+     * Handles SITE DELTA, which updates a file by sending only what changed, in the style of rsync.
+     * <ul>
+     * <li>SIGNATURES path: sends the block signatures of the server's copy over the data connection.</li>
+     * <li>PATCH path: receives a delta against those signatures over the data connection, see
+     * {@link FTPDeltaPatcher}, and replaces the file with the rebuilt one.</li>
+     * </ul>
+     */
+    private String delta(String arguments) throws IOException
+    {
+        final String[] args = arguments.split("\\s+", 2);
+        final String action = args[0].toUpperCase();
 
-                        break;
+        if (args.length != 2 || !action.equals("SIGNATURES") && !action.equals("PATCH"))
+        {
+            return "501 Syntax error in parameters or arguments.";
+        }
+        else if (!hasDataConnection())
+        {
+            return NO_DATA_CONNECTION;
+        }
 
-                    case "DELE":
-                        response = delete(arguments);
-                        break;
+        final Path path = resolvePath(args[1]);
 
-                    case "PORT":
-                        response = port(arguments);
-                        break;
+        if (path == null)
+        {
+            return "550 File not found.";
+        }
 
-                    case "PASV":
-                        response = passive(arguments);
-                        break;
+        final boolean connected = dataConnection.isConnected();
 
-                    case "EPSV":
-                        response = extendedPassive(arguments);
-                        break;
+        final boolean started = action.equals("SIGNATURES")
+                ? dataConnection.retrieveSignatures(path, transferReply("226 Closing data connection, signatures sent."))
+                : dataConnection.storeDelta(path, transferReply("226 Closing data connection, file rebuilt."));
 
-                    case "EPRT":
-                        response = extendedPort(arguments);
-                        break;
+        if (!started)
+        {
+            return "550 File not found.";
+        }
 
-                    case "LIST":
-                        response = list(arguments);
-                        break;
+        return connected ? DATA_CONNECTION_OPEN : "150 File status okay; about to open data connection.";
+    }
 
-                    case "RETR":
-                        response = retrieve(arguments);
-                        break;
+    private String restart(String marker)
+    {
+        final long offset;
+        try
+        {
+            offset = marker == null ? -1 : Long.parseLong(marker);
+        }
+        catch (NumberFormatException e)
+        {
+            return "501 Syntax error in parameters or arguments.";
+        }
 
-                    case "STOR":
-                        response = store(arguments);
-                        break;
+        if (offset < 0)
+        {
+            return "501 Syntax error in parameters or arguments.";
+        }
 
-                    default:
-                        response = "502 Command not implemented.";
-                        break;
-                }
+        restartOffset = offset;
 
-                if (socket == null || !socket.isConnected())
-                {
-                    break;
-                }
-                else
-                {
-                    writeLine(response);
+        return String.format("350 Restarting at %d. Send STORE or RETRIEVE to initiate transfer.", offset);
+    }
 
-                    // Quit message.
-                    if (response.startsWith("221"))
-                    {
-                        break;
-                    }
+    /**
+     * Returns the offset set by REST and clears it, it only applies to one transfer.
+     */
+    private long takeRestartOffset()
+    {
+        final long offset = restartOffset;
+        restartOffset = 0;
 
-                    if (command.equals("AUTH"))
-                    {
-                        InputStream stream = null;
-                        try
-                        {
-                            stream = FTPClientConnection.class.getResource("/server.pfx").openStream();
-
-                            final SSLContext sslContext = SSLContext.getInstance("TLS");
-
-                            final KeyStore keyStore = KeyStore.getInstance("PKCS12");
-                            keyStore.load(stream, "password".toCharArray());
-
-                            final KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-                            keyManagerFactory.init(keyStore, "password".toCharArray());
-
-                            sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
-
-                            SSLSocketFactory sslSocketFactory = sslContext.getSocketFactory();
-
-                            // Override the socket.
-                            SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket(
-                                    originalSocket,
-                                    null,
-                                    originalSocket.getPort(),
-                                    false);
-                            sslSocket.setUseClientMode(false);
-
-                            socket = sslSocket;
-
-                            // Store the new streams.
-                            commandInputStream = socket.getInputStream();
-                            commandOutputStream = socket.getOutputStream();
-                        }
-                        finally
-                        {
-                            if (stream != null)
-                            {
-                                stream.close();
-                            }
-                        }
-                    }
-                }
-            }
-        }
-        catch (Exception e)
-        {
-            e.printStackTrace();
-            throw e;
-        }
+        return offset;
     }
 
-    private String auth(String mode)
+    private String size(String pathname) throws IOException
     {
-        switch (mode)
+        if (pathname == null)
         {
-            case "TLS":
-                return "234 Enabling TLS Connection.";
+            return "501 Syntax error in parameters or arguments.";
+        }
 
-            default:
-                return "504 Unrecognised AUTH mode.";
+        final Path path = resolvePath(pathname);
+
+        if (path == null || !Files.isRegularFile(path))
+        {
+            return "550 Requested action not taken. File unavailable (e.g., file not found, no access).";
         }
+
+        return "213 " + Files.size(path);
     }
 
-    private String delete(String filename) throws IOException
+    /**
+     * Replies with the digest of a whole file in the selected algorithm, as in the HASH draft.
+     */
+    private String hash(String pathname) throws IOException
     {
-        final String absoluteFilename = rootPath + changeDirectory(currentPath, filename);
+        if (pathname == null)
+        {
+            return "501 Syntax error in parameters or arguments.";
+        }
+
+        final Path path = resolvePath(pathname);
 
-        if (!Files.exists(Paths.get(absoluteFilename)))
+        if (path == null || !Files.isRegularFile(path))
         {
-            return "505 File does not exist.";
+            return "550 Requested action not taken. File unavailable (e.g., file not found, no access).";
         }
 
-        Files.delete(Paths.get(absoluteFilename));
+        final long size = Files.size(path);
+        final String digest = server.getHasher().digest(path, hashAlgorithm);
 
-        return "250 Requested file action okay, completed.";
+        return "213 " + hashAlgorithm.getName() + " 0-" + Math.max(0, size - 1) + " " + digest + " " + pathname;
     }
 
-    private String store(String filename) throws IOException
+    /**
+     * Replies with the digest of a whole file for XCRC, XMD5 and the XSHA commands.
+     */
+    private String extendedHash(String pathname, FTPHashAlgorithm algorithm) throws IOException
     {
-        final String absoluteFilename = rootPath + changeDirectory(currentPath, filename);
-        final String absoluteFilepath = absoluteFilename.substring(0, absoluteFilename.lastIndexOf('/'));
-
-        if (!Files.exists(Paths.get(absoluteFilepath)))
+        if (pathname == null)
         {
-            return "505 Path does not exist.";
+            return "501 Syntax error in parameters or arguments.";
         }
 
-        final File file = new File(absoluteFilename);
-        if (!dataConnection.store(file, param -> {
-            try
-            {
-                writeLine("226 Closing data connection, file transfer successful.");
-            }
-            catch (IOException e)
-            {
-                return false;
-            }
-            return true;
-        }))
+        final Path path = resolvePath(pathname);
+
+        if (path == null || !Files.isRegularFile(path))
         {
-            return "505 File not found.";
+            return "550 Requested action not taken. File unavailable (e.g., file not found, no access).";
         }
 
-        return "150 File status okay; about to open data connection.";
+        return "250 " + server.getHasher().digest(path, algorithm).toUpperCase();
     }
 
-    private String retrieve(String filename) throws IOException
+    private String modificationTime(String pathname) throws IOException
     {
-        if (filename == null)
+        if (pathname == null)
         {
-            return "505 File not found.";
+            return "501 Syntax error in parameters or arguments.";
         }
 
-        // Sanitise the filename
-        filename = filename.replace('\\', '/');
-        Path path = Paths.get(rootPath, currentPath, filename);
+        final Path path = resolvePath(pathname);
 
-        if (dataConnection.retrieve(path, param -> {
+        if (path == null || !Files.isRegularFile(path))
+        {
+            return "550 Requested action not taken. File unavailable (e.g., file not found, no access).";
+        }
+
+        return "213 " + FTPListing.modifyTime(Files.getLastModifiedTime(path));
+    }
+
+    /**
+     * Returns the completion callback for a transfer, replying with the given message on success. MODE B keeps the
+     * data connection open after a successful transfer, so it replies 250 instead.
+     */
+    private Function<Boolean, Boolean> transferReply(String successReply)
+    {
+        final String reply = transferMode == 'B' ? "250 Requested file action okay, completed." : successReply;
+
+        return success -> {
             try
             {
-                writeLine("226 Closing data connection, file transfer successful.");
+                writeLine(success ? reply : "426 Connection closed; transfer aborted.");
             }
             catch (IOException e)
             {
                 return false;
             }
-            return true;
-        }, transferCode))
-        {
-            return String.format("150 Opening %s mode data transfer for RETR", dataConnection.isPassive() ? "PASSIVE" : "ACTIVE");
-        }
 
-        return "505 File not found.";
+            return true;
+        };
     }
 
     private String readLine() throws IOException
     {
-        return readLine(commandInputStream);
-    }
-
-    private String readLine(InputStream inputStream) throws IOException
-    {
-        StringBuilder builder = new StringBuilder();
-
-        do
-        {
-            // Read the next byte.
-            byte character = (byte) inputStream.read();
-            builder.append((char) character);
-        } while (!builder.toString().endsWith(FTPServer.LINE_END));
-
-        return builder.toString().trim();
+        return commandReader.readLine();
     }
 
     private void writeLine(String content) throws IOException
@@ -359,15 +1093,15 @@ public class FTPClientConnection
 
     private String changeWorkingDirectory(String path)
     {
-        String newPath = changeDirectory(currentPath, path);
+        final FTPPathResolver.Node directory = path == null ? null : resolve(path);
 
         // Verify the path is valid.
-        if (!Files.isDirectory(Paths.get(rootPath, newPath)))
+        if (directory == null || !pathResolver.isDirectory(directory))
         {
             return "550 Requested action not taken. File unavailable (e.g., file not found, no access).";
         }
 
-        currentPath = newPath;
+        currentDirectory = directory;
 
         return "250 Requested file action okay, completed.";
     }
@@ -418,12 +1152,25 @@ public class FTPClientConnection
         }
 
         String[] args = arguments.split(",");
+        if (args.length != 6)
+        {
+            return "501 Syntax error in parameters or arguments.";
+        }
 
         // Skip 0 as that will be empty.
-        String address = String.format("%s.%s.%s.%s", args);
+        String address = String.format("%s.%s.%s.%s", (Object[]) args);
 
-        int high = Integer.parseInt(args[4]);
-        int low = Integer.parseInt(args[5]);
+        int high;
+        int low;
+        try
+        {
+            high = Integer.parseInt(args[4].trim());
+            low = Integer.parseInt(args[5].trim());
+        }
+        catch (NumberFormatException e)
+        {
+            return "501 Syntax error in parameters or arguments.";
+        }
 
         // Wrap the ByteBuffer.
         ByteBuffer bb = ByteBuffer.wrap(new byte[] {(byte)(high & 0xFF), (byte)(low & 0xFF)});
@@ -437,48 +1184,58 @@ public class FTPClientConnection
 
     private String passive(String arguments) throws IOException
     {
-        String result = startPassive(0);
-
-        String[] split = result.split("\\|", 2);
-
-        String address = split[0].replace('.', ',');
-        int port = Integer.parseInt(split[1]);
+        final byte[] address = socket.getLocalAddress().getAddress();
+        if (address.length != 4)
+        {
+            return "522 Network protocol not supported, use EPSV.";
+        }
 
-        ByteBuffer bb = ByteBuffer.allocate(2);
-        bb.order(ByteOrder.BIG_ENDIAN);
-        bb.putShort((short) port);
-        bb.position(0);
+        final ServerSocketChannel listener = startPassive();
+        if (listener == null)
+        {
+            return "425 Can't open data connection, no passive ports available.";
+        }
 
-        byte[] portBytes = new byte[2];
-        bb.get(portBytes);
+        return passiveReply(address, listener.socket().getLocalPort());
+    }
 
-        return String.format("227 Entering Passive Mode (%s,%d,%d)", address, (short) portBytes[0] & 0xFF, (short) portBytes[1] & 0xFF);
+    /**
+     * Formats the reply to PASV for an IPv4 address and port.
+     */
+    static String passiveReply(byte[] address, int port)
+    {
+        return String.format("227 Entering Passive Mode (%d,%d,%d,%d,%d,%d)",
+                address[0] & 0xFF, address[1] & 0xFF, address[2] & 0xFF, address[3] & 0xFF, port >> 8, port & 0xFF);
     }
 
-    private String list(String pathname) throws IOException
+    private String list(String pathname, String format) throws IOException
     {
-        if (pathname == null)
+        // Skip "ls" style options such as "-la", which some clients always send.
+        if (pathname != null && pathname.startsWith("-"))
         {
-            pathname = "/";
+            final int space = pathname.indexOf(' ');
+            pathname = space < 0 ? null : pathname.substring(space + 1).trim();
         }
 
-        // Write the list via the data connection.
-        boolean result = dataConnection.list(rootPath, currentPath, pathname, param -> {
-            try
-            {
-                writeLine("266 Transfer complete.");
-            }
-            catch (IOException e)
-            {
-                return false;
-            }
+        // Without a path, list the current directory.
+        final FTPPathResolver.Node directory = pathname == null || pathname.isEmpty() ? currentDirectory : resolve(pathname);
 
-            return true;
-        });
+        if (!hasDataConnection())
+        {
+            return NO_DATA_CONNECTION;
+        }
+
+        final boolean connected = dataConnection.isConnected();
+
+        // Write the list via the data connection.
+        boolean result = directory != null && pathResolver.isDirectory(directory)
+                && dataConnection.list(directory.getPath(), format, transferReply("226 Transfer complete."));
 
         if (result)
         {
-            return String.format("150 Opening %s mode data transfer for LIST.", dataConnection.isPassive() ? "PASSIVE" : "ACTIVE");
+            return connected
+                    ? DATA_CONNECTION_OPEN
+                    : String.format("150 Opening %s mode data transfer for %s.", dataConnection.isPassive() ? "PASSIVE" : "ACTIVE", format);
         }
         else
         {
@@ -486,6 +1243,47 @@ public class FTPClientConnection
         }
     }
 
+    /**
+     * Replies with the facts of a single file over the control connection.
+     */
+    private String machineList(String pathname) throws IOException
+    {
+        final FTPPathResolver.Node node = pathname == null ? currentDirectory : resolve(pathname);
+
+        if (node == null || !Files.exists(node.getPath()))
+        {
+            return "550 Requested action not taken. File unavailable (e.g., file not found, no access).";
+        }
+
+        final String virtualPath = node.getVirtualPath();
+        final Path path = node.getPath();
+
+        return "250-Listing " + virtualPath + FTPServer.LINE_END
+                + " " + FTPListing.facts(path) + " " + virtualPath + FTPServer.LINE_END
+                + "250 End.";
+    }
+
+    private String features()
+    {
+        final StringBuilder response = new StringBuilder("211-Features:").append(FTPServer.LINE_END);
+
+        for (String feature : FEATURES)
+        {
+            response.append(' ').append(feature).append(FTPServer.LINE_END);
+        }
+
+        // The algorithm HASH currently uses is starred.
+        response.append(" HASH ");
+        for (FTPHashAlgorithm algorithm : FTPHashAlgorithm.values())
+        {
+            response.append(algorithm.getName()).append(algorithm == hashAlgorithm ? "*;" : ";");
+        }
+        response.setLength(response.length() - 1);
+        response.append(FTPServer.LINE_END);
+
+        return response.append("211 End").toString();
+    }
+
     private String extendedPort(String arguments) throws IOException
     {
         if (arguments == null)
@@ -494,106 +1292,164 @@ public class FTPClientConnection
         }
 
         String[] args = arguments.split("\\|");
+        if (args.length < 4)
+        {
+            return "501 Syntax error in parameters or arguments.";
+        }
 
         // Skip 0 as that will be empty.
-        int protocol = Integer.parseInt(args[1]);
-        String address = args[2];
-        int port = Integer.parseInt(args[3]);
+        int protocol;
+        int port;
+        try
+        {
+            protocol = Integer.parseInt(args[1]);
+            port = Integer.parseInt(args[3]);
+        }
+        catch (NumberFormatException e)
+        {
+            return "501 Syntax error in parameters or arguments.";
+        }
 
         if (protocol != 1 && protocol != 2)
         {
             return "522 Network protocol not supported, use (1, 2).";
         }
-        else if (port < 0 || port > Short.MAX_VALUE)
+        else if (port < 1 || port > 65535)
+        {
+            return "501 Syntax error in parameters or arguments, port is out of valid range (1 .. 65535).";
+        }
+
+        // Only numeric addresses, a host name would have the server resolve whatever the client asks.
+        final String literal = args[2];
+        if (protocol == 1 ? !literal.matches("[0-9.]+") : !literal.matches("[0-9A-Fa-f:.]+"))
+        {
+            return "501 Syntax error in parameters or arguments, invalid network address.";
+        }
+
+        final InetAddress address;
+        try
+        {
+            address = InetAddress.getByName(literal);
+        }
+        catch (UnknownHostException e)
+        {
+            return "501 Syntax error in parameters or arguments, invalid network address.";
+        }
+
+        final boolean thirdParty = !address.equals(socket.getInetAddress());
+
+        if (thirdParty && !server.isFxpEnabled())
+        {
+            return "504 Data connections to another host are not allowed.";
+        }
+        else if (thirdParty && port < 1024)
         {
-            return "501 Syntax error in parameters or arguments, port is out of valid range (0 .. " + Short.MAX_VALUE + ").";
+            // Bounce protection, a third party transfer has no business with a privileged service.
+            return "504 Data connections to another host's privileged ports are not allowed.";
         }
 
-        dataConnection = new FTPDataConnection(address, port);
+        setDataConnection(new FTPDataConnection(server, address.getHostAddress(), port, this::queueTransfer));
 
         return "200 OK.";
     }
 
     private String extendedPassive(String arguments) throws IOException
     {
-        int port = 0;
         if (arguments != null)
         {
-            String[] args = arguments.split("\\|");
-
-            // Skip 0 as that will be empty.
-            port = Integer.parseInt(args[3]);
-
-            if (port < 0 || port > Short.MAX_VALUE)
+            if (arguments.equalsIgnoreCase("ALL"))
+            {
+                return "200 EPSV ALL command successful.";
+            }
+            else if (!arguments.equals("1") && !arguments.equals("2"))
             {
-                return "501 Syntax error in parameters or arguments, port is out of valid range (0 .. " + Short.MAX_VALUE + ").";
+                return "522 Network protocol not supported, use (1,2)";
             }
         }
 
-        String result = startPassive(port);
-        String[] split = result.split("\\|", 2);
+        final ServerSocketChannel listener = startPassive();
+        if (listener == null)
+        {
+            return "425 Can't open data connection, no passive ports available.";
+        }
 
-        return String.format("229 Entering Extended Passive Mode (||||%s|)", split[1]);
+        return extendedPassiveReply(listener.socket().getLocalPort());
     }
 
-    private String startPassive(int port) throws IOException
+    /**
+     * Formats the reply to EPSV for a port.
+     */
+    static String extendedPassiveReply(int port)
     {
-        ServerSocket passiveListener = null;
+        return String.format("229 Entering Extended Passive Mode (|||%d|)", port);
+    }
 
-        int localPort = -1;
-        while (localPort < 1 || localPort > 32767)
+    private ServerSocketChannel startPassive() throws IOException
+    {
+        final ServerSocketChannel passiveListener = server.getPassivePortPool().acquire(socket.getLocalAddress());
+        if (passiveListener == null)
         {
-            if (passiveListener != null)
-            {
-                passiveListener.close();
-            }
+            return null;
+        }
 
-            passiveListener = new ServerSocket(port, 16, socket.getLocalAddress());
-            localPort = passiveListener.getLocalPort();
+        final FTPDataConnection passiveConnection = new FTPDataConnection(server, passiveListener, this::queueTransfer);
+        if (!server.isFxpEnabled())
+        {
+            passiveConnection.setPermittedPeer(socket.getInetAddress());
         }
 
-        dataConnection = new FTPDataConnection(passiveListener);
+        setDataConnection(passiveConnection);
 
-        final InetAddress localAddress = passiveListener.getInetAddress();
-        return localAddress.getHostAddress() + '|' + localPort;
+        return passiveListener;
     }
 
-    private static String changeDirectory(String currentPath, String path)
+    /**
+     * Replaces the data connection, releasing the previous one.
+     */
+    private void setDataConnection(FTPDataConnection dataConnection)
     {
-        String[] parts = path.split("/");
-
-        if (!path.startsWith("/"))
+        if (this.dataConnection != null)
         {
-            String[] oldParts = currentPath.split("/");
-            parts = ArrayUtils.addAll(oldParts, parts);
+            this.dataConnection.close();
         }
 
-        String newPath = "";
-
-        for (int i = parts.length - 1; i >= 0; i--)
-        {
-            String part = parts[i];
-            if (part.equals(".."))
-            {
-                // Skip 1 more part.
-                i--;
-                continue;
-            }
-
-            // Skip empty parts.
-            if (part.isEmpty())
-            {
-                continue;
-            }
+        this.dataConnection = dataConnection;
+        configureDataConnection();
+    }
 
-            newPath = part + "/" + newPath;
-        }
+    private boolean hasDataConnection()
+    {
+        return dataConnection != null && dataConnection.isOpen();
+    }
 
-        if (newPath.endsWith("/"))
+    /**
+     * Releases the resources held by the session once it has ended.
+     */
+    void close()
+    {
+        if (dataConnection != null)
         {
-            newPath = newPath.substring(0, newPath.length() - 1);
+            dataConnection.close();
         }
+    }
+
+    /**
+     * Resolves a path sent by the client against the current directory.
+     *
+     * @return The node, or null if the path names nothing under the root.
+     */
+    private FTPPathResolver.Node resolve(String pathname)
+    {
+        return pathResolver.resolve(currentDirectory, pathname);
+    }
+
+    /**
+     * Resolves a path sent by the client to a path in the served file system, or null.
+     */
+    private Path resolvePath(String pathname)
+    {
+        final FTPPathResolver.Node node = resolve(pathname);
 
-        return "/" + newPath;
+        return node != null ? node.getPath() : null;
     }
 }
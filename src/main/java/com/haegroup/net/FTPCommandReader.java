@@ -0,0 +1,106 @@
+package com.haegroup.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Frames command lines out of a reusable buffer. Each socket read may carry several pipelined commands, which are
+ * returned one at a time without touching the socket again.
+ */
+class FTPCommandReader
+{
+    static final int MAX_LINE_LENGTH = 2048;
+
+    /**
+     * Returned in place of a line that did not fit the buffer, compare by identity.
+     */
+    static final String LINE_TOO_LONG = new String("");
+
+    private final InputStream inputStream;
+    private final ByteBuffer buffer = ByteBuffer.allocate(MAX_LINE_LENGTH);
+
+    private boolean discarding;
+
+    FTPCommandReader(InputStream inputStream)
+    {
+        this.inputStream = inputStream;
+
+        // Start empty, in read mode.
+        buffer.flip();
+    }
+
+    /**
+     * Returns the next line without its line end, or null once the client has closed the connection.
+     */
+    String readLine() throws IOException
+    {
+        while (true)
+        {
+            final String line = nextLine(buffer);
+            if (line != null)
+            {
+                if (discarding)
+                {
+                    // Tail of an over long line.
+                    discarding = false;
+                    return LINE_TOO_LONG;
+                }
+
+                return line;
+            }
+
+            buffer.compact();
+
+            if (!buffer.hasRemaining())
+            {
+                // Drop what we have and skip to the next line end.
+                buffer.clear();
+                discarding = true;
+            }
+
+            final int count = inputStream.read(buffer.array(), buffer.position(), buffer.remaining());
+
+            if (count < 0)
+            {
+                buffer.flip();
+                return null;
+            }
+
+            buffer.position(buffer.position() + count);
+            buffer.flip();
+        }
+    }
+
+    /**
+     * Takes the next complete line from a heap buffer in read mode, advancing its position past the line end.
+     *
+     * @return The line, or null if the buffer holds no complete line.
+     */
+    static String nextLine(ByteBuffer buffer)
+    {
+        final byte[] array = buffer.array();
+        final int offset = buffer.arrayOffset();
+        final int start = buffer.position();
+        final int limit = buffer.limit();
+
+        for (int i = start; i < limit; i++)
+        {
+            if (array[offset + i] == '\n')
+            {
+                int end = i;
+                if (end > start && array[offset + end - 1] == '\r')
+                {
+                    end--;
+                }
+
+                buffer.position(i + 1);
+
+                return new String(array, offset + start, end - start, StandardCharsets.UTF_8).trim();
+            }
+        }
+
+        return null;
+    }
+}
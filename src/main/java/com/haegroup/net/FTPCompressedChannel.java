@@ -0,0 +1,152 @@
+package com.haegroup.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * MODE Z data stream over another channel. Writes are deflated into a zlib stream that {@link #finish()} completes,
+ * and reads inflate one.
+ */
+class FTPCompressedChannel implements ByteChannel
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ByteChannel channel;
+
+    private final Deflater deflater;
+    private final Inflater inflater = new Inflater();
+
+    private final byte[] input = new byte[BUFFER_SIZE];
+    private final byte[] output = new byte[BUFFER_SIZE];
+
+    private boolean open = true;
+
+    /**
+     * @param level Deflate level used for writes, {@link Deflater#NO_COMPRESSION} wraps data in stored blocks.
+     */
+    FTPCompressedChannel(ByteChannel channel, int level)
+    {
+        this.channel = channel;
+        this.deflater = new Deflater(level);
+    }
+
+    @Override
+    public int read(ByteBuffer destination) throws IOException
+    {
+        if (!destination.hasRemaining())
+        {
+            return 0;
+        }
+
+        try
+        {
+            while (!inflater.finished())
+            {
+                if (inflater.needsInput())
+                {
+                    final int count = channel.read(ByteBuffer.wrap(input));
+                    if (count < 0)
+                    {
+                        throw new EOFException("Compressed stream ended early.");
+                    }
+
+                    inflater.setInput(input, 0, count);
+                }
+
+                final int count = inflater.inflate(output, 0, Math.min(destination.remaining(), output.length));
+                if (count > 0)
+                {
+                    destination.put(output, 0, count);
+                    return count;
+                }
+
+                if (inflater.needsDictionary())
+                {
+                    throw new IOException("Compressed stream needs a preset dictionary.");
+                }
+            }
+        }
+        catch (DataFormatException e)
+        {
+            throw new IOException("Invalid compressed stream.", e);
+        }
+
+        return -1;
+    }
+
+    /**
+     * Deflates the source, returning the number of uncompressed bytes consumed.
+     */
+    @Override
+    public int write(ByteBuffer source) throws IOException
+    {
+        final int count = source.remaining();
+
+        while (source.hasRemaining())
+        {
+            final int length = Math.min(source.remaining(), input.length);
+            source.get(input, 0, length);
+
+            deflater.setInput(input, 0, length);
+            while (!deflater.needsInput())
+            {
+                writeOutput(deflater.deflate(output, 0, output.length, Deflater.NO_FLUSH));
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Writes the end of the compressed stream. The channel must not be written to afterwards.
+     */
+    void finish() throws IOException
+    {
+        deflater.finish();
+
+        while (!deflater.finished())
+        {
+            writeOutput(deflater.deflate(output));
+        }
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return open;
+    }
+
+    /**
+     * Releases the compressor and closes the underlying channel, without finishing the stream.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (!open)
+        {
+            return;
+        }
+
+        open = false;
+
+        deflater.end();
+        inflater.end();
+
+        channel.close();
+    }
+
+    private void writeOutput(int length) throws IOException
+    {
+        final ByteBuffer buffer = ByteBuffer.wrap(output, 0, length);
+
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.haegroup.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Cache of MODE Z streams for frequently downloaded files, so a hot file is only deflated once per level. A file is
+ * compressed on its second request within the tracked window, and entries are keyed by size and modification time
+ * like {@link FTPFileCache}. Cached bytes are bounded, least recently used streams are dropped first.
+ */
+class FTPCompressionCache
+{
+    /**
+     * Requests of the same file and level before it is cached.
+     */
+    private static final int HOT_THRESHOLD = 2;
+    private static final int MAX_TRACKED = 4096;
+
+    private static final int COMPRESS_BUFFER_SIZE = 64 * 1024;
+    private static final int SAMPLE_SIZE = 4096;
+    private static final double COMPRESSED_ENTROPY = 7.5;
+
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "7z", "bz2", "gif", "gz", "jar", "jpeg", "jpg", "lz4", "mkv", "mov", "mp3", "mp4", "ogg", "png", "rar",
+            "tgz", "webm", "webp", "xz", "zip", "zst"));
+
+    private final long capacity;
+    private final long maxEntrySize;
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long size;
+
+    private final LinkedHashMap<Key, Integer> requests = new LinkedHashMap<Key, Integer>(64, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Integer> eldest)
+        {
+            return size() > MAX_TRACKED;
+        }
+    };
+
+    /**
+     * @param capacity Maximum number of cached compressed bytes, 0 disables the cache.
+     */
+    FTPCompressionCache(long capacity)
+    {
+        this.capacity = capacity;
+        this.maxEntrySize = capacity / 4;
+    }
+
+    /**
+     * Returns true if the file's extension or a sample of its content shows it is already compressed, so deflating
+     * it again would only cost time.
+     */
+    static boolean isCompressed(Path path, FileChannel channel) throws IOException
+    {
+        final String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        final int dot = name.lastIndexOf('.');
+
+        if (dot >= 0 && COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1)))
+        {
+            return true;
+        }
+
+        final ByteBuffer sample = ByteBuffer.allocate(SAMPLE_SIZE);
+        while (sample.hasRemaining() && channel.read(sample, sample.position()) > 0)
+        {
+        }
+
+        // Too little to judge, and too little to matter.
+        if (sample.position() < SAMPLE_SIZE)
+        {
+            return false;
+        }
+
+        final int[] counts = new int[256];
+        for (int i = 0; i < sample.position(); i++)
+        {
+            counts[sample.get(i) & 0xFF]++;
+        }
+
+        // Shannon entropy in bits per byte, compressed data is close to 8.
+        double entropy = 0;
+        for (int count : counts)
+        {
+            if (count > 0)
+            {
+                final double probability = (double) count / sample.position();
+                entropy -= probability * Math.log(probability) / Math.log(2);
+            }
+        }
+
+        return entropy > COMPRESSED_ENTROPY;
+    }
+
+    /**
+     * Returns the compressed stream of the file, compressing it now if it has become hot, or null if the caller
+     * should compress it while sending.
+     */
+    byte[] get(Path path, BasicFileAttributes attributes, int level, FileChannel channel) throws IOException
+    {
+        if (attributes.size() == 0 || attributes.size() > maxEntrySize)
+        {
+            return null;
+        }
+
+        final Key key = new Key(path.toAbsolutePath().normalize(), level);
+        final long fileSize = attributes.size();
+        final long modified = attributes.lastModifiedTime().toMillis();
+
+        synchronized (this)
+        {
+            final Entry entry = entries.get(key);
+            if (entry != null)
+            {
+                if (entry.size == fileSize && entry.modified == modified)
+                {
+                    return entry.compressed;
+                }
+
+                remove(key);
+            }
+
+            final int count = requests.getOrDefault(key, 0) + 1;
+            if (count < HOT_THRESHOLD)
+            {
+                requests.put(key, count);
+                return null;
+            }
+
+            requests.remove(key);
+        }
+
+        final byte[] compressed = compress(channel, level);
+
+        synchronized (this)
+        {
+            evict(compressed.length);
+
+            final Entry previous = entries.put(key, new Entry(compressed, fileSize, modified));
+            size += compressed.length - (previous != null ? previous.compressed.length : 0);
+        }
+
+        return compressed;
+    }
+
+    /**
+     * Drops the compressed streams of a file that has been written or deleted.
+     */
+    synchronized void invalidate(Path path)
+    {
+        final Path key = path.toAbsolutePath().normalize();
+
+        final Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext())
+        {
+            final Map.Entry<Key, Entry> entry = iterator.next();
+            if (entry.getKey().path.equals(key))
+            {
+                size -= entry.getValue().compressed.length;
+                iterator.remove();
+            }
+        }
+    }
+
+    private static byte[] compress(FileChannel channel, int level) throws IOException
+    {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        final ByteBuffer buffer = ByteBuffer.allocate(COMPRESS_BUFFER_SIZE);
+        final Deflater deflater = new Deflater(level);
+
+        try (DeflaterOutputStream outputStream = new DeflaterOutputStream(compressed, deflater, COMPRESS_BUFFER_SIZE))
+        {
+            long position = 0;
+            int count;
+
+            while ((count = channel.read(buffer, position)) > 0)
+            {
+                position += count;
+
+                outputStream.write(buffer.array(), 0, count);
+                buffer.clear();
+            }
+        }
+        finally
+        {
+            deflater.end();
+        }
+
+        return compressed.toByteArray();
+    }
+
+    private void remove(Key key)
+    {
+        final Entry entry = entries.remove(key);
+        if (entry != null)
+        {
+            size -= entry.compressed.length;
+        }
+    }
+
+    private void evict(long required)
+    {
+        final Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+
+        while (size + required > capacity && iterator.hasNext())
+        {
+            size -= iterator.next().getValue().compressed.length;
+            iterator.remove();
+        }
+    }
+
+    private static class Key
+    {
+        private final Path path;
+        private final int level;
+
+        private Key(Path path, int level)
+        {
+            this.path = path;
+            this.level = level;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof Key))
+            {
+                return false;
+            }
+
+            final Key key = (Key) other;
+            return path.equals(key.path) && level == key.level;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return path.hashCode() * 31 + level;
+        }
+    }
+
+    private static class Entry
+    {
+        private final byte[] compressed;
+        private final long size;
+        private final long modified;
+
+        private Entry(byte[] compressed, long size, long modified)
+        {
+            this.compressed = compressed;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+}
@@ -1,40 +1,89 @@
 package com.haegroup.net;
 
-import com.sun.xml.internal.ws.policy.privateutil.PolicyUtils;
-import javafx.util.Callback;
-
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.attribute.PosixFilePermission;
-import java.nio.file.attribute.PosixFilePermissions;
-import java.time.LocalDateTime;
-import java.time.ZoneOffset;
-import java.time.format.DateTimeFormatter;
-import java.util.Arrays;
-import java.util.Set;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Created by William Connell on 01/02/2016.
  */
 public class FTPDataConnection
 {
-    private static final DateTimeFormatter DATE_TIME_FORMATTER_YEAR = DateTimeFormatter.ofPattern("MMM dd  yyyy");
-    private static final DateTimeFormatter DATE_TIME_FORMATTER_TIME = DateTimeFormatter.ofPattern("MMM dd HH:mm");
+    private static final int LISTING_BUFFER_SIZE = 64 * 1024;
+    private static final int ACCEPT_TIMEOUT = 30000;
+
+    /**
+     * Longest a pending accept goes without noticing the connection was closed.
+     */
+    private static final int ACCEPT_SLICE = 250;
+    private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+    private static final int DELTA_BUFFER_SIZE = 64 * 1024;
 
-    private final ServerSocket listenSocket;
+    /**
+     * Longest wait for a followed upload to commit more, before checking on it again.
+     */
+    private static final long FOLLOW_WAIT = 1000;
+
+    private final ServerSocketChannel listenSocket;
 
     private final String dataAddress;
     private final int dataPort;
 
     private final boolean isPassive;
 
-    public FTPDataConnection(ServerSocket listenSocket)
+    private final FTPServer server;
+    private final Executor transferExecutor;
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * Transfers waiting in accept on the passive listener, which must not go back to the pool under them.
+     */
+    private final AtomicInteger accepting = new AtomicInteger();
+    private final AtomicBoolean listenerReleased = new AtomicBoolean();
+
+    private volatile boolean isProtected;
+
+    /**
+     * The only address a passive data connection is accepted from, or null for any.
+     */
+    private volatile InetAddress permittedPeer;
+
+    private volatile char transferMode = 'S';
+    private volatile int compressionLevel;
+
+    /**
+     * Connection left open by a MODE B transfer for the next one.
+     */
+    private volatile ByteChannel persistentConnection;
+
+    public FTPDataConnection(FTPServer server, ServerSocketChannel listenSocket, Executor transferExecutor)
     {
+        this.server = server;
         this.listenSocket = listenSocket;
+        this.transferExecutor = transferExecutor;
 
         this.dataAddress = null;
         this.dataPort = -1;
@@ -42,9 +91,11 @@ public class FTPDataConnection
         this.isPassive = true;
     }
 
-    public FTPDataConnection(String dataAddress, int dataPort)
+    public FTPDataConnection(FTPServer server, String dataAddress, int dataPort, Executor transferExecutor)
     {
+        this.server = server;
         this.listenSocket = null;
+        this.transferExecutor = transferExecutor;
 
         this.dataAddress = dataAddress;
         this.dataPort = dataPort;
@@ -52,254 +103,1108 @@ public class FTPDataConnection
         this.isPassive = false;
     }
 
-    @Override
-    protected void finalize() throws Throwable
+    /**
+     * Returns false once the connection has carried its transfer or was replaced.
+     */
+    public boolean isOpen()
+    {
+        return !closed.get();
+    }
+
+    /**
+     * Restricts a passive data connection to one peer address, refusing anyone else who connects to the port first.
+     */
+    public void setPermittedPeer(InetAddress permittedPeer)
+    {
+        this.permittedPeer = permittedPeer;
+    }
+
+    /**
+     * Sets whether transfers are protected with TLS, as negotiated by PROT.
+     */
+    public void setProtected(boolean isProtected)
+    {
+        this.isProtected = isProtected;
+    }
+
+    /**
+     * Sets the transfer mode, 'S' stream, 'Z' deflate or 'B' block, and the level MODE Z deflates at.
+     */
+    public void setTransferMode(char transferMode, int compressionLevel)
+    {
+        this.transferMode = transferMode;
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Returns true if a MODE B transfer left the connection open, so the next transfer needs no new connection.
+     */
+    public boolean isConnected()
+    {
+        final ByteChannel connection = persistentConnection;
+
+        return connection != null && connection.isOpen();
+    }
+
+    /**
+     * Closes a connection kept open and releases the passive listener back to the server, or leaves that to a transfer
+     * still accepting on it. Safe to call more than once.
+     */
+    public void close()
     {
-        super.finalize();
+        if (closed.compareAndSet(false, true))
+        {
+            final ByteChannel connection = persistentConnection;
+            if (connection != null)
+            {
+                persistentConnection = null;
+                closeQuietly(connection);
+            }
+
+            // A transfer may still be accepting, the last accept to finish releases the listener instead.
+            if (accepting.get() == 0)
+            {
+                releaseListener();
+            }
+        }
+    }
 
-        if (this.listenSocket != null)
+    /**
+     * Returns the passive listener to the pool, once nothing can be accepting on it. Another session may be handed
+     * the port as soon as this returns.
+     */
+    private void releaseListener()
+    {
+        if (listenSocket != null && listenerReleased.compareAndSet(false, true))
         {
-            this.listenSocket.close();
+            server.getPassivePortPool().release(listenSocket);
         }
     }
 
     /**
-     * Sends the path listing via the connection asynchronously.
+     * Sends the listing of a directory via the connection asynchronously.
      *
-     * @param rootPath Root part of the path.
-     * @param path     Relative part of the path.
-     * @return True if path was valid, return false otherwise.
+     * @param directory Directory to list, already resolved and checked by the caller.
+     * @return True if the transfer was started, return false otherwise.
      */
-    public boolean list(String rootPath, String currentPath, String path, Callback<Boolean, Boolean> completed) throws IOException
+    public boolean list(Path directory, String format, Function<Boolean, Boolean> completed) throws IOException
     {
-        // If no path is provided set to root.
-        if (path == null)
+        if (!canConnect())
         {
-            path = "/";
+            return false;
         }
 
-        // Convert to UNIX slashes.
-        path = path.replace('\\', '/');
-        final Path fullpath = Paths.get(rootPath, currentPath, path);
+        transferExecutor.execute(() ->
+        {
+            boolean success = false;
+            ByteChannel channel = null;
+
+            try
+            {
+                channel = compress(open(connect()), compressionLevel);
+
+                final FTPListingCache listingCache = server.getListingCache();
+
+                final byte[] listing = listingCache.get(directory, format);
+                if (listing != null)
+                {
+                    writeData(channel, ByteBuffer.wrap(listing));
+                }
+                else
+                {
+                    final long version = listingCache.version();
+
+                    // Stream the listing, keeping a copy for the cache while it is small enough.
+                    final CapturingOutputStream outputStream = new CapturingOutputStream(
+                            Channels.newOutputStream(channel), listingCache.maxEntrySize());
+
+                    FTPListing.write(directory, format, outputStream);
+                    outputStream.flush();
+
+                    if (outputStream.getCaptured() != null)
+                    {
+                        listingCache.put(directory, format, outputStream.getCaptured(), version);
+                    }
+                }
+
+                finish(channel);
+
+                success = true;
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+            finally
+            {
+                release(channel, success);
+            }
+
+            completed.apply(success);
+        });
+
+        return true;
+    }
 
-        // Verify that the path exists and that it's a directory.
-        if (!Files.exists(fullpath) || !Files.isDirectory(fullpath))
+    /**
+     * Sends a file via the connection asynchronously.
+     *
+     * @param offset Position of the first byte to send, from REST.
+     * @return True if the file exists, return false otherwise.
+     */
+    public boolean retrieve(Path path, long offset, Function<Boolean, Boolean> completed, char transferCode) throws IOException
+    {
+        // Confirm the file exists, or is a deduplicated upload that has yet to appear at its path.
+        if (!Files.isRegularFile(path) && server.getUploadRegistry().get(path) == null)
         {
             return false;
         }
 
-        // Connect to the socket.
-        final Socket socket = openConnection();
-        if (socket == null)
+        if (!canConnect())
         {
             return false;
         }
 
-        new Thread(() ->
+        transferExecutor.execute(() ->
         {
+            boolean success = false;
+            ByteChannel channel = null;
+
             try
             {
-                final OutputStream dataOutputStream = socket.getOutputStream();
+                channel = open(connect());
+
+                final FTPUploadRegistry.Upload upload = server.getUploadRegistry().get(path);
+
+                // A deduplicated upload in flight has nothing at the path yet.
+                final BasicFileAttributes attributes = upload != null ? null : Files.readAttributes(path, BasicFileAttributes.class);
+                final ByteBuffer cached = transferMode == 'Z' || upload != null ? null : server.getFileCache().get(path, attributes);
+
+                final long size;
+                final long sent;
 
-                // Retrieve a list of files.
-                final File[] files = fullpath.toFile().listFiles();
+                if (upload != null)
+                {
+                    sent = retrieveFollowing(channel, path, upload, offset, transferCode);
+                    size = sent;
+                }
+                else if (transferMode == 'Z')
+                {
+                    size = Math.max(attributes.size() - offset, 0);
+                    sent = retrieveCompressed(channel, path, attributes, offset, transferCode);
+                }
+                else if (cached != null)
+                {
+                    cached.position((int) Math.min(offset, cached.limit()));
+
+                    size = cached.remaining();
 
-                // Check that files were found.
-                if (files != null)
+                    try
+                    {
+                        sent = writeData(channel, cached);
+                    }
+                    catch (InternalError e)
+                    {
+                        // The file was truncated under the mapping, reading past its new end faults.
+                        server.getFileCache().invalidate(path);
+                        throw new IOException("File was truncated while being sent: " + path, e);
+                    }
+                }
+                else
                 {
-                    for (File file : files)
+                    try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ))
                     {
-                        final char[] flags = new char[10];
-                        Arrays.fill(flags, '-');
-                        flags[0] = file.isDirectory() ? 'd' : '-';
-
-                        try
-                        {
-                            final Set<PosixFilePermission> permissionSet = Files.getPosixFilePermissions(fullpath);
-                            String permissions = PosixFilePermissions.toString(permissionSet);
-
-                            for (int i = 1; i < flags.length; i++)
-                            {
-                                flags[i] = permissions.charAt(i - 1);
-                            }
-                        }
-                        catch (UnsupportedOperationException e)
-                        {
-                            if (file.canRead())
-                            {
-                                flags[1] = flags[4] = flags[7] = 'r';
-                            }
-
-                            if (file.canWrite())
-                            {
-                                flags[2] = flags[5] = flags[8] = 'w';
-                            }
-
-                            if (file.canExecute())
-                            {
-                                flags[3] = flags[6] = flags[9] = 'x';
-                            }
-                        }
-
-                        final String date = formatDate(
-                                LocalDateTime.ofEpochSecond(file.lastModified(), 0, ZoneOffset.UTC));
-
-                        final String line = String.format(
-                                "%s   1 %-10s %-10s %10d %s %s",
-                                new String(flags),
-                                "temp",
-                                "temp",
-                                file.length(),
-                                date,
-                                file.getName());
-
-                        writeLine(dataOutputStream, line);
+                        size = Math.max(fileChannel.size() - offset, 0);
+                        sent = writeData(channel, fileChannel, offset, transferCode);
                     }
+                }
 
-                    dataOutputStream.close();
+                System.out.println(String.format("RETR %s: %d of %d bytes sent from %d", path, sent, size, offset));
 
-                    completed.call(true);
+                if (sent == size)
+                {
+                    finish(channel);
+                    success = true;
                 }
             }
             catch (IOException e)
             {
                 e.printStackTrace();
             }
-        }, "TEMP THREAD").start();
+            finally
+            {
+                release(channel, success);
+            }
+
+            completed.apply(success);
+        });
 
         return true;
     }
 
-    public boolean retrieve(Path path, Callback<Boolean, Boolean> completed, char transferCode) throws IOException
+    /**
+     * Sends a file that another session is still uploading, as its bytes are committed, until the upload ends.
+     *
+     * @return Number of bytes sent.
+     * @throws IOException If the upload failed, so the file is incomplete.
+     */
+    private long retrieveFollowing(ByteChannel channel, Path path, FTPUploadRegistry.Upload upload, long offset, char transferCode) throws IOException
+    {
+        // The deflater sits between the file and the connection in MODE Z.
+        final ByteChannel destination = compress(channel, compressionLevel);
+        long position = offset;
+
+        try (FileChannel fileChannel = openFollowed(path, upload))
+        {
+            while (true)
+            {
+                // Checked first, so the committed position read after it is final once it is set.
+                final boolean finished = upload.isFinished();
+                final long committed = upload.await(position, finished ? 0 : FOLLOW_WAIT);
+
+                if (committed > position)
+                {
+                    position += writeData(destination, fileChannel, position, committed, transferCode);
+                }
+                else if (finished)
+                {
+                    break;
+                }
+            }
+
+            if (!upload.isSuccessful())
+            {
+                throw new IOException("Upload of " + path + " failed while following it.");
+            }
+
+            if (destination != channel)
+            {
+                ((FTPCompressedChannel) destination).finish();
+            }
+        }
+        finally
+        {
+            if (destination != channel)
+            {
+                // Closes the connection too, which is done with either way.
+                closeQuietly(destination);
+            }
+        }
+
+        return position - offset;
+    }
+
+    /**
+     * Opens the file an upload in flight is being written to.
+     */
+    private static FileChannel openFollowed(Path path, FTPUploadRegistry.Upload upload) throws IOException
     {
-        final File file = path.toFile();
+        try
+        {
+            return FileChannel.open(upload.getFile(), StandardOpenOption.READ);
+        }
+        catch (NoSuchFileException e)
+        {
+            // A deduplicated upload that finished in the meantime, it is at the path now.
+            if (upload.getFile().equals(path) || !upload.isFinished())
+            {
+                throw e;
+            }
+
+            return FileChannel.open(path, StandardOpenOption.READ);
+        }
+    }
 
-        // Confirm the file exists.
-        if (!file.exists() || !file.isFile())
+    /**
+     * Sends a directory as a tar archive, gzipped if asked, built while walking the tree.
+     *
+     * @return True if the directory exists, return false otherwise.
+     */
+    public boolean retrieveArchive(Path directory, boolean gzip, Function<Boolean, Boolean> completed) throws IOException
+    {
+        if (!Files.isDirectory(directory))
         {
             return false;
         }
 
-        // Connect to the socket.
-        final Socket socket = openConnection();
-        if (socket == null)
+        if (!canConnect())
         {
             return false;
         }
 
-        new Thread(() ->
+        transferExecutor.execute(() ->
         {
+            boolean success = false;
+            ByteChannel channel = null;
+
             try
             {
-                final OutputStream dataOutputStream = socket.getOutputStream();
+                channel = compress(open(connect()), compressionLevel);
+
+                // Not closed, that would close the connection.
+                final GZIPOutputStream gzipStream = gzip
+                        ? new GZIPOutputStream(Channels.newOutputStream(channel), GZIP_BUFFER_SIZE)
+                        : null;
+
+                final FTPTarWriter tarWriter = new FTPTarWriter(gzip ? Channels.newChannel(gzipStream) : channel);
+                tarWriter.write(directory);
+                tarWriter.finish();
 
-                InputStream inputStream = new FileInputStream(file);
+                if (gzipStream != null)
+                {
+                    gzipStream.finish();
+                }
 
-                writeData(dataOutputStream, inputStream, transferCode);
+                finish(channel);
 
-                dataOutputStream.close();
-                socket.close();
+                System.out.println(String.format("RETR %s as %s: %d files, %d bytes sent",
+                        directory, gzip ? "tar.gz" : "tar", tarWriter.getFiles(), tarWriter.getBytes()));
 
-                completed.call(true);
+                success = true;
             }
             catch (IOException e)
             {
                 e.printStackTrace();
             }
-        }, "TEMP THREAD").start();
+            finally
+            {
+                release(channel, success);
+            }
+
+            completed.apply(success);
+        });
 
         return true;
     }
 
-    private int writeData(OutputStream destination, InputStream source, char transferCode) throws IOException
+    /**
+     * Sends a file deflated. Files that are already compressed go out in stored blocks if the server says to skip
+     * them, and hot files are sent from the precompressed cache.
+     *
+     * @return Number of uncompressed bytes sent.
+     */
+    private long retrieveCompressed(ByteChannel channel, Path path, BasicFileAttributes attributes, long offset, char transferCode) throws IOException
     {
-        return writeDataBinary(destination, source);
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            int level = compressionLevel;
+
+            if (server.isSkipCompressedFiles() && FTPCompressionCache.isCompressed(path, fileChannel))
+            {
+                level = Deflater.NO_COMPRESSION;
+            }
+            else if (offset == 0 && level != Deflater.NO_COMPRESSION)
+            {
+                final byte[] precompressed = server.getCompressionCache().get(path, attributes, level, fileChannel);
+                if (precompressed != null)
+                {
+                    writeData(channel, ByteBuffer.wrap(precompressed));
+                    return attributes.size();
+                }
+            }
+
+            // Closing the compressor closes the connection, which is done with by then.
+            try (FTPCompressedChannel compressedChannel = new FTPCompressedChannel(channel, level))
+            {
+                final long sent = writeData(compressedChannel, fileChannel, offset, transferCode);
+                compressedChannel.finish();
+
+                return sent;
+            }
+        }
     }
 
-    private int writeDataBinary(OutputStream destination, InputStream source) throws IOException
+    /**
+     * Sends a cached file to the destination.
+     *
+     * @return Number of bytes sent.
+     */
+    private long writeData(WritableByteChannel destination, ByteBuffer source) throws IOException
     {
-        byte[] buffer = new byte[4096];
-        int count;
-        int total = 0;
+        long total = 0;
 
-        while ((count = source.read(buffer)) > 0)
+        while (source.hasRemaining())
         {
-            destination.write(buffer, 0, count);
-            total += count;
+            total += destination.write(source);
         }
 
         return total;
     }
 
-    private Socket openConnection() throws IOException
+    /**
+     * Sends the file from the given position to its end.
+     *
+     * @return Number of bytes sent.
+     */
+    private long writeData(WritableByteChannel destination, FileChannel source, long start, char transferCode) throws IOException
     {
-        if (isPassive && listenSocket != null)
+        return writeData(destination, source, start, source.size(), transferCode);
+    }
+
+    /**
+     * Sends the file from the start position up to, but not including, the end position.
+     *
+     * @return Number of bytes sent.
+     */
+    private long writeData(WritableByteChannel destination, FileChannel source, long start, long end, char transferCode) throws IOException
+    {
+        // Plain sockets can be fed by the kernel directly, anything that transforms the data needs a buffer.
+        if (destination instanceof SocketChannel)
         {
-            return listenSocket.accept();
+            return writeDataZeroCopy((SocketChannel) destination, source, start, end);
         }
-        else if (dataAddress != null && dataPort > 0)
+
+        return writeDataBuffered(destination, source, start, end);
+    }
+
+    private long writeDataZeroCopy(SocketChannel destination, FileChannel source, long start, long end) throws IOException
+    {
+        long position = start;
+
+        while (position < end)
         {
-            return new Socket(dataAddress, dataPort);
+            final long count = source.transferTo(position, end - position, destination);
+
+            // The file shrank underneath us.
+            if (count <= 0 && position >= source.size())
+            {
+                break;
+            }
+
+            position += count;
         }
 
-        return null;
+        return Math.max(position - start, 0);
     }
 
-    private String formatDate(LocalDateTime dateTime)
+    private long writeDataBuffered(WritableByteChannel destination, FileChannel source, long start, long end) throws IOException
     {
-        if (dateTime.compareTo(LocalDateTime.now().minusDays(180)) < 0)
+        final ByteBuffer buffer = FTPBufferPool.TRANSFER.acquire();
+        long total = 0;
+
+        try
         {
-            return dateTime.format(DATE_TIME_FORMATTER_YEAR);
+            buffer.limit((int) Math.min(buffer.capacity(), end - start));
+
+            // Positional reads, so the channel's own position is never relied on.
+            while (buffer.hasRemaining() && source.read(buffer, start + total) > 0)
+            {
+                buffer.flip();
+
+                while (buffer.hasRemaining())
+                {
+                    total += destination.write(buffer);
+                }
+
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - start - total));
+            }
         }
-        else
+        finally
         {
-            return dateTime.format(DATE_TIME_FORMATTER_TIME);
+            FTPBufferPool.TRANSFER.release(buffer);
         }
+
+        return total;
     }
 
-    private void writeLine(OutputStream outputStream, String content) throws IOException
+    /**
+     * Wraps the socket in TLS if the connection is protected, running the handshake on the calling thread.
+     */
+    private ByteChannel protect(SocketChannel socket) throws IOException
     {
-        outputStream.write((content + FTPServer.LINE_END).getBytes("ASCII"));
-        outputStream.flush();
+        if (!isProtected)
+        {
+            return socket;
+        }
+
+        final FTPSecureChannel secureChannel = new FTPSecureChannel(server.getTlsContext(), socket);
+
+        try
+        {
+            secureChannel.handshake();
+        }
+        catch (IOException e)
+        {
+            closeQuietly(secureChannel);
+            throw e;
+        }
+
+        return secureChannel;
     }
 
-    public boolean isPassive()
+    /**
+     * Wraps the channel in deflate compression in MODE Z.
+     */
+    private ByteChannel compress(ByteChannel channel, int level)
     {
-        return isPassive;
+        return transferMode == 'Z' ? new FTPCompressedChannel(channel, level) : channel;
     }
 
-    public boolean store(File file, Callback<Boolean, Boolean> completed) throws IOException
+    /**
+     * Ends the data stream, writing out whatever the compressor still holds or the end of file block.
+     */
+    private static void finish(ByteChannel channel) throws IOException
     {
-        // Connect to the socket.
-        final Socket socket = openConnection();
-        if (socket == null)
+        if (channel instanceof FTPCompressedChannel)
         {
-            return false;
+            ((FTPCompressedChannel) channel).finish();
         }
-
-        new Thread(() ->
+        else if (channel instanceof FTPBlockChannel)
         {
-            try
-            {
-                final InputStream dataInputStream = socket.getInputStream();
+            ((FTPBlockChannel) channel).finish();
+        }
+    }
 
-                OutputStream outputStream = new FileOutputStream(file);
+    /**
+     * Returns true if a transfer could get a data connection, without waiting for it. The connection itself is made
+     * by the transfer, after the preliminary reply, so a passive peer that waits for that reply before connecting,
+     * such as the other server of an FXP transfer, is not deadlocked.
+     */
+    private boolean canConnect()
+    {
+        return isConnected() || !closed.get() && (isPassive ? listenSocket != null : dataAddress != null && dataPort > 0);
+    }
 
-                writeData(outputStream, dataInputStream, 'I');
+    /**
+     * Returns the connection kept open by the last MODE B transfer, or opens a new one.
+     */
+    private ByteChannel connect() throws IOException
+    {
+        if (isConnected())
+        {
+            return persistentConnection;
+        }
 
-                outputStream.close();
-                dataInputStream.close();
+        final SocketChannel connection = openConnection();
+        if (connection == null)
+        {
+            throw new IOException("Data connection was not established.");
+        }
 
-                socket.close();
+        return connection;
+    }
 
-                completed.call(true);
-            }
-            catch (IOException e)
-            {
-                e.printStackTrace();
-            }
-        }, "TEMP THREAD").start();
+    /**
+     * Starts the data stream of one transfer, with TLS on a new connection and block framing in MODE B.
+     */
+    private ByteChannel open(ByteChannel connection) throws IOException
+    {
+        if (connection != persistentConnection)
+        {
+            connection = protect((SocketChannel) connection);
+        }
+
+        if (transferMode != 'B')
+        {
+            return connection;
+        }
+
+        persistentConnection = connection;
+
+        return new FTPBlockChannel(connection);
+    }
+
+    /**
+     * Ends a transfer. A MODE B connection that carried its file intact stays open for the next transfer, anything
+     * else is closed.
+     */
+    private void release(ByteChannel channel, boolean success)
+    {
+        if (success && channel instanceof FTPBlockChannel)
+        {
+            return;
+        }
+
+        persistentConnection = null;
+
+        // Null if the data connection was never established.
+        if (channel != null)
+        {
+            closeQuietly(channel);
+        }
+
+        close();
+    }
+
+    private SocketChannel openConnection() throws IOException
+    {
+        if (closed.get())
+        {
+            return null;
+        }
+
+        if (isPassive && listenSocket != null)
+        {
+            // Don't hold the port forever for a client that never connects.
+            final long deadline = System.currentTimeMillis() + ACCEPT_TIMEOUT;
+
+            // Counted before closed is looked at, so close() either sees the accept or the accept sees close().
+            accepting.incrementAndGet();
+
+            try
+            {
+                return accept(deadline);
+            }
+            finally
+            {
+                if (accepting.decrementAndGet() == 0 && closed.get())
+                {
+                    releaseListener();
+                }
+            }
+        }
+        else if (dataAddress != null && dataPort > 0)
+        {
+            return SocketChannel.open(new InetSocketAddress(dataAddress, dataPort));
+        }
+
+        return null;
+    }
+
+    /**
+     * Accepts the passive data connection from the permitted peer, or returns null once the deadline passes or the
+     * connection is closed.
+     */
+    private SocketChannel accept(long deadline) throws IOException
+    {
+        while (true)
+        {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0 || closed.get())
+            {
+                close();
+                return null;
+            }
+
+            // Accept in slices, so a session that moves on or goes away stops accepting promptly.
+            listenSocket.socket().setSoTimeout((int) Math.min(remaining, ACCEPT_SLICE));
+
+            final SocketChannel channel;
+            try
+            {
+                channel = listenSocket.socket().accept().getChannel();
+            }
+            catch (SocketTimeoutException e)
+            {
+                continue;
+            }
+
+            final InetAddress peer = channel.socket().getInetAddress();
+
+            if (permittedPeer == null || permittedPeer.equals(peer))
+            {
+                return channel;
+            }
+
+            // Someone else raced the client to the port, a stolen or bounced transfer.
+            System.out.println("Refused data connection from " + peer.getHostAddress());
+            closeQuietly(channel);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        try
+        {
+            closeable.close();
+        }
+        catch (IOException ignored)
+        {
+        }
+    }
+
+    public boolean isPassive()
+    {
+        return isPassive;
+    }
+
+    /**
+     * Receives a file via the connection asynchronously.
+     *
+     * @param offset Position to write the first byte received at, from REST. Anything after the received data is
+     *               truncated, and a zero offset replaces the file.
+     */
+    public boolean store(Path path, long offset, Function<Boolean, Boolean> completed) throws IOException
+    {
+        if (!canConnect())
+        {
+            return false;
+        }
+
+        transferExecutor.execute(() ->
+        {
+            boolean success = false;
+            ByteChannel channel = null;
+
+            final FTPBlobStore blobStore = offset == 0 ? server.getBlobStore() : null;
+
+            // A deduplicated upload is received aside, and only linked at the path once its content is known.
+            final Path file = blobStore != null ? blobStore.newIncoming() : path;
+
+            final FTPUploadRegistry.Upload upload;
+
+            // Only a whole file can be hashed on the way in.
+            final List<FTPHasher.Digester> digesters = offset == 0
+                    ? FTPHasher.digesters(server.getInlineDigests(), blobStore != null ? FTPBlobStore.ALGORITHM : null)
+                    : Collections.<FTPHasher.Digester>emptyList();
+
+            try
+            {
+                // The data connection comes first, an upload that never gets one leaves the existing file alone.
+                channel = compress(open(connect()), compressionLevel);
+
+                upload = server.getUploadRegistry().begin(path, file, offset);
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+                release(channel, false);
+                completed.apply(false);
+                return;
+            }
+
+            try (FileChannel fileChannel = openUpload(path, file, offset))
+            {
+                server.invalidate(path);
+
+                // The pipeline writes in order from a single thread, so the digests see the file as it is laid down.
+                final FTPStorePipeline.Target target = digesters.isEmpty() ? fileChannel::write : (buffer, position) ->
+                {
+                    final int start = buffer.position();
+                    final int written = fileChannel.write(buffer, position);
+
+                    final ByteBuffer slice = buffer.duplicate();
+                    slice.position(start).limit(start + written);
+
+                    for (FTPHasher.Digester digester : digesters)
+                    {
+                        digester.update(slice.duplicate());
+                    }
+
+                    return written;
+                };
+
+                final long received = new FTPStorePipeline(target, offset, server.getWriterService(), upload::commit).transfer(channel);
+
+                // Overwriting from the offset, drop whatever the previous upload left after it.
+                if (offset > 0)
+                {
+                    fileChannel.truncate(offset + received);
+                }
+
+                boolean duplicate = false;
+
+                if (blobStore != null)
+                {
+                    final String digest = FTPHasher.find(digesters, FTPBlobStore.ALGORITHM).hex();
+
+                    // Content that is already stored is never synced, its copy is discarded.
+                    if (!blobStore.contains(digest))
+                    {
+                        server.sync(fileChannel);
+                    }
+
+                    duplicate = blobStore.publish(file, digest, path);
+                }
+                else
+                {
+                    server.sync(fileChannel);
+                }
+
+                System.out.println(String.format("STOR %s: %d bytes received at %d%s", path, received, offset,
+                        duplicate ? ", already stored" : ""));
+
+                success = true;
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+            finally
+            {
+                release(channel, success);
+
+                if (!success && blobStore != null)
+                {
+                    deleteQuietly(file);
+                }
+
+                server.invalidate(path);
+                server.getUploadRegistry().end(upload, success);
+            }
+
+            if (success && !digesters.isEmpty())
+            {
+                try
+                {
+                    server.getHasher().record(path, digesters);
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+
+            completed.apply(success);
+        });
+
+        return true;
+    }
+
+    /**
+     * Opens the file an upload is received into, the path itself when writing from an offset.
+     */
+    private FileChannel openUpload(Path path, Path file, long offset) throws IOException
+    {
+        if (offset > 0)
+        {
+            // A deduplicated file shares its blob with other paths, it needs its own copy to be written in place.
+            if (server.getBlobStore() != null)
+            {
+                server.getBlobStore().unshare(path);
+            }
+
+            return FileChannel.open(path, StandardOpenOption.WRITE);
+        }
+
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Receives one range of a segmented upload via the connection asynchronously. Other ranges may be arriving on
+     * other connections at the same time, and whichever transfer completes the file moves it into place.
+     *
+     * @param offset Position of the first byte received, from REST.
+     */
+    public boolean storeSegment(FTPSegmentedUploads.Upload upload, long offset, Function<Boolean, Boolean> completed) throws IOException
+    {
+        if (!canConnect())
+        {
+            return false;
+        }
+
+        transferExecutor.execute(() ->
+        {
+            boolean success = false;
+            ByteChannel channel = null;
+
+            try
+            {
+                channel = compress(open(connect()), compressionLevel);
+
+                final long received = new FTPStorePipeline(upload::write, offset, server.getWriterService(), position -> {}).transfer(channel);
+
+                System.out.println(String.format("STOR %s: segment of %d bytes received at %d", upload.getTarget(), received, offset));
+
+                if (server.getSegmentedUploads().assembleIfComplete(upload, server))
+                {
+                    System.out.println(String.format("STOR %s: all %d bytes received, moved into place", upload.getTarget(), upload.getSize()));
+                }
+
+                success = true;
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+            finally
+            {
+                release(channel, success);
+            }
+
+            completed.apply(success);
+        });
+
+        return true;
+    }
+
+    /**
+     * Sends the delta sync signatures of a file, from the signature cache when this version has been signed before.
+     */
+    public boolean retrieveSignatures(Path path, Function<Boolean, Boolean> completed) throws IOException
+    {
+        if (!Files.isRegularFile(path) || !canConnect())
+        {
+            return false;
+        }
+
+        transferExecutor.execute(() ->
+        {
+            boolean success = false;
+            ByteChannel channel = null;
+
+            try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ))
+            {
+                channel = compress(open(connect()), compressionLevel);
+
+                final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                final FTPSignatures signatures = server.getSignatureCache().get(path, attributes, fileChannel);
+
+                final ByteArrayOutputStream encoded = new ByteArrayOutputStream((int) Math.min(signatures.getMemorySize(), Integer.MAX_VALUE));
+                signatures.write(new DataOutputStream(encoded));
+
+                writeData(channel, ByteBuffer.wrap(encoded.toByteArray()));
+                finish(channel);
+
+                System.out.println(String.format("SITE DELTA %s: %d signatures of %d byte blocks sent",
+                        path, signatures.getBlockCount(), signatures.getBlockSize()));
+
+                success = true;
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+            finally
+            {
+                release(channel, success);
+            }
+
+            completed.apply(success);
+        });
+
+        return true;
+    }
+
+    /**
+     * Receives a delta against the current version of a file and rebuilds the new version beside it, which then
+     * replaces the file in one atomic rename. Nothing changes if the delta does not reproduce the client's file.
+     */
+    public boolean storeDelta(Path path, Function<Boolean, Boolean> completed) throws IOException
+    {
+        if (!Files.isRegularFile(path) || !canConnect())
+        {
+            return false;
+        }
+
+        transferExecutor.execute(() ->
+        {
+            boolean success = false;
+            ByteChannel channel = null;
+
+            Path temporary = null;
+
+            try
+            {
+                // Unique, two deltas of the same file may be running.
+                temporary = Files.createTempFile(path.toAbsolutePath().getParent(), "." + path.getFileName() + ".", ".delta");
+
+                final FTPDeltaPatcher patcher;
+                final FTPSignatures signatures;
+
+                try (FileChannel base = FileChannel.open(path, StandardOpenOption.READ);
+                     FileChannel target = FileChannel.open(temporary, StandardOpenOption.WRITE))
+                {
+                    channel = compress(open(connect()), compressionLevel);
+
+                    final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                    patcher = new FTPDeltaPatcher(base, server.getSignatureCache().get(path, attributes, base), target);
+
+                    signatures = patcher.apply(new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), DELTA_BUFFER_SIZE)));
+
+                    server.sync(target);
+                }
+
+                copyPermissions(path, temporary);
+
+                Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                server.invalidate(path);
+
+                if (signatures != null)
+                {
+                    server.getSignatureCache().put(path, Files.readAttributes(path, BasicFileAttributes.class), signatures);
+                }
+
+                System.out.println(String.format("SITE DELTA %s: %d bytes rebuilt, %d sent and %d reused",
+                        path, patcher.getWritten(), patcher.getWritten() - patcher.getCopied(), patcher.getCopied()));
+
+                success = true;
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+            finally
+            {
+                release(channel, success);
+
+                if (!success && temporary != null)
+                {
+                    deleteQuietly(temporary);
+                }
+            }
+
+            completed.apply(success);
+        });
 
         return true;
     }
+
+    /**
+     * Gives a rebuilt file the permissions of the file it replaces, where the file system has them.
+     */
+    private static void copyPermissions(Path source, Path target) throws IOException
+    {
+        try
+        {
+            Files.setPosixFilePermissions(target, Files.getPosixFilePermissions(source));
+        }
+        catch (UnsupportedOperationException ignored)
+        {
+        }
+    }
+
+    private static void deleteQuietly(Path path)
+    {
+        try
+        {
+            Files.deleteIfExists(path);
+        }
+        catch (IOException ignored)
+        {
+        }
+    }
+
+    /**
+     * Buffers writes to the data connection and keeps a copy of everything written, up to a limit.
+     */
+    private static class CapturingOutputStream extends BufferedOutputStream
+    {
+        private final int limit;
+        private ByteArrayOutputStream captured = new ByteArrayOutputStream();
+
+        private CapturingOutputStream(OutputStream outputStream, int limit)
+        {
+            super(outputStream, LISTING_BUFFER_SIZE);
+
+            this.limit = limit;
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException
+        {
+            super.write(b, off, len);
+
+            if (captured != null)
+            {
+                if (captured.size() + len > limit)
+                {
+                    captured = null;
+                }
+                else
+                {
+                    captured.write(b, off, len);
+                }
+            }
+        }
+
+        /**
+         * Returns everything written, or null if it exceeded the limit.
+         */
+        private byte[] getCaptured()
+        {
+            return captured != null ? captured.toByteArray() : null;
+        }
+    }
 }
@@ -0,0 +1,167 @@
+package com.haegroup.net;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Rebuilds a file from a delta against the server's copy. A delta is a sequence of instructions, each a one byte
+ * code followed by big endian arguments:
+ * <ul>
+ * <li>{@link #COPY} block, count: copies count blocks of the server's copy, starting at the given block.</li>
+ * <li>{@link #LITERAL} length, data: data the server's copy does not have.</li>
+ * <li>{@link #END} length, MD5: ends the delta with the rebuilt file's length and digest, which are checked.</li>
+ * </ul>
+ * The rebuilt file is signed as it is written, so its signatures are ready for the next sync.
+ */
+public class FTPDeltaPatcher
+{
+    public static final byte COPY = 'C';
+    public static final byte LITERAL = 'L';
+    public static final byte END = 'E';
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final FileChannel base;
+    private final FTPSignatures baseSignatures;
+    private final FileChannel target;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final MessageDigest digest = FTPSignatures.md5();
+
+    /**
+     * Signed at the base's block size, which is right unless the length changed enough to call for another.
+     */
+    private final FTPSignatures.Builder signatures;
+
+    private long written;
+    private long copied;
+
+    /**
+     * @param base           The server's copy.
+     * @param baseSignatures Its signatures, which the client computed the delta against.
+     * @param target         Where the file is rebuilt.
+     */
+    FTPDeltaPatcher(FileChannel base, FTPSignatures baseSignatures, FileChannel target)
+    {
+        this.base = base;
+        this.baseSignatures = baseSignatures;
+        this.target = target;
+        this.signatures = new FTPSignatures.Builder(baseSignatures.getBlockSize());
+    }
+
+    /**
+     * Applies a delta up to its end instruction.
+     *
+     * @return The signatures of the rebuilt file, or null if it needs a different block size than the base.
+     */
+    FTPSignatures apply(DataInput input) throws IOException
+    {
+        while (true)
+        {
+            final byte code = input.readByte();
+
+            if (code == COPY)
+            {
+                final int block = input.readInt();
+                final int count = input.readInt();
+
+                if (block < 0 || count <= 0 || (long) block + count > baseSignatures.getBlockCount())
+                {
+                    throw new IOException("Delta copies blocks " + block + "+" + count + " of " + baseSignatures.getBlockCount() + ".");
+                }
+
+                final long start = (long) block * baseSignatures.getBlockSize();
+                final long end = Math.min(baseSignatures.getLength(), start + (long) count * baseSignatures.getBlockSize());
+
+                copy(start, end);
+            }
+            else if (code == LITERAL)
+            {
+                int remaining = input.readInt();
+                if (remaining <= 0)
+                {
+                    throw new IOException("Delta literal of " + remaining + " bytes.");
+                }
+
+                while (remaining > 0)
+                {
+                    final int count = Math.min(remaining, buffer.length);
+                    input.readFully(buffer, 0, count);
+
+                    write(buffer, count);
+                    remaining -= count;
+                }
+            }
+            else if (code == END)
+            {
+                final long length = input.readLong();
+                final byte[] expected = new byte[FTPSignatures.STRONG_LENGTH];
+                input.readFully(expected);
+
+                if (length != written || !Arrays.equals(expected, digest.digest()))
+                {
+                    throw new IOException("Rebuilt file does not match the client's, the server's copy changed since its signatures were sent.");
+                }
+
+                return FTPSignatures.blockSize(written) == signatures.getBlockSize() ? signatures.build() : null;
+            }
+            else
+            {
+                throw new IOException("Unknown delta instruction " + code + ".");
+            }
+        }
+    }
+
+    /**
+     * Returns the bytes taken from the server's copy rather than sent.
+     */
+    long getCopied()
+    {
+        return copied;
+    }
+
+    long getWritten()
+    {
+        return written;
+    }
+
+    private void copy(long start, long end) throws IOException
+    {
+        long position = start;
+
+        while (position < end)
+        {
+            final ByteBuffer wrapped = ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, end - position));
+
+            while (wrapped.hasRemaining())
+            {
+                if (base.read(wrapped, position + wrapped.position()) < 0)
+                {
+                    throw new IOException("The server's copy shrank since its signatures were sent.");
+                }
+            }
+
+            write(buffer, wrapped.limit());
+            position += wrapped.limit();
+        }
+
+        copied += end - start;
+    }
+
+    private void write(byte[] data, int count) throws IOException
+    {
+        final ByteBuffer wrapped = ByteBuffer.wrap(data, 0, count);
+
+        while (wrapped.hasRemaining())
+        {
+            written += target.write(wrapped);
+        }
+
+        digest.update(data, 0, count);
+        signatures.update(data, 0, count);
+    }
+}
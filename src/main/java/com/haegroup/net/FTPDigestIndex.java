@@ -0,0 +1,241 @@
+package com.haegroup.net;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Index of file digests keyed by path and algorithm, so asking for a checksum again is a lookup. Entries remember
+ * the size and modification time they were computed for, and are ignored once either changes.
+ *
+ * With a file, the index survives restarts as an append-only log of "algorithm size modified digest path" lines,
+ * later lines replacing earlier ones. The log is rewritten with only the live entries when it has grown to twice
+ * their number.
+ */
+class FTPDigestIndex implements Closeable
+{
+    private static final int MIN_COMPACT_LINES = 1024;
+
+    private final Path file;
+    private final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<>();
+
+    private BufferedWriter log;
+    private long logLines;
+
+    /**
+     * @param file The log file, created if missing, or null to keep the index in memory only.
+     */
+    FTPDigestIndex(Path file) throws IOException
+    {
+        this.file = file;
+
+        if (file != null)
+        {
+            load();
+            compact();
+        }
+    }
+
+    /**
+     * Returns the digest of the file's current version, or null if it has not been computed.
+     */
+    String get(Path path, FTPHashAlgorithm algorithm, BasicFileAttributes attributes)
+    {
+        final Entry entry = entries.get(new Key(path.toAbsolutePath().normalize(), algorithm));
+
+        if (entry == null || entry.size != attributes.size() || entry.modified != attributes.lastModifiedTime().toMillis())
+        {
+            return null;
+        }
+
+        return entry.digest;
+    }
+
+    void put(Path path, FTPHashAlgorithm algorithm, BasicFileAttributes attributes, String digest)
+    {
+        final Key key = new Key(path.toAbsolutePath().normalize(), algorithm);
+        final Entry entry = new Entry(attributes.size(), attributes.lastModifiedTime().toMillis(), digest);
+
+        entries.put(key, entry);
+
+        // A line break in the name would corrupt the log, such files are only indexed in memory.
+        if (file != null && key.path.toString().indexOf('\n') < 0)
+        {
+            append(key, entry);
+        }
+    }
+
+    /**
+     * Drops the digests of a file that is being written, or has been written or deleted.
+     */
+    void invalidate(Path path)
+    {
+        final Path normalized = path.toAbsolutePath().normalize();
+
+        for (FTPHashAlgorithm algorithm : FTPHashAlgorithm.values())
+        {
+            entries.remove(new Key(normalized, algorithm));
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if (log != null)
+        {
+            log.close();
+            log = null;
+        }
+    }
+
+    private void load() throws IOException
+    {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8))
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                logLines++;
+
+                final String[] fields = line.split(" ", 5);
+                if (fields.length != 5)
+                {
+                    // A line cut short by a crash.
+                    continue;
+                }
+
+                final FTPHashAlgorithm algorithm = FTPHashAlgorithm.forName(fields[0]);
+
+                try
+                {
+                    if (algorithm != null)
+                    {
+                        entries.put(new Key(Paths.get(fields[4]), algorithm),
+                                new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]));
+                    }
+                }
+                catch (RuntimeException ignored)
+                {
+                    // Same, or a path this platform cannot parse.
+                }
+            }
+        }
+        catch (NoSuchFileException ignored)
+        {
+            // First start.
+        }
+    }
+
+    private synchronized void append(Key key, Entry entry)
+    {
+        try
+        {
+            if (log == null)
+            {
+                log = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+
+            writeLine(log, key, entry);
+            log.flush();
+
+            if (++logLines >= Math.max(MIN_COMPACT_LINES, 2L * entries.size()))
+            {
+                compact();
+            }
+        }
+        catch (IOException e)
+        {
+            // The index still works from memory.
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Rewrites the log with only the live entries, replacing it atomically.
+     */
+    private synchronized void compact() throws IOException
+    {
+        close();
+
+        final Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        long lines = 0;
+
+        try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8))
+        {
+            for (Map.Entry<Key, Entry> entry : entries.entrySet())
+            {
+                if (entry.getKey().path.toString().indexOf('\n') < 0)
+                {
+                    writeLine(writer, entry.getKey(), entry.getValue());
+                    lines++;
+                }
+            }
+        }
+
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        logLines = lines;
+    }
+
+    private static void writeLine(BufferedWriter writer, Key key, Entry entry) throws IOException
+    {
+        writer.write(key.algorithm.getName() + " " + entry.size + " " + entry.modified + " " + entry.digest + " " + key.path);
+        writer.newLine();
+    }
+
+    private static class Key
+    {
+        private final Path path;
+        private final FTPHashAlgorithm algorithm;
+
+        private Key(Path path, FTPHashAlgorithm algorithm)
+        {
+            this.path = path;
+            this.algorithm = algorithm;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof Key))
+            {
+                return false;
+            }
+
+            final Key key = (Key) other;
+            return path.equals(key.path) && algorithm == key.algorithm;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return path.hashCode() * 31 + algorithm.hashCode();
+        }
+    }
+
+    private static class Entry
+    {
+        private final long size;
+        private final long modified;
+        private final String digest;
+
+        private Entry(long size, long modified, String digest)
+        {
+            this.size = size;
+            this.modified = modified;
+            this.digest = digest;
+        }
+    }
+}
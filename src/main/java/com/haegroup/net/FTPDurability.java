@@ -0,0 +1,17 @@
+package com.haegroup.net;
+
+/**
+ * How far an upload is synced to disk before its completion reply is sent.
+ */
+public enum FTPDurability
+{
+    /**
+     * Leave flushing to the operating system.
+     */
+    NONE,
+
+    /**
+     * Sync each file before replying.
+     */
+    FSYNC_ON_CLOSE
+}
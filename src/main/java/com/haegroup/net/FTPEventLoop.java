@@ -0,0 +1,182 @@
+package com.haegroup.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Single threaded selector loop multiplexing many control sessions. All selection key changes happen on the loop
+ * thread, other threads hand work to it through {@link #execute(Runnable)}.
+ */
+class FTPEventLoop implements Runnable, Closeable
+{
+    private final Selector selector;
+    private final ExecutorService workerService;
+    private final ExecutorService handOffService;
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final List<FTPChannelSession> handOffs = new ArrayList<>();
+
+    private volatile boolean running = true;
+
+    /**
+     * @param workerService  Runs the blocking commands of sessions on the loop.
+     * @param handOffService Runs sessions that left the loop, for as long as they last.
+     */
+    FTPEventLoop(ExecutorService workerService, ExecutorService handOffService) throws IOException
+    {
+        this.selector = Selector.open();
+        this.workerService = workerService;
+        this.handOffService = handOffService;
+    }
+
+    ExecutorService getWorkerService()
+    {
+        return workerService;
+    }
+
+    /**
+     * Runs the task on the loop thread.
+     */
+    void execute(Runnable task)
+    {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    void register(FTPChannelSession session)
+    {
+        execute(() -> {
+            try
+            {
+                session.open(session.getChannel().register(selector, SelectionKey.OP_READ, session));
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+                session.close();
+            }
+        });
+    }
+
+    /**
+     * Removes the session from the selector and continues it on a thread of its own in blocking mode, once its key has
+     * been deregistered.
+     */
+    void handOff(FTPChannelSession session)
+    {
+        session.getKey().cancel();
+        handOffs.add(session);
+    }
+
+    @Override
+    public void run()
+    {
+        while (running)
+        {
+            try
+            {
+                selector.select();
+
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                {
+                    try
+                    {
+                        task.run();
+                    }
+                    catch (RuntimeException e)
+                    {
+                        // One session's failure must not end the loop all the others are on.
+                        e.printStackTrace();
+                    }
+                }
+
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+
+                    final FTPChannelSession session = (FTPChannelSession) key.attachment();
+                    if (!key.isValid())
+                    {
+                        continue;
+                    }
+
+                    try
+                    {
+                        if (key.isWritable())
+                        {
+                            session.flush();
+                        }
+
+                        if (key.isValid() && key.isReadable())
+                        {
+                            session.read();
+                        }
+                    }
+                    catch (RuntimeException e)
+                    {
+                        // Such as a key cancelled by the session closing on another thread.
+                        e.printStackTrace();
+                        session.close();
+                    }
+                }
+
+                if (!handOffs.isEmpty())
+                {
+                    // Flush the cancelled keys so the channels can switch back to blocking mode.
+                    selector.selectNow();
+
+                    for (FTPChannelSession session : handOffs)
+                    {
+                        try
+                        {
+                            handOffService.execute(session::continueBlocking);
+                        }
+                        catch (RejectedExecutionException e)
+                        {
+                            // Stopping.
+                            session.close();
+                        }
+                    }
+
+                    handOffs.clear();
+                }
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+
+        for (SelectionKey key : new ArrayList<>(selector.keys()))
+        {
+            ((FTPChannelSession) key.attachment()).close();
+        }
+
+        try
+        {
+            selector.close();
+        }
+        catch (IOException ignored)
+        {
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        running = false;
+        selector.wakeup();
+    }
+}
@@ -0,0 +1,18 @@
+package com.haegroup.net;
+
+/**
+ * Threading model used for control sessions and data transfers.
+ */
+public enum FTPExecutorMode
+{
+    /**
+     * Bounded pools of named platform threads.
+     */
+    PLATFORM,
+
+    /**
+     * One virtual thread per session and per transfer, falling back to {@link #PLATFORM} on runtimes without
+     * virtual threads.
+     */
+    VIRTUAL
+}
@@ -0,0 +1,128 @@
+package com.haegroup.net;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors for sessions and transfers. Virtual threads are looked up reflectively so the server still
+ * builds and runs on runtimes that predate them.
+ */
+final class FTPExecutors
+{
+    private FTPExecutors()
+    {
+    }
+
+    /**
+     * Creates an executor for the given mode.
+     *
+     * @param mode               Requested threading model.
+     * @param name               Thread name prefix.
+     * @param maxPlatformThreads Pool size when platform threads are used.
+     */
+    static ExecutorService newExecutor(FTPExecutorMode mode, String name, int maxPlatformThreads)
+    {
+        if (mode == FTPExecutorMode.VIRTUAL)
+        {
+            final ExecutorService executorService = newVirtualThreadExecutor(name);
+            if (executorService != null)
+            {
+                return executorService;
+            }
+
+            System.out.println("Virtual threads are not available, using " + maxPlatformThreads + " platform threads for " + name + ".");
+        }
+
+        return Executors.newFixedThreadPool(maxPlatformThreads, new NamedThreadFactory(name));
+    }
+
+    /**
+     * Creates an executor without a bound on its threads, for tasks that each hold one for long, such as whole
+     * sessions. Virtual threads are used if the mode asks for them and the runtime has them, otherwise platform
+     * threads are made as needed.
+     */
+    static ExecutorService newUnboundedExecutor(FTPExecutorMode mode, String name)
+    {
+        if (mode == FTPExecutorMode.VIRTUAL)
+        {
+            final ExecutorService executorService = newVirtualThreadExecutor(name);
+            if (executorService != null)
+            {
+                return executorService;
+            }
+        }
+
+        return Executors.newCachedThreadPool(new NamedThreadFactory(name));
+    }
+
+    /**
+     * Returns true if the runtime supports virtual threads.
+     */
+    static boolean isVirtualThreadSupported()
+    {
+        return newVirtualThreadFactory("probe") != null;
+    }
+
+    private static ExecutorService newVirtualThreadExecutor(String name)
+    {
+        final ThreadFactory threadFactory = newVirtualThreadFactory(name);
+        if (threadFactory == null)
+        {
+            return null;
+        }
+
+        try
+        {
+            final Method method = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) method.invoke(null, threadFactory);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            return null;
+        }
+    }
+
+    private static ThreadFactory newVirtualThreadFactory(String name)
+    {
+        try
+        {
+            // Thread.ofVirtual().name(name + "-", 0).factory()
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        }
+        catch (ReflectiveOperationException | UnsupportedOperationException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Creates daemon platform threads named after the pool.
+     */
+    static class NamedThreadFactory implements ThreadFactory
+    {
+        private final String name;
+        private final AtomicInteger counter = new AtomicInteger();
+
+        NamedThreadFactory(String name)
+        {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            final Thread thread = new Thread(runnable, name + "-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.haegroup.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process wide cache of memory mapped files for RETR. Concurrent downloads of the same file share one mapping, and
+ * entries are keyed by size and modification time so a changed file is never served stale. Where the file system
+ * identifies files, hard links to the same file share a mapping too. The number of mapped bytes is bounded, least
+ * recently used mappings are dropped first.
+ *
+ * Dropped mappings are unmapped by the garbage collector, Java offers no way to do it eagerly.
+ */
+class FTPFileCache
+{
+    private final long capacity;
+    private final long maxEntrySize;
+
+    private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long size;
+
+    /**
+     * The last file system found unable to map files, so misses on it skip straight to null.
+     */
+    private volatile FileSystem unmappableFileSystem;
+
+    /**
+     * @param capacity Maximum number of mapped bytes, 0 disables the cache.
+     */
+    FTPFileCache(long capacity)
+    {
+        this.capacity = capacity;
+        this.maxEntrySize = Math.min(capacity / 4, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns a private view of the mapped file, mapping it if needed, or null if the file is not cacheable.
+     */
+    ByteBuffer get(Path path, BasicFileAttributes attributes) throws IOException
+    {
+        final long fileSize = attributes.size();
+        final long modified = attributes.lastModifiedTime().toMillis();
+
+        if (fileSize == 0 || fileSize > maxEntrySize)
+        {
+            return null;
+        }
+
+        final Path normalized = path.toAbsolutePath().normalize();
+        final Object key = attributes.fileKey() != null ? attributes.fileKey() : normalized;
+
+        if (normalized.getFileSystem() == unmappableFileSystem)
+        {
+            return null;
+        }
+
+        synchronized (this)
+        {
+            final Entry entry = entries.get(key);
+
+            if (entry != null && entry.size == fileSize && entry.modified == modified)
+            {
+                return entry.buffer.duplicate();
+            }
+        }
+
+        // Opened and mapped outside the lock, so a slow miss does not hold up every other download.
+        final MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(normalized, StandardOpenOption.READ))
+        {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+        }
+        catch (UnsupportedOperationException e)
+        {
+            // A file system that cannot map, such as one in memory.
+            unmappableFileSystem = normalized.getFileSystem();
+            return null;
+        }
+
+        synchronized (this)
+        {
+            final Entry entry = entries.get(key);
+
+            // Another download mapped it meanwhile, share theirs and let the garbage collector have this one.
+            if (entry != null && entry.size == fileSize && entry.modified == modified)
+            {
+                return entry.buffer.duplicate();
+            }
+
+            remove(key);
+            evict(fileSize);
+
+            entries.put(key, new Entry(buffer, fileSize, modified));
+            size += fileSize;
+
+            return buffer.duplicate();
+        }
+    }
+
+    /**
+     * Drops the mapping of a file that has been written or deleted.
+     */
+    void invalidate(Path path)
+    {
+        final Path normalized = path.toAbsolutePath().normalize();
+
+        Object fileKey = null;
+        try
+        {
+            fileKey = Files.readAttributes(normalized, BasicFileAttributes.class).fileKey();
+        }
+        catch (IOException ignored)
+        {
+            // Deleted, nothing can open it by the path any more.
+        }
+
+        synchronized (this)
+        {
+            remove(normalized);
+
+            if (fileKey != null)
+            {
+                remove(fileKey);
+            }
+        }
+    }
+
+    synchronized long size()
+    {
+        return size;
+    }
+
+    private void remove(Object key)
+    {
+        final Entry entry = entries.remove(key);
+        if (entry != null)
+        {
+            size -= entry.size;
+        }
+    }
+
+    private void evict(long required)
+    {
+        final Iterator<Map.Entry<Object, Entry>> iterator = entries.entrySet().iterator();
+
+        while (size + required > capacity && iterator.hasNext())
+        {
+            size -= iterator.next().getValue().size;
+            iterator.remove();
+        }
+    }
+
+    private static class Entry
+    {
+        private final MappedByteBuffer buffer;
+        private final long size;
+        private final long modified;
+
+        private Entry(MappedByteBuffer buffer, long size, long modified)
+        {
+            this.buffer = buffer;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.haegroup.net;
+
+/**
+ * Checksums the server can report with HASH and the XCRC family of commands.
+ */
+public enum FTPHashAlgorithm
+{
+    /**
+     * CRC-32 as in zlib, which is what XCRC clients expect.
+     */
+    CRC32("CRC32"),
+
+    MD5("MD5"),
+
+    SHA_1("SHA-1"),
+
+    SHA_256("SHA-256"),
+
+    SHA_512("SHA-512");
+
+    private final String name;
+
+    FTPHashAlgorithm(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * Returns the name used by HASH and the Java security providers.
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Returns the algorithm with the given name, ignoring case, or null.
+     */
+    static FTPHashAlgorithm forName(String name)
+    {
+        for (FTPHashAlgorithm algorithm : values())
+        {
+            if (algorithm.name.equalsIgnoreCase(name))
+            {
+                return algorithm;
+            }
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,421 @@
+package com.haegroup.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.CRC32;
+
+/**
+ * Computes file checksums for HASH and the XCRC family, looking them up in the {@link FTPDigestIndex} first.
+ *
+ * CRC32 of a large file is split into chunks hashed in parallel on a fork join pool, and the chunk results combined
+ * as zlib's crc32_combine does. MD5 and the SHA family chain each block into the next, so they are read through
+ * once on the calling thread.
+ */
+class FTPHasher implements Closeable
+{
+    private static final long MIN_CHUNK_SIZE = 8L * 1024 * 1024;
+
+    /**
+     * Reversed CRC-32 polynomial.
+     */
+    private static final long CRC32_POLYNOMIAL = 0xEDB88320L;
+
+    private final ForkJoinPool pool;
+    private final FTPDigestIndex index;
+
+    /**
+     * @param indexPath File the digest index persists to, or null to keep it in memory only.
+     */
+    FTPHasher(int parallelism, Path indexPath) throws IOException
+    {
+        this.pool = new ForkJoinPool(parallelism);
+        this.index = new FTPDigestIndex(indexPath);
+    }
+
+    /**
+     * Returns the lowercase hex digest of a regular file.
+     */
+    String digest(Path path, FTPHashAlgorithm algorithm) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+
+            final String cached = index.get(path, algorithm, attributes);
+            if (cached != null)
+            {
+                return cached;
+            }
+
+            final String digest;
+
+            if (algorithm == FTPHashAlgorithm.CRC32)
+            {
+                digest = hex(crc32(channel, attributes.size()));
+            }
+            else
+            {
+                final Digester digester = new Digester(algorithm);
+                final ByteBuffer buffer = FTPBufferPool.TRANSFER.acquire();
+
+                try
+                {
+                    long position = 0;
+                    int count;
+
+                    while ((count = channel.read(buffer, position)) >= 0)
+                    {
+                        buffer.flip();
+                        digester.update(buffer);
+                        buffer.clear();
+                        position += count;
+                    }
+                }
+                finally
+                {
+                    FTPBufferPool.TRANSFER.release(buffer);
+                }
+
+                digest = digester.hex();
+            }
+
+            // A file written to while it was read has no single digest.
+            if (sameVersion(attributes, Files.readAttributes(path, BasicFileAttributes.class)))
+            {
+                index.put(path, algorithm, attributes, digest);
+            }
+
+            return digest;
+        }
+    }
+
+    /**
+     * Returns digesters for hashing an upload as it is written.
+     *
+     * @param required An algorithm needed whether it is configured or not, or null.
+     */
+    static List<Digester> digesters(FTPHashAlgorithm[] algorithms, FTPHashAlgorithm required)
+    {
+        final List<Digester> digesters = new ArrayList<>(algorithms.length + 1);
+
+        for (FTPHashAlgorithm algorithm : algorithms)
+        {
+            digesters.add(new Digester(algorithm));
+        }
+
+        if (required != null && find(digesters, required) == null)
+        {
+            digesters.add(new Digester(required));
+        }
+
+        return digesters;
+    }
+
+    /**
+     * Returns the digester for the algorithm, or null.
+     */
+    static Digester find(List<Digester> digesters, FTPHashAlgorithm algorithm)
+    {
+        for (Digester digester : digesters)
+        {
+            if (digester.algorithm == algorithm)
+            {
+                return digester;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Indexes the digests of a file that has just been written in full.
+     */
+    void record(Path path, List<Digester> digesters) throws IOException
+    {
+        final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+
+        for (Digester digester : digesters)
+        {
+            index.put(path, digester.algorithm, attributes, digester.hex());
+        }
+    }
+
+    /**
+     * Drops the digests of a file that is being written, or has been written or deleted.
+     */
+    void invalidate(Path path)
+    {
+        index.invalidate(path);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        pool.shutdown();
+        index.close();
+    }
+
+    private long crc32(FileChannel channel, long size) throws IOException
+    {
+        final long chunkSize = Math.max(MIN_CHUNK_SIZE, size / (pool.getParallelism() * 4L));
+
+        try
+        {
+            return pool.invoke(new Crc32Task(channel, 0, size, chunkSize));
+        }
+        catch (UncheckedIOException e)
+        {
+            throw e.getCause();
+        }
+    }
+
+    private static boolean sameVersion(BasicFileAttributes before, BasicFileAttributes after)
+    {
+        return before.size() == after.size() && before.lastModifiedTime().equals(after.lastModifiedTime());
+    }
+
+    private static String hex(long crc)
+    {
+        return String.format("%08x", crc);
+    }
+
+    /**
+     * Returns the CRC of two blocks from their own CRCs and the second's length, by applying the length's worth of
+     * zeros to the first CRC as GF(2) matrix powers.
+     */
+    static long combine(long crc1, long crc2, long length2)
+    {
+        if (length2 <= 0)
+        {
+            return crc1;
+        }
+
+        final long[] even = new long[32];
+        final long[] odd = new long[32];
+
+        // The operator for one zero bit.
+        odd[0] = CRC32_POLYNOMIAL;
+        long row = 1;
+        for (int n = 1; n < 32; n++)
+        {
+            odd[n] = row;
+            row <<= 1;
+        }
+
+        // Two zero bits, then four.
+        square(even, odd);
+        square(odd, even);
+
+        // Each pass squares again, for one zero byte, two, four, and so on through the bits of the length.
+        do
+        {
+            square(even, odd);
+            if ((length2 & 1) != 0)
+            {
+                crc1 = times(even, crc1);
+            }
+            length2 >>= 1;
+
+            if (length2 == 0)
+            {
+                break;
+            }
+
+            square(odd, even);
+            if ((length2 & 1) != 0)
+            {
+                crc1 = times(odd, crc1);
+            }
+            length2 >>= 1;
+        }
+        while (length2 != 0);
+
+        return crc1 ^ crc2;
+    }
+
+    private static long times(long[] matrix, long vector)
+    {
+        long sum = 0;
+
+        for (int i = 0; vector != 0; i++, vector >>>= 1)
+        {
+            if ((vector & 1) != 0)
+            {
+                sum ^= matrix[i];
+            }
+        }
+
+        return sum;
+    }
+
+    private static void square(long[] square, long[] matrix)
+    {
+        for (int n = 0; n < 32; n++)
+        {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+
+    /**
+     * CRC32 of a range of the file, split in halves until the halves fit in a chunk.
+     */
+    private static class Crc32Task extends RecursiveTask<Long>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+        private final long chunkSize;
+
+        private Crc32Task(FileChannel channel, long start, long end, long chunkSize)
+        {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected Long compute()
+        {
+            if (end - start > chunkSize)
+            {
+                final long middle = start + (end - start) / 2;
+
+                final Crc32Task first = new Crc32Task(channel, start, middle, chunkSize);
+                final Crc32Task second = new Crc32Task(channel, middle, end, chunkSize);
+
+                first.fork();
+                final long secondCrc = second.compute();
+
+                return combine(first.join(), secondCrc, end - middle);
+            }
+
+            final CRC32 crc = new CRC32();
+            final ByteBuffer buffer = FTPBufferPool.TRANSFER.acquire();
+
+            try
+            {
+                long position = start;
+
+                while (position < end)
+                {
+                    buffer.limit((int) Math.min(buffer.capacity(), end - position));
+
+                    final int count = channel.read(buffer, position);
+                    if (count < 0)
+                    {
+                        // Truncated while hashing, the digest won't be indexed.
+                        break;
+                    }
+
+                    buffer.flip();
+                    crc.update(buffer);
+                    buffer.clear();
+                    position += count;
+                }
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+            finally
+            {
+                FTPBufferPool.TRANSFER.release(buffer);
+            }
+
+            return crc.getValue();
+        }
+    }
+
+    /**
+     * Running digest of a stream with one algorithm.
+     */
+    static class Digester
+    {
+        private final FTPHashAlgorithm algorithm;
+        private final CRC32 crc;
+        private final MessageDigest messageDigest;
+
+        private String hex;
+
+        Digester(FTPHashAlgorithm algorithm)
+        {
+            this.algorithm = algorithm;
+
+            if (algorithm == FTPHashAlgorithm.CRC32)
+            {
+                this.crc = new CRC32();
+                this.messageDigest = null;
+            }
+            else
+            {
+                this.crc = null;
+
+                try
+                {
+                    this.messageDigest = MessageDigest.getInstance(algorithm.getName());
+                }
+                catch (NoSuchAlgorithmException e)
+                {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+
+        /**
+         * Consumes the buffer's remaining bytes.
+         */
+        void update(ByteBuffer buffer)
+        {
+            if (crc != null)
+            {
+                crc.update(buffer);
+            }
+            else
+            {
+                messageDigest.update(buffer);
+            }
+        }
+
+        /**
+         * Returns the lowercase hex digest, ending the stream.
+         */
+        String hex()
+        {
+            if (hex != null)
+            {
+                return hex;
+            }
+
+            if (crc != null)
+            {
+                hex = FTPHasher.hex(crc.getValue());
+                return hex;
+            }
+
+            final StringBuilder builder = new StringBuilder();
+            for (byte b : messageDigest.digest())
+            {
+                builder.append(String.format("%02x", b & 0xff));
+            }
+
+            hex = builder.toString();
+            return hex;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.haegroup.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Set;
+
+/**
+ * Formats directory listings. Entries are streamed from a {@link DirectoryStream} with one bulk attribute read each,
+ * in either the "ls -l" format used by LIST or the machine readable facts used by MLSD and MLST.
+ */
+final class FTPListing
+{
+    static final String FORMAT_LIST = "LIST";
+    static final String FORMAT_MLSD = "MLSD";
+
+    private static final DateTimeFormatter DATE_TIME_FORMATTER_YEAR = DateTimeFormatter.ofPattern("MMM dd  yyyy");
+    private static final DateTimeFormatter DATE_TIME_FORMATTER_TIME = DateTimeFormatter.ofPattern("MMM dd HH:mm");
+    private static final DateTimeFormatter DATE_TIME_FORMATTER_FACT = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+
+    /**
+     * Attributes read from the file system last listed, a server lists from one file system so this rarely changes.
+     */
+    private static volatile AttributeType lastAttributeType;
+
+    private FTPListing()
+    {
+    }
+
+    /**
+     * Writes one line per entry of the directory.
+     */
+    static void write(Path directory, String format, OutputStream outputStream) throws IOException
+    {
+        final LocalDateTime yearCutoff = LocalDateTime.now().minusDays(180);
+        final StringBuilder line = new StringBuilder(128);
+
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory))
+        {
+            for (Path entry : entries)
+            {
+                final BasicFileAttributes attributes;
+                try
+                {
+                    attributes = readAttributes(entry);
+                }
+                catch (IOException e)
+                {
+                    // Removed while listing.
+                    continue;
+                }
+
+                line.setLength(0);
+
+                if (FORMAT_MLSD.equals(format))
+                {
+                    appendFacts(line, attributes).append(' ').append(entry.getFileName());
+                }
+                else
+                {
+                    appendLongFormat(line, attributes, entry.getFileName().toString(), yearCutoff);
+                }
+
+                line.append(FTPServer.LINE_END);
+                outputStream.write(line.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    /**
+     * Returns the MLST facts of a single file, without its name.
+     */
+    static String facts(Path path) throws IOException
+    {
+        return appendFacts(new StringBuilder(96), readAttributes(path)).toString();
+    }
+
+    /**
+     * Formats a time as the UTC "YYYYMMDDHHMMSS" used by the modify fact and MDTM.
+     */
+    static String modifyTime(FileTime time)
+    {
+        return DATE_TIME_FORMATTER_FACT.format(LocalDateTime.ofInstant(time.toInstant(), ZoneOffset.UTC));
+    }
+
+    /**
+     * Reads every attribute the listing needs in a single call.
+     */
+    static BasicFileAttributes readAttributes(Path path) throws IOException
+    {
+        final FileSystem fileSystem = path.getFileSystem();
+
+        AttributeType attributeType = lastAttributeType;
+        if (attributeType == null || attributeType.fileSystem != fileSystem)
+        {
+            attributeType = new AttributeType(fileSystem);
+            lastAttributeType = attributeType;
+        }
+
+        return Files.readAttributes(path, attributeType.type);
+    }
+
+    private static void appendLongFormat(StringBuilder line, BasicFileAttributes attributes, String name, LocalDateTime yearCutoff)
+    {
+        final LocalDateTime modified = LocalDateTime.ofInstant(attributes.lastModifiedTime().toInstant(), ZoneOffset.UTC);
+
+        line.append(attributes.isDirectory() ? 'd' : '-');
+        line.append(permissions(attributes));
+        line.append("   1 ");
+        padRight(line, "temp", 10).append(' ');
+        padRight(line, "temp", 10).append(' ');
+        padLeft(line, Long.toString(attributes.size()), 10).append(' ');
+        line.append((modified.isBefore(yearCutoff) ? DATE_TIME_FORMATTER_YEAR : DATE_TIME_FORMATTER_TIME).format(modified));
+        line.append(' ').append(name);
+    }
+
+    private static StringBuilder appendFacts(StringBuilder line, BasicFileAttributes attributes)
+    {
+        final String permissions = permissions(attributes);
+        final boolean readable = permissions.charAt(0) == 'r';
+        final boolean writable = permissions.charAt(1) == 'w';
+
+        line.append("type=").append(attributes.isDirectory() ? "dir" : "file").append(';');
+        line.append("size=").append(attributes.size()).append(';');
+        line.append("modify=").append(modifyTime(attributes.lastModifiedTime())).append(';');
+
+        line.append("perm=");
+        if (attributes.isDirectory())
+        {
+            line.append(readable ? "el" : "").append(writable ? "cdfmp" : "");
+        }
+        else
+        {
+            line.append(readable ? "r" : "").append(writable ? "adfw" : "");
+        }
+        line.append(';');
+
+        if (attributes instanceof PosixFileAttributes)
+        {
+            line.append("unix.mode=0").append(Integer.toOctalString(mode(((PosixFileAttributes) attributes).permissions()))).append(';');
+        }
+
+        return line;
+    }
+
+    /**
+     * Returns the nine "rwxrwxrwx" permission characters.
+     */
+    private static String permissions(BasicFileAttributes attributes)
+    {
+        if (attributes instanceof PosixFileAttributes)
+        {
+            return PosixFilePermissions.toString(((PosixFileAttributes) attributes).permissions());
+        }
+
+        if (attributes instanceof DosFileAttributes && ((DosFileAttributes) attributes).isReadOnly())
+        {
+            return attributes.isDirectory() ? "r-xr-xr-x" : "r--r--r--";
+        }
+
+        return attributes.isDirectory() ? "rwxrwxrwx" : "rw-rw-rw-";
+    }
+
+    /**
+     * Returns the numeric mode of a set of permissions, as in 0755.
+     */
+    static int mode(Set<PosixFilePermission> permissions)
+    {
+        int mode = 0;
+
+        for (PosixFilePermission permission : permissions)
+        {
+            // The enum is declared in rwx order, owner first.
+            mode |= 1 << (8 - permission.ordinal());
+        }
+
+        return mode;
+    }
+
+    private static StringBuilder padRight(StringBuilder line, String value, int width)
+    {
+        line.append(value);
+
+        for (int i = value.length(); i < width; i++)
+        {
+            line.append(' ');
+        }
+
+        return line;
+    }
+
+    private static StringBuilder padLeft(StringBuilder line, String value, int width)
+    {
+        for (int i = value.length(); i < width; i++)
+        {
+            line.append(' ');
+        }
+
+        return line.append(value);
+    }
+
+    /**
+     * The richest attributes a file system supports that a listing can use.
+     */
+    private static class AttributeType
+    {
+        private final FileSystem fileSystem;
+        private final Class<? extends BasicFileAttributes> type;
+
+        private AttributeType(FileSystem fileSystem)
+        {
+            final Set<String> views = fileSystem.supportedFileAttributeViews();
+
+            this.fileSystem = fileSystem;
+            this.type = views.contains("posix") ? PosixFileAttributes.class
+                    : views.contains("dos") ? DosFileAttributes.class
+                    : BasicFileAttributes.class;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.haegroup.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of encoded directory listings, keyed by the resolved directory and listing format. Directories are watched
+ * while they have listings cached, and any change reported by the file system, or made by the server itself, drops
+ * their listings. Cached bytes are bounded, least recently used listings are dropped first.
+ */
+class FTPListingCache implements Runnable, Closeable
+{
+    private final long capacity;
+
+    private final LinkedHashMap<Key, byte[]> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final Map<Path, Watch> watchKeys = new HashMap<>();
+    private long size;
+
+    /**
+     * Incremented on every invalidation, so listings built across a change are not stored.
+     */
+    private long version;
+
+    private final WatchService watchService;
+
+    /**
+     * @param capacity Maximum number of cached bytes, 0 disables the cache.
+     */
+    FTPListingCache(long capacity) throws IOException
+    {
+        this.capacity = capacity;
+        this.watchService = capacity > 0 ? FileSystems.getDefault().newWatchService() : null;
+
+        if (watchService != null)
+        {
+            new FTPExecutors.NamedThreadFactory("ftp-listing-watch").newThread(this).start();
+        }
+    }
+
+    /**
+     * Returns the largest listing that will be stored.
+     */
+    int maxEntrySize()
+    {
+        return (int) Math.min(capacity / 4, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the cached listing, or null.
+     */
+    synchronized byte[] get(Path directory, String format)
+    {
+        return entries.get(new Key(directory.toAbsolutePath().normalize(), format));
+    }
+
+    /**
+     * Returns the version to pass to {@link #put(Path, String, byte[], long)}, taken before building a listing.
+     */
+    synchronized long version()
+    {
+        return version;
+    }
+
+    /**
+     * Stores a listing unless the cache was invalidated since the given version.
+     */
+    synchronized void put(Path directory, String format, byte[] listing, long listingVersion)
+    {
+        if (watchService == null || listingVersion != version || listing.length > maxEntrySize())
+        {
+            return;
+        }
+
+        // The watch service only hears about the default file system.
+        if (directory.getFileSystem() != FileSystems.getDefault())
+        {
+            return;
+        }
+
+        final Path key = directory.toAbsolutePath().normalize();
+
+        // Only cache what we will hear about.
+        Watch watch = watchKeys.get(key);
+        if (watch == null)
+        {
+            try
+            {
+                watch = new Watch(key.register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY));
+            }
+            catch (IOException | UnsupportedOperationException e)
+            {
+                return;
+            }
+
+            watchKeys.put(key, watch);
+        }
+
+        final byte[] previous = entries.put(new Key(key, format), listing);
+        if (previous != null)
+        {
+            size -= previous.length;
+        }
+        else
+        {
+            watch.listings++;
+        }
+        size += listing.length;
+
+        final Iterator<Map.Entry<Key, byte[]>> iterator = entries.entrySet().iterator();
+        while (size > capacity && iterator.hasNext())
+        {
+            final Map.Entry<Key, byte[]> entry = iterator.next();
+            iterator.remove();
+            removed(entry);
+        }
+    }
+
+    /**
+     * Drops the listings of a directory.
+     */
+    synchronized void invalidate(Path directory)
+    {
+        version++;
+
+        final Path path = directory.toAbsolutePath().normalize();
+
+        final Iterator<Map.Entry<Key, byte[]>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext())
+        {
+            final Map.Entry<Key, byte[]> entry = iterator.next();
+            if (entry.getKey().directory.equals(path))
+            {
+                iterator.remove();
+                removed(entry);
+            }
+        }
+    }
+
+    private synchronized void invalidateAll()
+    {
+        version++;
+        entries.clear();
+        size = 0;
+
+        for (Watch watch : watchKeys.values())
+        {
+            watch.key.cancel();
+        }
+        watchKeys.clear();
+    }
+
+    /**
+     * Accounts for a listing that left the cache, and stops watching its directory once nothing of it is cached.
+     */
+    private void removed(Map.Entry<Key, byte[]> entry)
+    {
+        size -= entry.getValue().length;
+
+        final Path directory = entry.getKey().directory;
+        final Watch watch = watchKeys.get(directory);
+        if (watch != null && --watch.listings == 0)
+        {
+            watch.key.cancel();
+            watchKeys.remove(directory);
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        while (true)
+        {
+            final WatchKey watchKey;
+            try
+            {
+                watchKey = watchService.take();
+            }
+            catch (InterruptedException | ClosedWatchServiceException e)
+            {
+                break;
+            }
+
+            final Path directory = (Path) watchKey.watchable();
+
+            boolean overflow = false;
+            for (WatchEvent<?> event : watchKey.pollEvents())
+            {
+                overflow |= event.kind() == StandardWatchEventKinds.OVERFLOW;
+            }
+
+            if (overflow)
+            {
+                invalidateAll();
+            }
+            else
+            {
+                invalidate(directory);
+            }
+
+            if (!watchKey.reset())
+            {
+                // The directory is gone, or no longer watched. It may be watched again under a new key by now.
+                synchronized (this)
+                {
+                    final Watch watch = watchKeys.get(directory);
+                    if (watch != null && watch.key == watchKey)
+                    {
+                        watchKeys.remove(directory);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (watchService != null)
+        {
+            watchService.close();
+        }
+    }
+
+    private static class Watch
+    {
+        private final WatchKey key;
+
+        /**
+         * Number of cached listings of the directory.
+         */
+        private int listings;
+
+        private Watch(WatchKey key)
+        {
+            this.key = key;
+        }
+    }
+
+    private static class Key
+    {
+        private final Path directory;
+        private final String format;
+
+        private Key(Path directory, String format)
+        {
+            this.directory = directory;
+            this.format = format;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof Key))
+            {
+                return false;
+            }
+
+            final Key key = (Key) other;
+            return directory.equals(key.directory) && format.equals(key.format);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return directory.hashCode() * 31 + format.hashCode();
+        }
+    }
+}
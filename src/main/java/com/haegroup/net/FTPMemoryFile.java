@@ -0,0 +1,285 @@
+package com.haegroup.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Contents of a file in an {@link FTPMemoryFileSystem}, held off heap in direct buffers. Chunks start at 4 KB and
+ * double up to 1 MB, so small files stay small and large ones are not copied as they grow. Everything past the size
+ * is kept zeroed, so extending a file never exposes old data.
+ *
+ * Writes are serialized, reads take a snapshot of the chunks and size without locking.
+ */
+class FTPMemoryFile
+{
+    private static final int MIN_CHUNK_SIZE = 4 * 1024;
+    private static final int DOUBLINGS = 8;
+    private static final int MAX_CHUNK_SIZE = MIN_CHUNK_SIZE << DOUBLINGS;
+
+    /**
+     * Position of the first chunk of the maximum size.
+     */
+    private static final long MAX_CHUNK_START = (long) MIN_CHUNK_SIZE * ((1 << DOUBLINGS) - 1);
+
+    private final FTPMemoryFileSystem fileSystem;
+
+    private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+    private volatile long size;
+    private volatile long modified = System.currentTimeMillis();
+
+    /**
+     * Set once the file has been deleted and its memory returned, later writes through open channels are not
+     * counted.
+     */
+    private boolean freed;
+
+    FTPMemoryFile(FTPMemoryFileSystem fileSystem)
+    {
+        this.fileSystem = fileSystem;
+    }
+
+    long size()
+    {
+        return size;
+    }
+
+    long lastModified()
+    {
+        return modified;
+    }
+
+    void setLastModified(long modified)
+    {
+        this.modified = modified;
+    }
+
+    /**
+     * Reads from the position into the buffer.
+     *
+     * @return The number of bytes read, or -1 at the end of the file.
+     */
+    int read(ByteBuffer destination, long position)
+    {
+        final ByteBuffer[] chunks = this.chunks;
+        final long size = Math.min(this.size, capacity(chunks));
+
+        if (position >= size)
+        {
+            return destination.hasRemaining() ? -1 : 0;
+        }
+
+        final int count = (int) Math.min(destination.remaining(), size - position);
+        int done = 0;
+
+        while (done < count)
+        {
+            final ByteBuffer slice = slice(chunks, position + done, count - done);
+
+            done += slice.remaining();
+            destination.put(slice);
+        }
+
+        return count;
+    }
+
+    /**
+     * Writes the buffer to the chunks that currently hold the range, straight from memory.
+     *
+     * @return The number of bytes written, less than asked if the channel would not take more.
+     */
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException
+    {
+        final ByteBuffer[] chunks = this.chunks;
+        final long end = Math.min(Math.min(size, capacity(chunks)), position + count);
+
+        long done = 0;
+
+        while (position + done < end)
+        {
+            final ByteBuffer slice = slice(chunks, position + done, end - position - done);
+            final int remaining = slice.remaining();
+            final int written = target.write(slice);
+
+            done += written;
+
+            if (written < remaining)
+            {
+                break;
+            }
+        }
+
+        return done;
+    }
+
+    /**
+     * Writes the buffer at the position, growing the file as needed.
+     */
+    synchronized int write(ByteBuffer source, long position) throws IOException
+    {
+        final int count = source.remaining();
+        final long end = position + count;
+
+        ensureCapacity(end);
+
+        final ByteBuffer[] chunks = this.chunks;
+        int done = 0;
+
+        while (done < count)
+        {
+            final ByteBuffer slice = slice(chunks, position + done, count - done);
+            final int length = slice.remaining();
+
+            final ByteBuffer part = source.duplicate();
+            part.limit(part.position() + length);
+            slice.put(part);
+
+            source.position(source.position() + length);
+            done += length;
+        }
+
+        if (end > size)
+        {
+            size = end;
+        }
+
+        modified = System.currentTimeMillis();
+
+        return count;
+    }
+
+    /**
+     * Shortens the file to the size, returning the chunks past it.
+     */
+    synchronized void truncate(long newSize)
+    {
+        if (newSize >= size)
+        {
+            return;
+        }
+
+        final int keep = newSize == 0 ? 0 : chunkIndex(newSize - 1) + 1;
+
+        // Zero the rest of the last chunk kept, the file may grow into it again.
+        if (keep > 0)
+        {
+            final ByteBuffer last = chunks[keep - 1].duplicate();
+            last.position((int) (newSize - chunkStart(keep - 1)));
+
+            while (last.hasRemaining())
+            {
+                last.put((byte) 0);
+            }
+        }
+
+        release(keep);
+
+        size = newSize;
+        modified = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the file's memory to the file system once it has been deleted.
+     */
+    synchronized void free()
+    {
+        release(0);
+        freed = true;
+    }
+
+    /**
+     * Returns the number of bytes of memory held.
+     */
+    long allocated()
+    {
+        return capacity(chunks);
+    }
+
+    private void ensureCapacity(long end) throws IOException
+    {
+        if (end <= allocated())
+        {
+            return;
+        }
+
+        final int count = chunkIndex(end - 1) + 1;
+        final long required = chunkStart(count - 1) + chunkCapacity(count - 1) - allocated();
+
+        if (!freed)
+        {
+            fileSystem.allocate(required);
+        }
+
+        final ByteBuffer[] grown = Arrays.copyOf(chunks, count);
+        for (int i = chunks.length; i < count; i++)
+        {
+            grown[i] = ByteBuffer.allocateDirect(chunkCapacity(i));
+        }
+
+        chunks = grown;
+    }
+
+    private void release(int keep)
+    {
+        if (keep >= chunks.length)
+        {
+            return;
+        }
+
+        final long before = allocated();
+        chunks = Arrays.copyOf(chunks, keep);
+
+        if (!freed)
+        {
+            fileSystem.release(before - allocated());
+        }
+    }
+
+    /**
+     * Returns a view of the chunk holding the position, up to the length or the chunk's end.
+     */
+    private static ByteBuffer slice(ByteBuffer[] chunks, long position, long length)
+    {
+        final int index = chunkIndex(position);
+        final int offset = (int) (position - chunkStart(index));
+
+        final ByteBuffer slice = chunks[index].duplicate();
+        slice.position(offset);
+        slice.limit((int) Math.min(slice.capacity(), offset + length));
+
+        return slice;
+    }
+
+    /**
+     * Returns the bytes the chunks hold, which bounds what a reader of them may see even if the file was truncated
+     * since.
+     */
+    private static long capacity(ByteBuffer[] chunks)
+    {
+        return chunks.length == 0 ? 0 : chunkStart(chunks.length - 1) + chunkCapacity(chunks.length - 1);
+    }
+
+    private static int chunkIndex(long position)
+    {
+        if (position < MAX_CHUNK_START)
+        {
+            // Chunk i starts at MIN_CHUNK_SIZE * (2^i - 1).
+            return 63 - Long.numberOfLeadingZeros(position / MIN_CHUNK_SIZE + 1);
+        }
+
+        return DOUBLINGS + (int) ((position - MAX_CHUNK_START) / MAX_CHUNK_SIZE);
+    }
+
+    private static long chunkStart(int index)
+    {
+        return index < DOUBLINGS
+                ? (long) MIN_CHUNK_SIZE * ((1L << index) - 1)
+                : MAX_CHUNK_START + (long) (index - DOUBLINGS) * MAX_CHUNK_SIZE;
+    }
+
+    private static int chunkCapacity(int index)
+    {
+        return index < DOUBLINGS ? MIN_CHUNK_SIZE << index : MAX_CHUNK_SIZE;
+    }
+}
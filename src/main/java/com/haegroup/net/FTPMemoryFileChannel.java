@@ -0,0 +1,290 @@
+package com.haegroup.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Channel to a file in an {@link FTPMemoryFileSystem}. Positional reads and writes go straight to the file's
+ * chunks, and transfers to another channel write from them without copying.
+ */
+class FTPMemoryFileChannel extends FileChannel
+{
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+    private final FTPMemoryFile file;
+    private final boolean readable;
+    private final boolean writable;
+    private final boolean append;
+
+    private long position;
+
+    FTPMemoryFileChannel(FTPMemoryFile file, boolean readable, boolean writable, boolean append)
+    {
+        this.file = file;
+        this.readable = readable;
+        this.writable = writable;
+        this.append = append;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer destination) throws IOException
+    {
+        checkReadable();
+
+        final int count = file.read(destination, position);
+        if (count > 0)
+        {
+            position += count;
+        }
+
+        return count;
+    }
+
+    @Override
+    public synchronized long read(ByteBuffer[] destinations, int offset, int length) throws IOException
+    {
+        checkReadable();
+
+        long total = 0;
+
+        for (int i = offset; i < offset + length; i++)
+        {
+            final int count = file.read(destinations[i], position);
+            if (count < 0)
+            {
+                return total > 0 ? total : -1;
+            }
+
+            position += count;
+            total += count;
+
+            if (destinations[i].hasRemaining())
+            {
+                break;
+            }
+        }
+
+        return total;
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer source) throws IOException
+    {
+        checkWritable();
+
+        if (append)
+        {
+            position = file.size();
+        }
+
+        final int count = file.write(source, position);
+        position += count;
+
+        return count;
+    }
+
+    @Override
+    public synchronized long write(ByteBuffer[] sources, int offset, int length) throws IOException
+    {
+        long total = 0;
+
+        for (int i = offset; i < offset + length; i++)
+        {
+            total += write(sources[i]);
+        }
+
+        return total;
+    }
+
+    @Override
+    public synchronized long position() throws IOException
+    {
+        checkOpen();
+
+        return position;
+    }
+
+    @Override
+    public synchronized FileChannel position(long newPosition) throws IOException
+    {
+        checkOpen();
+
+        if (newPosition < 0)
+        {
+            throw new IllegalArgumentException("Negative position " + newPosition + ".");
+        }
+
+        position = newPosition;
+
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException
+    {
+        checkOpen();
+
+        return file.size();
+    }
+
+    @Override
+    public synchronized FileChannel truncate(long size) throws IOException
+    {
+        checkWritable();
+
+        if (size < 0)
+        {
+            throw new IllegalArgumentException("Negative size " + size + ".");
+        }
+
+        file.truncate(size);
+        position = Math.min(position, size);
+
+        return this;
+    }
+
+    @Override
+    public void force(boolean metaData) throws IOException
+    {
+        // Nothing to sync to.
+        checkOpen();
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException
+    {
+        checkReadable();
+
+        return file.transferTo(position, count, target);
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel source, long position, long count) throws IOException
+    {
+        checkWritable();
+
+        final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(TRANSFER_BUFFER_SIZE, count));
+        long done = 0;
+
+        while (done < count)
+        {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count - done));
+
+            if (source.read(buffer) <= 0)
+            {
+                break;
+            }
+
+            buffer.flip();
+            while (buffer.hasRemaining())
+            {
+                done += file.write(buffer, position + done);
+            }
+        }
+
+        return done;
+    }
+
+    @Override
+    public int read(ByteBuffer destination, long position) throws IOException
+    {
+        checkReadable();
+
+        return file.read(destination, position);
+    }
+
+    @Override
+    public int write(ByteBuffer source, long position) throws IOException
+    {
+        checkWritable();
+
+        return file.write(source, position);
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size)
+    {
+        throw new UnsupportedOperationException("Memory files cannot be mapped.");
+    }
+
+    /**
+     * Locks are granted at once, the file is only shared within this process.
+     */
+    @Override
+    public FileLock lock(long position, long size, boolean shared) throws IOException
+    {
+        checkOpen();
+
+        return new Lock(this, position, size, shared);
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException
+    {
+        return lock(position, size, shared);
+    }
+
+    @Override
+    protected void implCloseChannel()
+    {
+    }
+
+    private void checkOpen() throws ClosedChannelException
+    {
+        if (!isOpen())
+        {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private void checkReadable() throws ClosedChannelException
+    {
+        checkOpen();
+
+        if (!readable)
+        {
+            throw new NonReadableChannelException();
+        }
+    }
+
+    private void checkWritable() throws ClosedChannelException
+    {
+        checkOpen();
+
+        if (!writable)
+        {
+            throw new NonWritableChannelException();
+        }
+    }
+
+    private static class Lock extends FileLock
+    {
+        private boolean valid = true;
+
+        private Lock(FileChannel channel, long position, long size, boolean shared)
+        {
+            super(channel, position, size, shared);
+        }
+
+        @Override
+        public synchronized boolean isValid()
+        {
+            return valid && channel().isOpen();
+        }
+
+        @Override
+        public synchronized void release()
+        {
+            valid = false;
+        }
+    }
+}
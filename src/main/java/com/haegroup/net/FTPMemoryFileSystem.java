@@ -0,0 +1,919 @@
+package com.haegroup.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AccessMode;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileStoreAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * File system held in memory, for serving files without a disk behind them, so benchmarks and load tests measure
+ * the server rather than the storage. File contents are kept off heap by {@link FTPMemoryFile}, up to a fixed
+ * capacity. Only basic attributes are supported, and the file system cannot be watched or mapped.
+ *
+ * Pass it to {@link FTPServer#setFileSystem(FileSystem)}, the server's directory is then a path in it.
+ */
+public class FTPMemoryFileSystem extends FileSystem
+{
+    private final FTPMemoryFileSystemProvider provider;
+    private final long capacity;
+
+    private final Directory root = new Directory();
+    private final FTPMemoryPath rootPath = new FTPMemoryPath(this, "/");
+    private final Store store = new Store();
+
+    private final AtomicLong used = new AtomicLong();
+
+    /**
+     * Guards the directory tree, file contents are guarded by the files themselves.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private volatile boolean open = true;
+
+    FTPMemoryFileSystem(FTPMemoryFileSystemProvider provider, long capacity)
+    {
+        this.provider = provider;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns a new, empty file system holding up to the given number of bytes.
+     */
+    public static FTPMemoryFileSystem newFileSystem(long capacity)
+    {
+        return new FTPMemoryFileSystem(FTPMemoryFileSystemProvider.INSTANCE, capacity);
+    }
+
+    /**
+     * Returns the number of bytes of memory held by files.
+     */
+    public long getUsedSpace()
+    {
+        return used.get();
+    }
+
+    @Override
+    public FTPMemoryFileSystemProvider provider()
+    {
+        return provider;
+    }
+
+    @Override
+    public void close()
+    {
+        open = false;
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return open;
+    }
+
+    @Override
+    public boolean isReadOnly()
+    {
+        return false;
+    }
+
+    @Override
+    public String getSeparator()
+    {
+        return "/";
+    }
+
+    @Override
+    public Iterable<Path> getRootDirectories()
+    {
+        return Collections.<Path>singletonList(rootPath);
+    }
+
+    @Override
+    public Iterable<FileStore> getFileStores()
+    {
+        return Collections.<FileStore>singletonList(store);
+    }
+
+    @Override
+    public Set<String> supportedFileAttributeViews()
+    {
+        return Collections.singleton("basic");
+    }
+
+    @Override
+    public Path getPath(String first, String... more)
+    {
+        if (more.length == 0)
+        {
+            return new FTPMemoryPath(this, first);
+        }
+
+        final StringBuilder path = new StringBuilder(first);
+
+        for (String name : more)
+        {
+            if (!name.isEmpty())
+            {
+                if (path.length() > 0)
+                {
+                    path.append('/');
+                }
+
+                path.append(name);
+            }
+        }
+
+        return new FTPMemoryPath(this, path.toString());
+    }
+
+    @Override
+    public PathMatcher getPathMatcher(String syntaxAndPattern)
+    {
+        final int colon = syntaxAndPattern.indexOf(':');
+        if (colon < 0)
+        {
+            throw new IllegalArgumentException("Expected syntax:pattern, got " + syntaxAndPattern + ".");
+        }
+
+        final String syntax = syntaxAndPattern.substring(0, colon);
+        final String pattern = syntaxAndPattern.substring(colon + 1);
+
+        final Pattern regex;
+        if (syntax.equalsIgnoreCase("regex"))
+        {
+            regex = Pattern.compile(pattern);
+        }
+        else if (syntax.equalsIgnoreCase("glob"))
+        {
+            regex = Pattern.compile(globToRegex(pattern));
+        }
+        else
+        {
+            throw new UnsupportedOperationException("Unsupported path matcher syntax " + syntax + ".");
+        }
+
+        return path -> regex.matcher(path.toString()).matches();
+    }
+
+    @Override
+    public UserPrincipalLookupService getUserPrincipalLookupService()
+    {
+        throw new UnsupportedOperationException("Memory file systems have no users.");
+    }
+
+    @Override
+    public WatchService newWatchService()
+    {
+        throw new UnsupportedOperationException("Memory file systems cannot be watched.");
+    }
+
+    Path getRoot()
+    {
+        return rootPath;
+    }
+
+    FileStore getStore()
+    {
+        return store;
+    }
+
+    /**
+     * Reserves memory for file contents.
+     */
+    void allocate(long bytes) throws IOException
+    {
+        while (true)
+        {
+            final long current = used.get();
+
+            if (current + bytes > capacity)
+            {
+                throw new FileSystemException(null, null, "No space left in memory file system.");
+            }
+
+            if (used.compareAndSet(current, current + bytes))
+            {
+                return;
+            }
+        }
+    }
+
+    void release(long bytes)
+    {
+        used.addAndGet(-bytes);
+    }
+
+    FTPMemoryFileChannel newFileChannel(FTPMemoryPath path, Set<? extends OpenOption> options) throws IOException
+    {
+        final boolean write = options.contains(StandardOpenOption.WRITE) || options.contains(StandardOpenOption.APPEND);
+        final boolean read = options.contains(StandardOpenOption.READ) || !write;
+        final boolean append = options.contains(StandardOpenOption.APPEND);
+
+        if (read && append)
+        {
+            throw new IllegalArgumentException("READ and APPEND are not allowed together.");
+        }
+
+        // Opening an existing file to read it leaves the tree as it is.
+        if (!write)
+        {
+            final Node node = node(path);
+
+            if (node.file == null)
+            {
+                throw new FileSystemException(path.toString(), null, "Is a directory");
+            }
+
+            return new FTPMemoryFileChannel(node.file, true, false, false);
+        }
+
+        final FTPMemoryFile file;
+
+        lock.writeLock().lock();
+        try
+        {
+            checkOpen();
+
+            final Directory parent = parent(path);
+            final String name = name(path);
+            final Node node = parent.children.get(name);
+
+            if (node == null)
+            {
+                if (!options.contains(StandardOpenOption.CREATE) && !options.contains(StandardOpenOption.CREATE_NEW))
+                {
+                    throw new NoSuchFileException(path.toString());
+                }
+
+                final Node created = new Node(new FTPMemoryFile(this));
+                parent.children.put(name, created);
+                parent.touch();
+
+                file = created.file;
+            }
+            else
+            {
+                if (options.contains(StandardOpenOption.CREATE_NEW))
+                {
+                    throw new FileAlreadyExistsException(path.toString());
+                }
+
+                if (node.file == null)
+                {
+                    throw new FileSystemException(path.toString(), null, "Is a directory");
+                }
+
+                file = node.file;
+
+                if (options.contains(StandardOpenOption.TRUNCATE_EXISTING))
+                {
+                    file.truncate(0);
+                }
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+
+        return new FTPMemoryFileChannel(file, read, true, append);
+    }
+
+    DirectoryStream<Path> newDirectoryStream(FTPMemoryPath path, DirectoryStream.Filter<? super Path> filter) throws IOException
+    {
+        final List<Path> entries = new ArrayList<>();
+
+        lock.readLock().lock();
+        try
+        {
+            checkOpen();
+
+            final Node node = lookup(path);
+            if (node == null)
+            {
+                throw new NoSuchFileException(path.toString());
+            }
+
+            if (!(node instanceof Directory))
+            {
+                throw new NotDirectoryException(path.toString());
+            }
+
+            for (String name : ((Directory) node).children.keySet())
+            {
+                final Path entry = path.resolve(name);
+
+                if (filter == null || filter.accept(entry))
+                {
+                    entries.add(entry);
+                }
+            }
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+
+        return new DirectoryStream<Path>()
+        {
+            private boolean iterated;
+
+            @Override
+            public Iterator<Path> iterator()
+            {
+                if (iterated)
+                {
+                    throw new IllegalStateException("Directory stream already iterated.");
+                }
+
+                iterated = true;
+                return entries.iterator();
+            }
+
+            @Override
+            public void close()
+            {
+            }
+        };
+    }
+
+    void createDirectory(FTPMemoryPath path) throws IOException
+    {
+        lock.writeLock().lock();
+        try
+        {
+            checkOpen();
+
+            final Directory parent = parent(path);
+            final String name = name(path);
+
+            if (parent.children.containsKey(name))
+            {
+                throw new FileAlreadyExistsException(path.toString());
+            }
+
+            parent.children.put(name, new Directory());
+            parent.touch();
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void delete(FTPMemoryPath path) throws IOException
+    {
+        lock.writeLock().lock();
+        try
+        {
+            checkOpen();
+
+            final Directory parent = parent(path);
+            final String name = name(path);
+            final Node node = parent.children.get(name);
+
+            if (node == null)
+            {
+                throw new NoSuchFileException(path.toString());
+            }
+
+            if (node instanceof Directory && !((Directory) node).children.isEmpty())
+            {
+                throw new DirectoryNotEmptyException(path.toString());
+            }
+
+            parent.children.remove(name);
+            parent.touch();
+
+            if (node.file != null)
+            {
+                node.file.free();
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Moves or copies a file or an empty directory, atomically as everything here is.
+     */
+    void transfer(FTPMemoryPath source, FTPMemoryPath target, boolean move, CopyOption... options) throws IOException
+    {
+        boolean replace = false;
+        boolean copyAttributes = move;
+
+        for (CopyOption option : options)
+        {
+            replace |= option == StandardCopyOption.REPLACE_EXISTING;
+            copyAttributes |= option == StandardCopyOption.COPY_ATTRIBUTES;
+        }
+
+        lock.writeLock().lock();
+        try
+        {
+            checkOpen();
+
+            final Directory sourceParent = parent(source);
+            final String sourceName = name(source);
+            final Node node = sourceParent.children.get(sourceName);
+
+            if (node == null)
+            {
+                throw new NoSuchFileException(source.toString());
+            }
+
+            final Directory targetParent = parent(target);
+            final String targetName = name(target);
+            final Node existing = targetParent.children.get(targetName);
+
+            if (existing == node)
+            {
+                return;
+            }
+
+            if (move && node instanceof Directory && target.toAbsolutePath().normalize().startsWith(source.toAbsolutePath().normalize()))
+            {
+                throw new FileSystemException(source.toString(), target.toString(), "Cannot move a directory into itself");
+            }
+
+            if (existing != null)
+            {
+                if (!replace)
+                {
+                    throw new FileAlreadyExistsException(target.toString());
+                }
+
+                if (existing instanceof Directory && !((Directory) existing).children.isEmpty())
+                {
+                    throw new DirectoryNotEmptyException(target.toString());
+                }
+            }
+
+            final Node moved;
+
+            if (move)
+            {
+                sourceParent.children.remove(sourceName);
+                sourceParent.touch();
+                moved = node;
+            }
+            else
+            {
+                moved = node instanceof Directory ? new Directory() : new Node(copy(node.file));
+
+                if (copyAttributes)
+                {
+                    moved.created = node.created;
+                    moved.setLastModified(node.lastModified());
+                }
+            }
+
+            targetParent.children.put(targetName, moved);
+            targetParent.touch();
+
+            if (existing != null && existing.file != null)
+            {
+                existing.file.free();
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    BasicFileAttributes readAttributes(FTPMemoryPath path) throws IOException
+    {
+        return node(path).attributes();
+    }
+
+    /**
+     * Sets the times of a file, a null time is left as it is. Only the modification time is kept.
+     */
+    void setTimes(FTPMemoryPath path, FileTime lastModifiedTime, FileTime creationTime) throws IOException
+    {
+        final Node node = node(path);
+
+        if (lastModifiedTime != null)
+        {
+            node.setLastModified(lastModifiedTime.toMillis());
+        }
+
+        if (creationTime != null)
+        {
+            node.created = creationTime.toMillis();
+        }
+    }
+
+    void checkAccess(FTPMemoryPath path, AccessMode... modes) throws IOException
+    {
+        node(path);
+
+        for (AccessMode mode : modes)
+        {
+            if (mode == AccessMode.EXECUTE)
+            {
+                throw new AccessDeniedException(path.toString());
+            }
+        }
+    }
+
+    boolean isSameFile(FTPMemoryPath path, FTPMemoryPath other) throws IOException
+    {
+        return path.equals(other) || node(path) == node(other);
+    }
+
+    private Node node(FTPMemoryPath path) throws IOException
+    {
+        lock.readLock().lock();
+        try
+        {
+            checkOpen();
+
+            final Node node = lookup(path);
+            if (node == null)
+            {
+                throw new NoSuchFileException(path.toString());
+            }
+
+            return node;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the node at the path, or null. Called with the lock held.
+     */
+    private Node lookup(FTPMemoryPath path)
+    {
+        Node node = root;
+
+        for (String name : ((FTPMemoryPath) path.toAbsolutePath().normalize()).names())
+        {
+            if (!(node instanceof Directory))
+            {
+                return null;
+            }
+
+            node = ((Directory) node).children.get(name);
+            if (node == null)
+            {
+                return null;
+            }
+        }
+
+        return node;
+    }
+
+    /**
+     * Returns the directory the path's last name is in. Called with the lock held.
+     */
+    private Directory parent(FTPMemoryPath path) throws IOException
+    {
+        final FTPMemoryPath normalized = (FTPMemoryPath) path.toAbsolutePath().normalize();
+        final Path parentPath = normalized.getParent();
+
+        if (parentPath == null)
+        {
+            throw new FileSystemException(path.toString(), null, "The root cannot be changed");
+        }
+
+        final Node parent = lookup((FTPMemoryPath) parentPath);
+        if (parent == null)
+        {
+            throw new NoSuchFileException(parentPath.toString());
+        }
+
+        if (!(parent instanceof Directory))
+        {
+            throw new NotDirectoryException(parentPath.toString());
+        }
+
+        return (Directory) parent;
+    }
+
+    private static String name(FTPMemoryPath path)
+    {
+        return path.toAbsolutePath().normalize().getFileName().toString();
+    }
+
+    private FTPMemoryFile copy(FTPMemoryFile source) throws IOException
+    {
+        final FTPMemoryFile copy = new FTPMemoryFile(this);
+        final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+        long position = 0;
+        int count;
+
+        while ((count = source.read(buffer, position)) > 0)
+        {
+            buffer.flip();
+            copy.write(buffer, position);
+            buffer.clear();
+            position += count;
+        }
+
+        return copy;
+    }
+
+    private void checkOpen()
+    {
+        if (!open)
+        {
+            throw new ClosedFileSystemException();
+        }
+    }
+
+    /**
+     * Converts a glob to a regular expression, supporting *, **, ?, [...] and {a,b}.
+     */
+    private static String globToRegex(String glob)
+    {
+        final StringBuilder regex = new StringBuilder();
+        boolean inGroup = false;
+
+        for (int i = 0; i < glob.length(); i++)
+        {
+            final char c = glob.charAt(i);
+
+            switch (c)
+            {
+                case '*':
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '*')
+                    {
+                        regex.append(".*");
+                        i++;
+                    }
+                    else
+                    {
+                        regex.append("[^/]*");
+                    }
+                    break;
+
+                case '?':
+                    regex.append("[^/]");
+                    break;
+
+                case '[':
+                    final int end = glob.indexOf(']', i + 1);
+                    if (end < 0)
+                    {
+                        regex.append("\\[");
+                        break;
+                    }
+
+                    final String set = glob.substring(i + 1, end);
+                    regex.append('[').append(set.startsWith("!") ? "^" + set.substring(1) : set).append(']');
+                    i = end;
+                    break;
+
+                case '{':
+                    regex.append("(?:");
+                    inGroup = true;
+                    break;
+
+                case '}':
+                    regex.append(inGroup ? ")" : "\\}");
+                    inGroup = false;
+                    break;
+
+                case ',':
+                    regex.append(inGroup ? "|" : ",");
+                    break;
+
+                default:
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                    break;
+            }
+        }
+
+        return regex.toString();
+    }
+
+    /**
+     * A file or, as {@link Directory}, a directory. Files get their size and modification time from their contents.
+     */
+    private static class Node
+    {
+        private final FTPMemoryFile file;
+
+        private long created = System.currentTimeMillis();
+        private volatile long modified = created;
+
+        private Node(FTPMemoryFile file)
+        {
+            this.file = file;
+        }
+
+        long lastModified()
+        {
+            return file != null ? file.lastModified() : modified;
+        }
+
+        void setLastModified(long time)
+        {
+            if (file != null)
+            {
+                file.setLastModified(time);
+            }
+            else
+            {
+                modified = time;
+            }
+        }
+
+        BasicFileAttributes attributes()
+        {
+            final boolean directory = file == null;
+            final long size = directory ? 0 : file.size();
+            final FileTime modifiedTime = FileTime.fromMillis(lastModified());
+            final FileTime creationTime = FileTime.fromMillis(created);
+            final Object key = this;
+
+            return new BasicFileAttributes()
+            {
+                @Override
+                public FileTime lastModifiedTime()
+                {
+                    return modifiedTime;
+                }
+
+                @Override
+                public FileTime lastAccessTime()
+                {
+                    return modifiedTime;
+                }
+
+                @Override
+                public FileTime creationTime()
+                {
+                    return creationTime;
+                }
+
+                @Override
+                public boolean isRegularFile()
+                {
+                    return !directory;
+                }
+
+                @Override
+                public boolean isDirectory()
+                {
+                    return directory;
+                }
+
+                @Override
+                public boolean isSymbolicLink()
+                {
+                    return false;
+                }
+
+                @Override
+                public boolean isOther()
+                {
+                    return false;
+                }
+
+                @Override
+                public long size()
+                {
+                    return size;
+                }
+
+                @Override
+                public Object fileKey()
+                {
+                    return key;
+                }
+            };
+        }
+    }
+
+    private static class Directory extends Node
+    {
+        private final TreeMap<String, Node> children = new TreeMap<>();
+
+        private Directory()
+        {
+            super(null);
+        }
+
+        private void touch()
+        {
+            setLastModified(System.currentTimeMillis());
+        }
+    }
+
+    private class Store extends FileStore
+    {
+        @Override
+        public String name()
+        {
+            return "memory";
+        }
+
+        @Override
+        public String type()
+        {
+            return "memory";
+        }
+
+        @Override
+        public boolean isReadOnly()
+        {
+            return false;
+        }
+
+        @Override
+        public long getTotalSpace()
+        {
+            return capacity;
+        }
+
+        @Override
+        public long getUsableSpace()
+        {
+            return capacity - used.get();
+        }
+
+        @Override
+        public long getUnallocatedSpace()
+        {
+            return capacity - used.get();
+        }
+
+        @Override
+        public boolean supportsFileAttributeView(Class<? extends FileAttributeView> type)
+        {
+            return type == BasicFileAttributeView.class;
+        }
+
+        @Override
+        public boolean supportsFileAttributeView(String name)
+        {
+            return name.equals("basic");
+        }
+
+        @Override
+        public <V extends FileStoreAttributeView> V getFileStoreAttributeView(Class<V> type)
+        {
+            return null;
+        }
+
+        @Override
+        public Object getAttribute(String attribute)
+        {
+            switch (attribute)
+            {
+                case "totalSpace":
+                    return getTotalSpace();
+
+                case "usableSpace":
+                    return getUsableSpace();
+
+                case "unallocatedSpace":
+                    return getUnallocatedSpace();
+
+                default:
+                    throw new UnsupportedOperationException("No file store attribute " + attribute + ".");
+            }
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package com.haegroup.net;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessMode;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.LinkOption;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Provider of {@link FTPMemoryFileSystem}s. It is not installed, file systems are created with
+ * {@link FTPMemoryFileSystem#newFileSystem(long)} and reached through their paths only.
+ */
+class FTPMemoryFileSystemProvider extends FileSystemProvider
+{
+    static final String SCHEME = "ftpmem";
+
+    static final FTPMemoryFileSystemProvider INSTANCE = new FTPMemoryFileSystemProvider();
+
+    @Override
+    public String getScheme()
+    {
+        return SCHEME;
+    }
+
+    /**
+     * Creates a file system, its capacity in bytes is the "capacity" entry of the environment.
+     */
+    @Override
+    public FileSystem newFileSystem(URI uri, Map<String, ?> env)
+    {
+        final Object capacity = env.get("capacity");
+
+        return new FTPMemoryFileSystem(this, capacity == null ? Long.MAX_VALUE : Long.parseLong(capacity.toString()));
+    }
+
+    @Override
+    public FileSystem getFileSystem(URI uri)
+    {
+        throw new FileSystemNotFoundException("Memory file systems are not registered by URI.");
+    }
+
+    @Override
+    public Path getPath(URI uri)
+    {
+        throw new FileSystemNotFoundException("Memory file systems are not registered by URI.");
+    }
+
+    @Override
+    public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attributes) throws IOException
+    {
+        return newFileChannel(path, options, attributes);
+    }
+
+    @Override
+    public FileChannel newFileChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attributes) throws IOException
+    {
+        final FTPMemoryPath memoryPath = check(path);
+
+        return fileSystem(memoryPath).newFileChannel(memoryPath, options);
+    }
+
+    @Override
+    public DirectoryStream<Path> newDirectoryStream(Path directory, DirectoryStream.Filter<? super Path> filter) throws IOException
+    {
+        final FTPMemoryPath memoryPath = check(directory);
+
+        return fileSystem(memoryPath).newDirectoryStream(memoryPath, filter);
+    }
+
+    @Override
+    public void createDirectory(Path directory, FileAttribute<?>... attributes) throws IOException
+    {
+        final FTPMemoryPath memoryPath = check(directory);
+
+        fileSystem(memoryPath).createDirectory(memoryPath);
+    }
+
+    @Override
+    public void delete(Path path) throws IOException
+    {
+        final FTPMemoryPath memoryPath = check(path);
+
+        fileSystem(memoryPath).delete(memoryPath);
+    }
+
+    @Override
+    public void copy(Path source, Path target, CopyOption... options) throws IOException
+    {
+        final FTPMemoryPath memorySource = check(source);
+
+        fileSystem(memorySource).transfer(memorySource, sameFileSystem(memorySource, target), false, options);
+    }
+
+    @Override
+    public void move(Path source, Path target, CopyOption... options) throws IOException
+    {
+        final FTPMemoryPath memorySource = check(source);
+
+        fileSystem(memorySource).transfer(memorySource, sameFileSystem(memorySource, target), true, options);
+    }
+
+    @Override
+    public boolean isSameFile(Path path, Path other) throws IOException
+    {
+        final FTPMemoryPath memoryPath = check(path);
+
+        if (!(other instanceof FTPMemoryPath) || other.getFileSystem() != path.getFileSystem())
+        {
+            return false;
+        }
+
+        return fileSystem(memoryPath).isSameFile(memoryPath, (FTPMemoryPath) other);
+    }
+
+    @Override
+    public boolean isHidden(Path path)
+    {
+        final Path name = check(path).getFileName();
+
+        return name != null && name.toString().startsWith(".");
+    }
+
+    @Override
+    public FileStore getFileStore(Path path)
+    {
+        return fileSystem(check(path)).getStore();
+    }
+
+    @Override
+    public void checkAccess(Path path, AccessMode... modes) throws IOException
+    {
+        final FTPMemoryPath memoryPath = check(path);
+
+        fileSystem(memoryPath).checkAccess(memoryPath, modes);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <V extends FileAttributeView> V getFileAttributeView(Path path, Class<V> type, LinkOption... options)
+    {
+        final FTPMemoryPath memoryPath = check(path);
+
+        if (type != BasicFileAttributeView.class)
+        {
+            return null;
+        }
+
+        return (V) new BasicFileAttributeView()
+        {
+            @Override
+            public String name()
+            {
+                return "basic";
+            }
+
+            @Override
+            public BasicFileAttributes readAttributes() throws IOException
+            {
+                return fileSystem(memoryPath).readAttributes(memoryPath);
+            }
+
+            @Override
+            public void setTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime) throws IOException
+            {
+                fileSystem(memoryPath).setTimes(memoryPath, lastModifiedTime, createTime);
+            }
+        };
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type, LinkOption... options) throws IOException
+    {
+        final FTPMemoryPath memoryPath = check(path);
+
+        if (type != BasicFileAttributes.class)
+        {
+            throw new UnsupportedOperationException("Memory files only have basic attributes.");
+        }
+
+        return (A) fileSystem(memoryPath).readAttributes(memoryPath);
+    }
+
+    @Override
+    public Map<String, Object> readAttributes(Path path, String attributes, LinkOption... options) throws IOException
+    {
+        final BasicFileAttributes basic = readAttributes(path, BasicFileAttributes.class);
+
+        final int colon = attributes.indexOf(':');
+        if (colon >= 0 && !attributes.substring(0, colon).equals("basic"))
+        {
+            throw new UnsupportedOperationException("Memory files only have basic attributes.");
+        }
+
+        final Map<String, Object> all = new HashMap<>();
+        all.put("size", basic.size());
+        all.put("lastModifiedTime", basic.lastModifiedTime());
+        all.put("lastAccessTime", basic.lastAccessTime());
+        all.put("creationTime", basic.creationTime());
+        all.put("isRegularFile", basic.isRegularFile());
+        all.put("isDirectory", basic.isDirectory());
+        all.put("isSymbolicLink", basic.isSymbolicLink());
+        all.put("isOther", basic.isOther());
+        all.put("fileKey", basic.fileKey());
+
+        final Map<String, Object> values = new HashMap<>();
+
+        for (String name : attributes.substring(colon + 1).split(","))
+        {
+            if (name.equals("*"))
+            {
+                values.putAll(all);
+            }
+            else if (all.containsKey(name))
+            {
+                values.put(name, all.get(name));
+            }
+            else
+            {
+                throw new IllegalArgumentException("No attribute " + name + ".");
+            }
+        }
+
+        return values;
+    }
+
+    @Override
+    public void setAttribute(Path path, String attribute, Object value, LinkOption... options) throws IOException
+    {
+        final FTPMemoryPath memoryPath = check(path);
+        final String name = attribute.startsWith("basic:") ? attribute.substring(6) : attribute;
+
+        switch (name)
+        {
+            case "lastModifiedTime":
+                fileSystem(memoryPath).setTimes(memoryPath, (FileTime) value, null);
+                break;
+
+            case "creationTime":
+                fileSystem(memoryPath).setTimes(memoryPath, null, (FileTime) value);
+                break;
+
+            case "lastAccessTime":
+                // Not kept.
+                break;
+
+            default:
+                throw new UnsupportedOperationException("Cannot set " + attribute + " on memory files.");
+        }
+    }
+
+    private static FTPMemoryPath check(Path path)
+    {
+        if (!(path instanceof FTPMemoryPath))
+        {
+            throw new ProviderMismatchException();
+        }
+
+        return (FTPMemoryPath) path;
+    }
+
+    private static FTPMemoryPath sameFileSystem(FTPMemoryPath path, Path other)
+    {
+        final FTPMemoryPath memoryPath = check(other);
+
+        if (memoryPath.getFileSystem() != path.getFileSystem())
+        {
+            throw new ProviderMismatchException("Cannot copy or move between memory file systems.");
+        }
+
+        return memoryPath;
+    }
+
+    private static FTPMemoryFileSystem fileSystem(FTPMemoryPath path)
+    {
+        return (FTPMemoryFileSystem) path.getFileSystem();
+    }
+}
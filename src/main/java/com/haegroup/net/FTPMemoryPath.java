@@ -0,0 +1,455 @@
+package com.haegroup.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.FileSystem;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Path in an {@link FTPMemoryFileSystem}, with '/' as the separator. Paths are kept as strings without repeated or
+ * trailing separators, and split into names only when asked for them.
+ */
+class FTPMemoryPath implements Path
+{
+    private static final String[] NO_NAMES = new String[0];
+
+    private final FTPMemoryFileSystem fileSystem;
+    private final String path;
+
+    private String[] names;
+
+    FTPMemoryPath(FTPMemoryFileSystem fileSystem, String path)
+    {
+        this.fileSystem = fileSystem;
+        this.path = clean(path);
+    }
+
+    /**
+     * Returns the names of the path, none for the root.
+     */
+    String[] names()
+    {
+        if (names == null)
+        {
+            if (path.equals("/"))
+            {
+                names = NO_NAMES;
+            }
+            else
+            {
+                names = (isAbsolute() ? path.substring(1) : path).split("/");
+            }
+        }
+
+        return names;
+    }
+
+    @Override
+    public FileSystem getFileSystem()
+    {
+        return fileSystem;
+    }
+
+    @Override
+    public boolean isAbsolute()
+    {
+        return path.startsWith("/");
+    }
+
+    @Override
+    public Path getRoot()
+    {
+        return isAbsolute() ? fileSystem.getRoot() : null;
+    }
+
+    @Override
+    public Path getFileName()
+    {
+        final String[] names = names();
+
+        if (names.length == 0)
+        {
+            return null;
+        }
+
+        return names.length == 1 && !isAbsolute() ? this : new FTPMemoryPath(fileSystem, names[names.length - 1]);
+    }
+
+    @Override
+    public Path getParent()
+    {
+        final String[] names = names();
+
+        if (names.length == 0 || (names.length == 1 && !isAbsolute()))
+        {
+            return null;
+        }
+
+        return join(isAbsolute(), names, 0, names.length - 1);
+    }
+
+    @Override
+    public int getNameCount()
+    {
+        return names().length;
+    }
+
+    @Override
+    public Path getName(int index)
+    {
+        final String[] names = names();
+
+        if (index < 0 || index >= names.length)
+        {
+            throw new IllegalArgumentException("No name " + index + " in " + path + ".");
+        }
+
+        return new FTPMemoryPath(fileSystem, names[index]);
+    }
+
+    @Override
+    public Path subpath(int beginIndex, int endIndex)
+    {
+        final String[] names = names();
+
+        if (beginIndex < 0 || endIndex > names.length || beginIndex >= endIndex)
+        {
+            throw new IllegalArgumentException("No names " + beginIndex + " .. " + endIndex + " in " + path + ".");
+        }
+
+        return join(false, names, beginIndex, endIndex);
+    }
+
+    @Override
+    public boolean startsWith(Path other)
+    {
+        if (!(other instanceof FTPMemoryPath) || other.getFileSystem() != fileSystem || other.isAbsolute() != isAbsolute())
+        {
+            return false;
+        }
+
+        final String[] names = names();
+        final String[] otherNames = ((FTPMemoryPath) other).names();
+
+        if (otherNames.length > names.length)
+        {
+            return false;
+        }
+
+        for (int i = 0; i < otherNames.length; i++)
+        {
+            if (!names[i].equals(otherNames[i]))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean startsWith(String other)
+    {
+        return startsWith(fileSystem.getPath(other));
+    }
+
+    @Override
+    public boolean endsWith(Path other)
+    {
+        if (!(other instanceof FTPMemoryPath) || other.getFileSystem() != fileSystem)
+        {
+            return false;
+        }
+
+        if (other.isAbsolute())
+        {
+            return equals(other);
+        }
+
+        final String[] names = names();
+        final String[] otherNames = ((FTPMemoryPath) other).names();
+
+        if (otherNames.length > names.length)
+        {
+            return false;
+        }
+
+        for (int i = 1; i <= otherNames.length; i++)
+        {
+            if (!names[names.length - i].equals(otherNames[otherNames.length - i]))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean endsWith(String other)
+    {
+        return endsWith(fileSystem.getPath(other));
+    }
+
+    @Override
+    public Path normalize()
+    {
+        final List<String> normalized = new ArrayList<>();
+
+        for (String name : names())
+        {
+            if (name.equals(".") || name.isEmpty())
+            {
+                continue;
+            }
+
+            if (name.equals(".."))
+            {
+                if (!normalized.isEmpty() && !normalized.get(normalized.size() - 1).equals(".."))
+                {
+                    normalized.remove(normalized.size() - 1);
+                    continue;
+                }
+
+                // There is nothing above the root.
+                if (isAbsolute())
+                {
+                    continue;
+                }
+            }
+
+            normalized.add(name);
+        }
+
+        final String[] result = normalized.toArray(NO_NAMES);
+
+        return Arrays.equals(result, names()) ? this : join(isAbsolute(), result, 0, result.length);
+    }
+
+    @Override
+    public Path resolve(Path other)
+    {
+        final FTPMemoryPath otherPath = check(other);
+
+        if (otherPath.isAbsolute() || path.isEmpty())
+        {
+            return otherPath;
+        }
+
+        if (otherPath.path.isEmpty())
+        {
+            return this;
+        }
+
+        return new FTPMemoryPath(fileSystem, path + "/" + otherPath.path);
+    }
+
+    @Override
+    public Path resolve(String other)
+    {
+        return resolve(fileSystem.getPath(other));
+    }
+
+    @Override
+    public Path resolveSibling(Path other)
+    {
+        final Path parent = getParent();
+
+        return parent == null ? check(other) : parent.resolve(other);
+    }
+
+    @Override
+    public Path resolveSibling(String other)
+    {
+        return resolveSibling(fileSystem.getPath(other));
+    }
+
+    @Override
+    public Path relativize(Path other)
+    {
+        final FTPMemoryPath otherPath = check(other);
+
+        if (otherPath.isAbsolute() != isAbsolute())
+        {
+            throw new IllegalArgumentException("Cannot relativize " + other + " against " + path + ".");
+        }
+
+        final String[] names = path.isEmpty() ? NO_NAMES : names();
+        final String[] otherNames = otherPath.path.isEmpty() ? NO_NAMES : otherPath.names();
+
+        int common = 0;
+        while (common < names.length && common < otherNames.length && names[common].equals(otherNames[common]))
+        {
+            common++;
+        }
+
+        final StringBuilder relative = new StringBuilder();
+
+        for (int i = common; i < names.length; i++)
+        {
+            relative.append(relative.length() > 0 ? "/.." : "..");
+        }
+
+        for (int i = common; i < otherNames.length; i++)
+        {
+            relative.append(relative.length() > 0 ? "/" : "").append(otherNames[i]);
+        }
+
+        return new FTPMemoryPath(fileSystem, relative.toString());
+    }
+
+    @Override
+    public URI toUri()
+    {
+        try
+        {
+            return new URI(FTPMemoryFileSystemProvider.SCHEME, null, ((FTPMemoryPath) toAbsolutePath()).path, null);
+        }
+        catch (URISyntaxException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public Path toAbsolutePath()
+    {
+        return isAbsolute() ? this : fileSystem.getRoot().resolve(this);
+    }
+
+    @Override
+    public Path toRealPath(LinkOption... options) throws IOException
+    {
+        final Path real = toAbsolutePath().normalize();
+
+        // Throws if there is nothing there.
+        fileSystem.provider().checkAccess(real);
+
+        return real;
+    }
+
+    @Override
+    public File toFile()
+    {
+        throw new UnsupportedOperationException("Memory paths have no java.io.File.");
+    }
+
+    @Override
+    public WatchKey register(WatchService watcher, WatchEvent.Kind<?>[] events, WatchEvent.Modifier... modifiers)
+    {
+        throw new UnsupportedOperationException("Memory file systems cannot be watched.");
+    }
+
+    @Override
+    public WatchKey register(WatchService watcher, WatchEvent.Kind<?>... events)
+    {
+        return register(watcher, events, new WatchEvent.Modifier[0]);
+    }
+
+    @Override
+    public Iterator<Path> iterator()
+    {
+        final List<Path> paths = new ArrayList<>();
+
+        for (String name : names())
+        {
+            paths.add(new FTPMemoryPath(fileSystem, name));
+        }
+
+        return paths.iterator();
+    }
+
+    @Override
+    public int compareTo(Path other)
+    {
+        return path.compareTo(((FTPMemoryPath) other).path);
+    }
+
+    @Override
+    public boolean equals(Object other)
+    {
+        return other instanceof FTPMemoryPath
+                && ((FTPMemoryPath) other).fileSystem == fileSystem
+                && ((FTPMemoryPath) other).path.equals(path);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return path.hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+        return path;
+    }
+
+    private FTPMemoryPath check(Path other)
+    {
+        if (!(other instanceof FTPMemoryPath) || other.getFileSystem() != fileSystem)
+        {
+            throw new ProviderMismatchException();
+        }
+
+        return (FTPMemoryPath) other;
+    }
+
+    private FTPMemoryPath join(boolean absolute, String[] names, int start, int end)
+    {
+        final StringBuilder joined = new StringBuilder(absolute ? "/" : "");
+
+        for (int i = start; i < end; i++)
+        {
+            if (i > start)
+            {
+                joined.append('/');
+            }
+
+            joined.append(names[i]);
+        }
+
+        return new FTPMemoryPath(fileSystem, joined.toString());
+    }
+
+    /**
+     * Drops repeated and trailing separators.
+     */
+    private static String clean(String path)
+    {
+        if (path.indexOf("//") < 0 && (path.length() < 2 || !path.endsWith("/")))
+        {
+            return path;
+        }
+
+        final StringBuilder cleaned = new StringBuilder(path.length());
+
+        for (int i = 0; i < path.length(); i++)
+        {
+            final char c = path.charAt(i);
+
+            if (c != '/' || cleaned.length() == 0 || cleaned.charAt(cleaned.length() - 1) != '/')
+            {
+                cleaned.append(c);
+            }
+        }
+
+        if (cleaned.length() > 1 && cleaned.charAt(cleaned.length() - 1) == '/')
+        {
+            cleaned.setLength(cleaned.length() - 1);
+        }
+
+        return cleaned.toString();
+    }
+}
@@ -0,0 +1,143 @@
+package com.haegroup.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Hands out passive mode listeners. With a port range configured every port in it is bound once at startup and
+ * listeners are recycled between transfers, so PASV is a queue poll and the firewall only needs the range opened.
+ * Without a range a listener is bound on an ephemeral port per request and closed on release.
+ */
+class FTPPassivePortPool implements Closeable
+{
+    private static final int BACKLOG = 16;
+
+    private final boolean pooled;
+
+    private final Queue<ServerSocketChannel> listeners = new ConcurrentLinkedQueue<>();
+    private final List<ServerSocketChannel> allListeners = new ArrayList<>();
+
+    /**
+     * Creates a pool binding ephemeral ports on demand.
+     */
+    FTPPassivePortPool()
+    {
+        this.pooled = false;
+    }
+
+    /**
+     * Creates a pool of listeners bound to every free port in the inclusive range.
+     */
+    FTPPassivePortPool(int minPort, int maxPort) throws IOException
+    {
+        this.pooled = true;
+
+        for (int port = minPort; port <= maxPort; port++)
+        {
+            final ServerSocketChannel listener = ServerSocketChannel.open();
+
+            try
+            {
+                listener.bind(new InetSocketAddress(port), BACKLOG);
+            }
+            catch (IOException e)
+            {
+                // Taken by something else.
+                listener.close();
+                continue;
+            }
+
+            listeners.add(listener);
+            allListeners.add(listener);
+        }
+
+        if (allListeners.isEmpty())
+        {
+            throw new IOException("No passive ports could be bound in " + minPort + " .. " + maxPort + ".");
+        }
+    }
+
+    /**
+     * Returns a listener, or null if every pooled port is in use.
+     *
+     * @param localAddress Address to bind ephemeral listeners to, pooled listeners accept on every address.
+     */
+    ServerSocketChannel acquire(InetAddress localAddress) throws IOException
+    {
+        if (pooled)
+        {
+            return listeners.poll();
+        }
+
+        final ServerSocketChannel listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(localAddress, 0), BACKLOG);
+
+        return listener;
+    }
+
+    /**
+     * Returns a listener once its transfer is over. Nothing may still be accepting on it, the next user of the port
+     * would share its connections.
+     */
+    void release(ServerSocketChannel listener)
+    {
+        if (!pooled)
+        {
+            closeQuietly(listener);
+            return;
+        }
+
+        try
+        {
+            // Drop connections nobody will accept, so the next user gets its own client.
+            listener.configureBlocking(false);
+
+            SocketChannel stray;
+            while ((stray = listener.accept()) != null)
+            {
+                closeQuietly(stray);
+            }
+
+            listener.configureBlocking(true);
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+
+        listeners.add(listener);
+    }
+
+    int available()
+    {
+        return listeners.size();
+    }
+
+    @Override
+    public void close()
+    {
+        for (ServerSocketChannel listener : allListeners)
+        {
+            closeQuietly(listener);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        try
+        {
+            closeable.close();
+        }
+        catch (IOException ignored)
+        {
+        }
+    }
+}
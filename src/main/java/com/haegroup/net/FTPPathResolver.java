@@ -0,0 +1,297 @@
+package com.haegroup.net;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resolves the paths clients send into nodes under the served root. Paths are normalized as they are walked and ".."
+ * stops at the root, so nothing outside it can be named. Symbolic links are followed only if they lead back under the
+ * root. Nodes are interned in a tree shared by all sessions, each holding its virtual path, its file system path and
+ * what was last seen of it on the file system.
+ *
+ * File system checks are trusted for a second, changes made through the server drop them at once.
+ */
+class FTPPathResolver
+{
+    /**
+     * How long a file system check is trusted, which bounds how late changes made outside the server are seen.
+     */
+    private static final long CHECK_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Number of nodes kept before the tree is dropped, clients can name any number of paths.
+     */
+    private static final int MAX_NODES = 64 * 1024;
+
+    private final Path rootPath;
+    private final Path realRootPath;
+    private final Node root;
+    private final AtomicInteger nodeCount = new AtomicInteger();
+
+    FTPPathResolver(Path rootPath)
+    {
+        this.rootPath = rootPath.toAbsolutePath().normalize();
+        this.realRootPath = realPath(this.rootPath);
+        this.root = new Node(null, "/", this.rootPath);
+    }
+
+    Node getRoot()
+    {
+        return root;
+    }
+
+    /**
+     * Resolves a path sent by a client against the current directory. Both '/' and '\' separate names.
+     *
+     * @return The node, or null if a name cannot be a file under the root.
+     */
+    Node resolve(Node current, String pathname)
+    {
+        final int length = pathname.length();
+        Node node = length > 0 && isSeparator(pathname.charAt(0)) ? root : current;
+
+        int start = 0;
+        while (start < length)
+        {
+            int end = start;
+            while (end < length && !isSeparator(pathname.charAt(end)))
+            {
+                end++;
+            }
+
+            final String name = pathname.substring(start, end);
+            start = end + 1;
+
+            if (name.isEmpty() || name.equals("."))
+            {
+                continue;
+            }
+
+            if (name.equals(".."))
+            {
+                // There is nothing above the root.
+                node = node.parent != null ? node.parent : node;
+                continue;
+            }
+
+            node = child(node, name);
+            if (node == null || !isConfined(node))
+            {
+                return null;
+            }
+        }
+
+        return node;
+    }
+
+    /**
+     * Returns whether the node is a directory, checking the file system only if the last check is stale.
+     */
+    boolean isDirectory(Node node)
+    {
+        final long now = System.nanoTime();
+        final Check check = node.directoryCheck;
+
+        if (check != null && now - check.time < CHECK_INTERVAL)
+        {
+            return check.value;
+        }
+
+        final boolean directory = Files.isDirectory(node.path);
+        node.directoryCheck = new Check(directory, now);
+
+        return directory;
+    }
+
+    /**
+     * Returns whether the node stays under the root on the file system, which only a symbolic link can take it out of.
+     * Its parents have been checked on the way down. A link whose target does not exist is refused, a file created
+     * through it would land wherever it points.
+     */
+    private boolean isConfined(Node node)
+    {
+        final long now = System.nanoTime();
+        final Check check = node.confinementCheck;
+
+        if (check != null && now - check.time < CHECK_INTERVAL)
+        {
+            return check.value;
+        }
+
+        boolean confined = true;
+
+        if (Files.isSymbolicLink(node.path))
+        {
+            try
+            {
+                confined = node.path.toRealPath().startsWith(realRootPath);
+            }
+            catch (IOException e)
+            {
+                confined = false;
+            }
+        }
+
+        node.confinementCheck = new Check(confined, now);
+
+        return confined;
+    }
+
+    /**
+     * Drops the file system checks of a path that has been written or deleted, and of everything below it.
+     */
+    void invalidate(Path path)
+    {
+        final Path normalized = path.toAbsolutePath().normalize();
+
+        if (!normalized.startsWith(rootPath))
+        {
+            return;
+        }
+
+        Node node = root;
+
+        if (!normalized.equals(rootPath))
+        {
+            for (Path name : rootPath.relativize(normalized))
+            {
+                node = node.children.get(name.toString());
+                if (node == null)
+                {
+                    return;
+                }
+            }
+        }
+
+        forget(node);
+    }
+
+    private Node child(Node parent, String name)
+    {
+        final Node child = parent.children.get(name);
+        if (child != null)
+        {
+            return child;
+        }
+
+        final Path path;
+        try
+        {
+            path = parent.path.resolve(name);
+        }
+        catch (InvalidPathException e)
+        {
+            return null;
+        }
+
+        // Confinement is checked once, when the node is made. Some names resolve elsewhere, such as drive letters.
+        if (!parent.path.equals(path.getParent()))
+        {
+            return null;
+        }
+
+        if (nodeCount.incrementAndGet() > MAX_NODES)
+        {
+            // Sessions keep the nodes they hold, they are just no longer shared.
+            root.children.clear();
+            nodeCount.set(0);
+        }
+
+        final Node node = new Node(parent, parent == root ? "/" + name : parent.virtualPath + "/" + name, path);
+        final Node existing = parent.children.putIfAbsent(name, node);
+
+        return existing != null ? existing : node;
+    }
+
+    private static void forget(Node node)
+    {
+        node.directoryCheck = null;
+        node.confinementCheck = null;
+
+        for (Node child : node.children.values())
+        {
+            forget(child);
+        }
+    }
+
+    private static Path realPath(Path path)
+    {
+        try
+        {
+            return path.toRealPath();
+        }
+        catch (IOException e)
+        {
+            // Nothing under a missing root can be followed to, links included.
+            return path;
+        }
+    }
+
+    private static boolean isSeparator(char c)
+    {
+        return c == '/' || c == '\\';
+    }
+
+    /**
+     * A normalized path under the root.
+     */
+    static class Node
+    {
+        private final Node parent;
+        private final String virtualPath;
+        private final Path path;
+        private final Map<String, Node> children = new ConcurrentHashMap<>();
+
+        private volatile Check directoryCheck;
+        private volatile Check confinementCheck;
+
+        private Node(Node parent, String virtualPath, Path path)
+        {
+            this.parent = parent;
+            this.virtualPath = virtualPath;
+            this.path = path;
+        }
+
+        /**
+         * Returns the parent, or null for the root.
+         */
+        Node getParent()
+        {
+            return parent;
+        }
+
+        /**
+         * Returns the path as the client sees it, starting at "/".
+         */
+        String getVirtualPath()
+        {
+            return virtualPath;
+        }
+
+        /**
+         * Returns the path in the served file system.
+         */
+        Path getPath()
+        {
+            return path;
+        }
+    }
+
+    private static class Check
+    {
+        private final boolean value;
+        private final long time;
+
+        private Check(boolean value, long time)
+        {
+            this.value = value;
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.haegroup.net;
+
+/**
+ * The rsync weak checksum of a block: two 16 bit sums packed in an int, which can be rolled along a file one byte
+ * at a time instead of being recomputed for every offset. It only finds candidate matches, a strong checksum has to
+ * confirm them.
+ */
+public final class FTPRollingChecksum
+{
+    private FTPRollingChecksum()
+    {
+    }
+
+    /**
+     * Returns the checksum of a block.
+     */
+    public static int of(byte[] data, int offset, int length)
+    {
+        int a = 0;
+        int b = 0;
+
+        for (int i = 0; i < length; i++)
+        {
+            final int value = data[offset + i] & 0xFF;
+
+            a += value;
+            b += (length - i) * value;
+        }
+
+        return pack(a, b);
+    }
+
+    /**
+     * Returns the checksum of the block one byte further along.
+     *
+     * @param checksum The checksum of the current block.
+     * @param out      The first byte of the current block, which leaves it.
+     * @param in       The byte after the current block, which joins it.
+     * @param length   The block length.
+     */
+    public static int roll(int checksum, byte out, byte in, int length)
+    {
+        final int a = (checksum & 0xFFFF) - (out & 0xFF) + (in & 0xFF);
+        final int b = (checksum >>> 16) - length * (out & 0xFF) + a;
+
+        return pack(a, b);
+    }
+
+    private static int pack(int a, int b)
+    {
+        return (a & 0xFFFF) | (b << 16);
+    }
+}
@@ -0,0 +1,451 @@
+package com.haegroup.net;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TLS over a blocking socket channel, used for protected data connections. Encrypted records are gathered in a
+ * large pooled direct buffer and written together, so a bulk transfer costs one system call per batch of full size
+ * records rather than one per record. Received records are decrypted straight into the caller's buffer when it is
+ * large enough, skipping a copy.
+ *
+ * The channel may be closed from another thread while a transfer is reading or writing, as a persistent MODE B
+ * connection is on ABOR or QUIT. The socket is closed at once, which fails the transfer, and the pooled buffers are
+ * returned by whichever thread is the last to stop using them.
+ */
+class FTPSecureChannel implements ByteChannel
+{
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /**
+     * Full size records gathered in networkOut before it is written.
+     */
+    private static final int RECORDS_PER_WRITE = 8;
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final FTPTlsContext tlsContext;
+
+    /**
+     * Encrypted bytes read from the socket, in fill mode.
+     */
+    private final ByteBuffer networkIn;
+
+    /**
+     * Encrypted bytes waiting to be written to the socket, in fill mode.
+     */
+    private final ByteBuffer networkOut;
+
+    /**
+     * Decrypted bytes not yet returned to the reader, in fill mode.
+     */
+    private final ByteBuffer applicationIn;
+
+    private final AtomicBoolean open = new AtomicBoolean(true);
+    private boolean inboundDone;
+
+    /**
+     * References to the buffers: one held while the channel is open, and one per thread using them. The last to be
+     * dropped returns them to the pool.
+     */
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    FTPSecureChannel(FTPTlsContext tlsContext, SocketChannel channel)
+    {
+        this.tlsContext = tlsContext;
+        this.channel = channel;
+        this.engine = tlsContext.createEngine();
+
+        final int packetSize = engine.getSession().getPacketBufferSize();
+        final int applicationSize = engine.getSession().getApplicationBufferSize();
+
+        this.networkIn = acquire(packetSize);
+        this.networkOut = acquire(packetSize * RECORDS_PER_WRITE);
+        this.applicationIn = acquire(applicationSize);
+    }
+
+    /**
+     * Runs the server side of the handshake on the calling thread.
+     */
+    void handshake() throws IOException
+    {
+        enter();
+
+        try
+        {
+            final long started = System.currentTimeMillis();
+
+            engine.beginHandshake();
+
+            while (true)
+            {
+                continueHandshake();
+
+                if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING)
+                {
+                    break;
+                }
+
+                // Application data sent right after the client's Finished message lands in applicationIn.
+                if (unwrap(applicationIn) < 0)
+                {
+                    throw new SSLException("Data connection closed during the handshake.");
+                }
+            }
+
+            tlsContext.recordHandshake(engine.getSession(), started);
+        }
+        finally
+        {
+            release();
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer destination) throws IOException
+    {
+        enter();
+
+        try
+        {
+            return decrypt(destination);
+        }
+        finally
+        {
+            release();
+        }
+    }
+
+    private int decrypt(ByteBuffer destination) throws IOException
+    {
+        if (!destination.hasRemaining())
+        {
+            return 0;
+        }
+
+        if (applicationIn.position() == 0)
+        {
+            // Decrypt straight into large destinations.
+            final ByteBuffer target = destination.remaining() >= engine.getSession().getApplicationBufferSize()
+                    ? destination
+                    : applicationIn;
+
+            int produced = 0;
+            while (produced == 0)
+            {
+                produced = unwrap(target);
+                if (produced < 0)
+                {
+                    return -1;
+                }
+
+                continueHandshake();
+            }
+
+            if (target == destination)
+            {
+                return produced;
+            }
+        }
+
+        applicationIn.flip();
+
+        final int count = Math.min(destination.remaining(), applicationIn.remaining());
+        final ByteBuffer slice = applicationIn.duplicate();
+        slice.limit(slice.position() + count);
+        destination.put(slice);
+
+        applicationIn.position(applicationIn.position() + count);
+        applicationIn.compact();
+
+        return count;
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException
+    {
+        enter();
+
+        try
+        {
+            int consumed = 0;
+
+            // Each wrap adds one record to networkOut, which is only written out once full.
+            while (source.hasRemaining())
+            {
+                final SSLEngineResult result = wrap(source);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+                {
+                    throw new SSLException("TLS session closed by the client.");
+                }
+
+                consumed += result.bytesConsumed();
+
+                // Only a renegotiation or key update wants more than the records, and those flush themselves.
+                if (engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING)
+                {
+                    continueHandshake();
+                }
+            }
+
+            flush();
+
+            return consumed;
+        }
+        finally
+        {
+            release();
+        }
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return open.get();
+    }
+
+    /**
+     * Sends close_notify and closes the socket. If another thread is reading or writing, the socket is only closed,
+     * the engine and buffers are still that thread's.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (!open.compareAndSet(true, false))
+        {
+            return;
+        }
+
+        // Only the open reference left, so nothing else is using the engine. Anyone entering now sees it closed.
+        if (!references.compareAndSet(1, 2))
+        {
+            channel.close();
+            release();
+            return;
+        }
+
+        try
+        {
+            engine.closeOutbound();
+
+            while (!engine.isOutboundDone())
+            {
+                final SSLEngineResult result = wrap(EMPTY);
+                if (result.bytesProduced() == 0)
+                {
+                    break;
+                }
+            }
+
+            flush();
+        }
+        finally
+        {
+            channel.close();
+            release();
+            release();
+        }
+    }
+
+    /**
+     * Takes a reference to the buffers for the calling thread.
+     */
+    private void enter() throws IOException
+    {
+        while (true)
+        {
+            final int count = references.get();
+            if (count == 0)
+            {
+                throw new ClosedChannelException();
+            }
+
+            if (references.compareAndSet(count, count + 1))
+            {
+                break;
+            }
+        }
+
+        // Taken before open is looked at, so close() either sees this thread or this thread sees close().
+        if (!open.get())
+        {
+            release();
+            throw new ClosedChannelException();
+        }
+    }
+
+    /**
+     * Drops a reference, returning the buffers to the pool with the last.
+     */
+    private void release()
+    {
+        if (references.decrementAndGet() == 0)
+        {
+            FTPBufferPool.TRANSFER.release(networkIn);
+            FTPBufferPool.TRANSFER.release(networkOut);
+            FTPBufferPool.TRANSFER.release(applicationIn);
+        }
+    }
+
+    /**
+     * Runs delegated tasks and sends handshake messages until the engine needs input or is done.
+     */
+    private void continueHandshake() throws IOException
+    {
+        while (true)
+        {
+            switch (engine.getHandshakeStatus())
+            {
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null)
+                    {
+                        task.run();
+                    }
+                    break;
+
+                case NEED_WRAP:
+                    if (wrap(EMPTY).bytesProduced() == 0 && engine.isOutboundDone())
+                    {
+                        flush();
+                        return;
+                    }
+                    break;
+
+                default:
+                    flush();
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Encrypts one record into networkOut, writing networkOut out first if the record does not fit.
+     */
+    private SSLEngineResult wrap(ByteBuffer source) throws IOException
+    {
+        while (true)
+        {
+            final SSLEngineResult result = engine.wrap(source, networkOut);
+
+            if (result.getStatus() != SSLEngineResult.Status.BUFFER_OVERFLOW)
+            {
+                return result;
+            }
+
+            if (networkOut.position() == 0)
+            {
+                throw new SSLException("TLS record larger than the network buffer.");
+            }
+
+            flush();
+        }
+    }
+
+    /**
+     * Decrypts buffered records into the target, reading from the socket when no whole record is buffered.
+     *
+     * @return Number of bytes decrypted, 0 if the engine needs to handshake, or -1 at the end of the stream.
+     */
+    private int unwrap(ByteBuffer target) throws IOException
+    {
+        if (inboundDone)
+        {
+            return -1;
+        }
+
+        int produced = 0;
+
+        while (true)
+        {
+            networkIn.flip();
+
+            final SSLEngineResult result;
+            try
+            {
+                result = engine.unwrap(networkIn, target);
+            }
+            finally
+            {
+                networkIn.compact();
+            }
+
+            produced += result.bytesProduced();
+
+            switch (result.getStatus())
+            {
+                case OK:
+                    // Including the record that finished it, which on a resumed TLS 1.2 session is the client's
+                    // Finished with nothing after it until the server sends.
+                    if (engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                            || result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED)
+                    {
+                        return produced;
+                    }
+
+                    // Keep decrypting while whole records may be buffered and there is room for them.
+                    if (produced > 0 && (networkIn.position() == 0
+                            || target.remaining() < engine.getSession().getApplicationBufferSize()))
+                    {
+                        return produced;
+                    }
+                    break;
+
+                case BUFFER_UNDERFLOW:
+                    if (produced > 0)
+                    {
+                        return produced;
+                    }
+
+                    if (channel.read(networkIn) < 0)
+                    {
+                        inboundDone = true;
+                        return -1;
+                    }
+                    break;
+
+                case BUFFER_OVERFLOW:
+                    if (produced == 0)
+                    {
+                        throw new SSLException("TLS record larger than the application buffer.");
+                    }
+                    return produced;
+
+                case CLOSED:
+                default:
+                    inboundDone = true;
+                    return produced > 0 ? produced : -1;
+            }
+        }
+    }
+
+    private void flush() throws IOException
+    {
+        networkOut.flip();
+
+        while (networkOut.hasRemaining())
+        {
+            channel.write(networkOut);
+        }
+
+        networkOut.clear();
+    }
+
+    private static ByteBuffer acquire(int required)
+    {
+        if (required > FTPBufferPool.TRANSFER.getBufferSize())
+        {
+            return ByteBuffer.allocateDirect(required);
+        }
+
+        return FTPBufferPool.TRANSFER.acquire();
+    }
+}
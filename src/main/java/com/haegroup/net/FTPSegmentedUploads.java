@@ -0,0 +1,392 @@
+package com.haegroup.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Segmented uploads in progress. Several data connections, usually from several sessions, each REST+STOR a disjoint
+ * range of one target into a shared staging file next to it. Ranges are written with positional writes under
+ * striped locks, and once every byte is present the staging file is renamed over the target in one atomic move.
+ * An upload that receives nothing for a while is taken as abandoned and its staging file deleted.
+ */
+class FTPSegmentedUploads implements Closeable
+{
+    private static final long IDLE_TIMEOUT = TimeUnit.MINUTES.toNanos(15);
+    private static final long EXPIRE_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+
+    private final ConcurrentMap<Path, Upload> uploads = new ConcurrentHashMap<>();
+
+    private final AtomicLong nextExpiry = new AtomicLong(System.nanoTime() + EXPIRE_INTERVAL);
+
+    /**
+     * Starts a segmented upload of the target, or joins the one in progress if it has the same size.
+     *
+     * @return The upload, or null if one of a different size is in progress.
+     */
+    Upload begin(Path target, long size) throws IOException
+    {
+        final Path key = target.toAbsolutePath().normalize();
+
+        expireIdle();
+
+        synchronized (uploads)
+        {
+            final Upload existing = uploads.get(key);
+            if (existing != null)
+            {
+                if (existing.size != size)
+                {
+                    return null;
+                }
+
+                existing.touch();
+                return existing;
+            }
+
+            final Upload upload = new Upload(key, size);
+            uploads.put(key, upload);
+
+            return upload;
+        }
+    }
+
+    /**
+     * Returns the segmented upload in progress for the target, or null.
+     */
+    Upload get(Path target)
+    {
+        expireIdle();
+
+        return uploads.get(target.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Moves the staging file into place if every range has arrived. Only the first caller to see the upload
+     * complete does so.
+     *
+     * @return True if this call assembled the target.
+     */
+    boolean assembleIfComplete(Upload upload, FTPServer server) throws IOException
+    {
+        if (!upload.isComplete() || !uploads.remove(upload.target, upload))
+        {
+            return false;
+        }
+
+        // A segment overlapping what already arrived may still be writing.
+        upload.seal();
+
+        try
+        {
+            server.sync(upload.staging);
+        }
+        finally
+        {
+            upload.staging.close();
+        }
+
+        Files.move(upload.stagingPath, upload.target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        server.invalidate(upload.target);
+
+        return true;
+    }
+
+    /**
+     * Abandons an upload and deletes its staging file.
+     */
+    boolean abort(Path target) throws IOException
+    {
+        final Upload upload = uploads.remove(target.toAbsolutePath().normalize());
+        if (upload == null)
+        {
+            return false;
+        }
+
+        upload.seal();
+        upload.staging.close();
+        Files.deleteIfExists(upload.stagingPath);
+
+        return true;
+    }
+
+    /**
+     * Abandons every upload in progress, as they cannot be resumed once the server is gone.
+     */
+    @Override
+    public void close()
+    {
+        for (Upload upload : uploads.values())
+        {
+            if (uploads.remove(upload.target, upload))
+            {
+                discard(upload);
+            }
+        }
+    }
+
+    /**
+     * Abandons uploads that have received nothing for the idle timeout, at most once per interval. Called on the way
+     * into every STOR, so a stale upload is gone before it can take a plain STOR of its target.
+     */
+    private void expireIdle()
+    {
+        final long now = System.nanoTime();
+        final long next = nextExpiry.get();
+
+        if (now - next < 0 || !nextExpiry.compareAndSet(next, now + EXPIRE_INTERVAL))
+        {
+            return;
+        }
+
+        for (Upload upload : uploads.values())
+        {
+            if (now - upload.lastActivity > IDLE_TIMEOUT && uploads.remove(upload.target, upload))
+            {
+                System.out.println("Abandoned segmented upload of " + upload.target);
+                discard(upload);
+            }
+        }
+    }
+
+    private static void discard(Upload upload)
+    {
+        try
+        {
+            upload.seal();
+            upload.staging.close();
+            Files.deleteIfExists(upload.stagingPath);
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    static class Upload
+    {
+        private static final int STRIPE_COUNT = 64;
+        private static final long STRIPE_SIZE = 1024 * 1024;
+
+        private final Path target;
+        private final Path stagingPath;
+        private final long size;
+
+        private final FileChannel staging;
+        private final ReentrantLock[] stripes = new ReentrantLock[STRIPE_COUNT];
+
+        /**
+         * Received ranges, merged, from start to end.
+         */
+        private final TreeMap<Long, Long> ranges = new TreeMap<>();
+
+        /**
+         * Set once the upload is assembled or abandoned, under every stripe lock, so it is seen by any later write.
+         */
+        private boolean sealed;
+
+        /**
+         * When the upload was last begun, joined or written to, from System.nanoTime().
+         */
+        private volatile long lastActivity = System.nanoTime();
+
+        private Upload(Path target, long size) throws IOException
+        {
+            this.target = target;
+            this.stagingPath = target.resolveSibling("." + target.getFileName() + ".segments");
+            this.size = size;
+
+            this.staging = FileChannel.open(stagingPath,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+            for (int i = 0; i < STRIPE_COUNT; i++)
+            {
+                stripes[i] = new ReentrantLock();
+            }
+        }
+
+        Path getTarget()
+        {
+            return target;
+        }
+
+        long getSize()
+        {
+            return size;
+        }
+
+        /**
+         * Writes received bytes at their position in the target, holding the locks of the stripes they cover so
+         * overlapping segments never interleave within a write.
+         */
+        int write(ByteBuffer buffer, long position) throws IOException
+        {
+            final long end = position + buffer.remaining();
+            if (end > size)
+            {
+                throw new IOException("Segment ends at " + end + ", past the declared size of " + size + ".");
+            }
+
+            final boolean[] locked = lockStripes(position, end);
+
+            try
+            {
+                if (sealed)
+                {
+                    throw new IOException("Segmented upload of " + target + " is no longer in progress.");
+                }
+
+                int written = 0;
+                while (buffer.hasRemaining())
+                {
+                    written += staging.write(buffer, position + written);
+                }
+
+                addRange(position, position + written);
+                touch();
+
+                return written;
+            }
+            finally
+            {
+                for (int i = STRIPE_COUNT - 1; i >= 0; i--)
+                {
+                    if (locked[i])
+                    {
+                        stripes[i].unlock();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Waits for writes in progress and refuses any after, before the staging file is closed.
+         */
+        private void seal()
+        {
+            for (int i = 0; i < STRIPE_COUNT; i++)
+            {
+                stripes[i].lock();
+            }
+
+            sealed = true;
+
+            for (int i = STRIPE_COUNT - 1; i >= 0; i--)
+            {
+                stripes[i].unlock();
+            }
+        }
+
+        private void touch()
+        {
+            lastActivity = System.nanoTime();
+        }
+
+        synchronized boolean isComplete()
+        {
+            final Map.Entry<Long, Long> first = ranges.firstEntry();
+
+            return first != null && first.getKey() == 0 && first.getValue() >= size;
+        }
+
+        /**
+         * Returns the ranges still missing, as "start-end" with inclusive ends, separated by commas.
+         */
+        synchronized String missingRanges()
+        {
+            final StringBuilder missing = new StringBuilder();
+            long position = 0;
+
+            for (Map.Entry<Long, Long> range : ranges.entrySet())
+            {
+                if (range.getKey() > position)
+                {
+                    appendRange(missing, position, range.getKey());
+                }
+
+                position = Math.max(position, range.getValue());
+            }
+
+            if (position < size)
+            {
+                appendRange(missing, position, size);
+            }
+
+            return missing.toString();
+        }
+
+        /**
+         * Locks the stripes covering the range in index order, so writers never deadlock.
+         */
+        private boolean[] lockStripes(long start, long end)
+        {
+            final boolean[] locked = new boolean[STRIPE_COUNT];
+
+            final long first = start / STRIPE_SIZE;
+            final long last = Math.max(end - 1, start) / STRIPE_SIZE;
+
+            for (long stripe = first; stripe <= last && stripe < first + STRIPE_COUNT; stripe++)
+            {
+                locked[(int) (stripe % STRIPE_COUNT)] = true;
+            }
+
+            for (int i = 0; i < STRIPE_COUNT; i++)
+            {
+                if (locked[i])
+                {
+                    stripes[i].lock();
+                }
+            }
+
+            return locked;
+        }
+
+        private synchronized void addRange(long start, long end)
+        {
+            if (start >= end)
+            {
+                return;
+            }
+
+            // Merge with a range that starts before and reaches this one.
+            final Map.Entry<Long, Long> before = ranges.floorEntry(start);
+            if (before != null && before.getValue() >= start)
+            {
+                start = before.getKey();
+                end = Math.max(end, before.getValue());
+            }
+
+            // Merge with every range that starts inside this one.
+            Map.Entry<Long, Long> after;
+            while ((after = ranges.ceilingEntry(start)) != null && after.getKey() <= end)
+            {
+                end = Math.max(end, after.getValue());
+                ranges.remove(after.getKey());
+            }
+
+            ranges.put(start, end);
+        }
+
+        private static void appendRange(StringBuilder missing, long start, long end)
+        {
+            if (missing.length() > 0)
+            {
+                missing.append(',');
+            }
+
+            missing.append(start).append('-').append(end - 1);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.haegroup.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Non-blocking control channel engine. A single acceptor hands new connections to a fixed set of selector event
+ * loops, so idle sessions cost a buffer and a selection key instead of a thread.
+ */
+class FTPSelectorEngine implements Closeable
+{
+    private final FTPServer server;
+    private final ExecutorService workerService;
+    private final FTPExecutorMode executorMode;
+    private final FTPEventLoop[] eventLoops;
+
+    /**
+     * Runs the sessions that left the event loops for TLS, each for the rest of its life, so they never take the
+     * workers that blocking commands of the remaining sessions wait for.
+     */
+    private ExecutorService handOffService;
+
+    private ServerSocketChannel listenChannel;
+
+    FTPSelectorEngine(FTPServer server, ExecutorService workerService, FTPExecutorMode executorMode, int eventLoopCount)
+    {
+        this.server = server;
+        this.workerService = workerService;
+        this.executorMode = executorMode;
+        this.eventLoops = new FTPEventLoop[Math.max(1, eventLoopCount)];
+    }
+
+    /**
+     * Binds the command port.
+     *
+     * @return The port bound.
+     */
+    int bind(int commandPort) throws IOException
+    {
+        listenChannel = ServerSocketChannel.open();
+        listenChannel.bind(new InetSocketAddress(commandPort), 1024);
+
+        return listenChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Accepts clients on the bound command port until the engine is closed.
+     */
+    void start() throws IOException
+    {
+        final ThreadFactory eventLoopThreads = new FTPExecutors.NamedThreadFactory("ftp-event-loop");
+        handOffService = FTPExecutors.newUnboundedExecutor(executorMode, "ftp-tls-session");
+
+        for (int i = 0; i < eventLoops.length; i++)
+        {
+            eventLoops[i] = new FTPEventLoop(workerService, handOffService);
+
+            eventLoopThreads.newThread(eventLoops[i]).start();
+        }
+
+        acceptClients();
+    }
+
+    private void acceptClients()
+    {
+        int next = 0;
+
+        while (listenChannel.isOpen())
+        {
+            try
+            {
+                final SocketChannel channel = listenChannel.accept();
+                channel.configureBlocking(false);
+
+                // Replies are whole lines, don't let Nagle hold one back behind the last.
+                channel.socket().setTcpNoDelay(true);
+
+                // Spread the sessions over the event loops.
+                final FTPEventLoop eventLoop = eventLoops[next];
+                next = (next + 1) % eventLoops.length;
+
+                final FTPChannelSession session = new FTPChannelSession(server, channel, eventLoop);
+                eventLoop.register(session);
+            }
+            catch (ClosedChannelException e)
+            {
+                break;
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (listenChannel != null)
+        {
+            listenChannel.close();
+        }
+
+        for (FTPEventLoop eventLoop : eventLoops)
+        {
+            if (eventLoop != null)
+            {
+                eventLoop.close();
+            }
+        }
+
+        if (handOffService != null)
+        {
+            handOffService.shutdown();
+        }
+    }
+}
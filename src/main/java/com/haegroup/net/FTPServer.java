@@ -3,8 +3,13 @@ package com.haegroup.net;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
 
 /**
  * Created by William Connell on 29/01/2016.
@@ -12,15 +17,71 @@ import java.util.concurrent.Executors;
 public class FTPServer
 {
     private static final int DEFAULT_COMMAND_PORT = 21;
+    private static final int DEFAULT_MAX_SESSION_THREADS = 256;
+    private static final int DEFAULT_MAX_TRANSFER_THREADS = 256;
+    private static final long DEFAULT_FILE_CACHE_SIZE = 256L * 1024 * 1024;
+    private static final long DEFAULT_LISTING_CACHE_SIZE = 16L * 1024 * 1024;
+    private static final long DEFAULT_COMPRESSION_CACHE_SIZE = 64L * 1024 * 1024;
+    private static final long DEFAULT_SIGNATURE_CACHE_SIZE = 32L * 1024 * 1024;
+    private static final int DEFAULT_COMPRESSION_LEVEL = 6;
 
     static final String LINE_END = "\r\n";
 
     private ServerSocket listenSocket;
+    private FTPSelectorEngine selectorEngine;
 
-    private int commandPort;
+    private volatile int commandPort;
+
+    private boolean nonBlocking;
+    private int eventLoopCount = Runtime.getRuntime().availableProcessors();
+
+    private FTPExecutorMode executorMode = FTPExecutorMode.PLATFORM;
+    private int maxSessionThreads = DEFAULT_MAX_SESSION_THREADS;
+    private int maxTransferThreads = DEFAULT_MAX_TRANSFER_THREADS;
+
+    private ExecutorService executorService;
+    private ExecutorService transferService;
+    private ExecutorService writerService;
+
+    private FTPDurability durability = FTPDurability.NONE;
+
+    private long fileCacheSize = DEFAULT_FILE_CACHE_SIZE;
+    private FTPFileCache fileCache;
+
+    private long listingCacheSize = DEFAULT_LISTING_CACHE_SIZE;
+    private FTPListingCache listingCache;
+
+    private int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+    private boolean skipCompressedFiles = true;
+    private long compressionCacheSize = DEFAULT_COMPRESSION_CACHE_SIZE;
+    private FTPCompressionCache compressionCache;
+
+    private long signatureCacheSize = DEFAULT_SIGNATURE_CACHE_SIZE;
+    private FTPSignatureCache signatureCache;
+
+    private Path digestIndexPath;
+    private FTPHashAlgorithm[] inlineDigests = new FTPHashAlgorithm[0];
+    private FTPHasher hasher;
+
+    private Path blobDirectory;
+    private FTPBlobStore blobStore;
+    private FTPPathResolver pathResolver;
+
+    private final FTPUploadRegistry uploadRegistry = new FTPUploadRegistry();
+    private final FTPSegmentedUploads segmentedUploads = new FTPSegmentedUploads();
+
+    private Path keyStorePath;
+    private String keyStorePassword;
+    private FTPTlsContext tlsContext;
+
+    private boolean fxpEnabled;
+
+    private int minPassivePort;
+    private int maxPassivePort;
+    private FTPPassivePortPool passivePortPool;
 
-    private final ExecutorService executorService;
     private final String anonymousDirectory;
+    private FileSystem fileSystem = FileSystems.getDefault();
 
     public FTPServer(String anonymousDirectory)
     {
@@ -30,19 +91,441 @@ public class FTPServer
     public FTPServer(int commandPort, String anonymousDirectory)
     {
         this.commandPort = commandPort;
-
-        this.executorService = Executors.newFixedThreadPool(256);
         this.anonymousDirectory = anonymousDirectory;
     }
 
+    /**
+     * Selects whether sessions and transfers run on pooled platform threads or on virtual threads. Must be set
+     * before {@link #start()}.
+     */
+    public void setExecutorMode(FTPExecutorMode executorMode)
+    {
+        this.executorMode = executorMode;
+    }
+
+    /**
+     * Sets the session pool size used in platform thread mode, or as the fallback when virtual threads are missing.
+     */
+    public void setMaxSessionThreads(int maxSessionThreads)
+    {
+        this.maxSessionThreads = maxSessionThreads;
+    }
+
+    /**
+     * Sets the transfer pool size used in platform thread mode, or as the fallback when virtual threads are missing.
+     */
+    public void setMaxTransferThreads(int maxTransferThreads)
+    {
+        this.maxTransferThreads = maxTransferThreads;
+    }
+
+    /**
+     * Selects the selector based engine, multiplexing all control sessions over a few event loop threads instead of
+     * holding a pooled thread per session. Must be set before {@link #start()}.
+     */
+    public void setNonBlocking(boolean nonBlocking)
+    {
+        this.nonBlocking = nonBlocking;
+    }
+
+    /**
+     * Sets the number of event loop threads used by the non-blocking engine.
+     */
+    public void setEventLoopCount(int eventLoopCount)
+    {
+        this.eventLoopCount = eventLoopCount;
+    }
+
+    /**
+     * Sets how uploads are synced to disk before their completion reply. Must be set before {@link #start()}.
+     */
+    public void setDurability(FTPDurability durability)
+    {
+        this.durability = durability;
+    }
+
+    /**
+     * Sets the number of bytes of recently downloaded files kept memory mapped, 0 disables the cache. Must be set
+     * before {@link #start()}.
+     */
+    public void setFileCacheSize(long fileCacheSize)
+    {
+        this.fileCacheSize = fileCacheSize;
+    }
+
+    /**
+     * Sets the number of bytes of encoded directory listings kept, 0 disables the cache. Must be set before
+     * {@link #start()}.
+     */
+    public void setListingCacheSize(long listingCacheSize)
+    {
+        this.listingCacheSize = listingCacheSize;
+    }
+
+    /**
+     * Sets the default MODE Z deflate level, from 0 for none to 9 for the smallest output. Clients can change it for
+     * their session with OPTS MODE Z LEVEL.
+     */
+    public void setCompressionLevel(int compressionLevel)
+    {
+        if (compressionLevel < Deflater.NO_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION)
+        {
+            throw new IllegalArgumentException("Invalid compression level " + compressionLevel + ".");
+        }
+
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Sets whether MODE Z sends files that are already compressed, judged by extension or content, in stored blocks
+     * instead of deflating them again.
+     */
+    public void setSkipCompressedFiles(boolean skipCompressedFiles)
+    {
+        this.skipCompressedFiles = skipCompressedFiles;
+    }
+
+    /**
+     * Sets the number of bytes of precompressed MODE Z streams kept for hot files, 0 disables the cache. Must be set
+     * before {@link #start()}.
+     */
+    public void setCompressionCacheSize(long compressionCacheSize)
+    {
+        this.compressionCacheSize = compressionCacheSize;
+    }
+
+    /**
+     * Sets the memory held by cached delta sync signatures, 0 disables the cache. Must be set before
+     * {@link #start()}.
+     */
+    public void setSignatureCacheSize(long signatureCacheSize)
+    {
+        this.signatureCacheSize = signatureCacheSize;
+    }
+
+    /**
+     * Serves files from another file system than the local disk, such as an {@link FTPMemoryFileSystem}. The
+     * anonymous directory is then a path in it. Must be set before {@link #start()}.
+     */
+    public void setFileSystem(FileSystem fileSystem)
+    {
+        this.fileSystem = fileSystem;
+    }
+
+    /**
+     * Keeps the index of computed checksums in a file, so it survives restarts. Without one the index is kept in
+     * memory only. Must be set before {@link #start()}.
+     */
+    public void setDigestIndexPath(Path digestIndexPath)
+    {
+        this.digestIndexPath = digestIndexPath;
+    }
+
+    /**
+     * Sets the checksums computed while a whole file is uploaded, so HASH after STOR needs no second read. None by
+     * default, since every upload would pay for them on the writer thread whether or not HASH is ever sent.
+     */
+    public void setInlineDigests(FTPHashAlgorithm... inlineDigests)
+    {
+        this.inlineDigests = inlineDigests.clone();
+    }
+
+    /**
+     * Stores uploads deduplicated by content in the directory, which must be on the same file system as the root.
+     * Each distinct content is kept once and the uploaded paths are hard links to it, so paths with the same content
+     * also share its permissions and modification time. Content no path links to any more is removed periodically.
+     * Must be set before {@link #start()}.
+     */
+    public void setBlobDirectory(Path blobDirectory)
+    {
+        this.blobDirectory = blobDirectory;
+    }
+
+    /**
+     * Allows server to server (FXP) transfers, where the data connection joins this server to another server instead
+     * of to the client. Without it PORT and EPRT must name the client's own address, and a passive data connection
+     * from any other address is refused.
+     */
+    public void setFxpEnabled(boolean fxpEnabled)
+    {
+        this.fxpEnabled = fxpEnabled;
+    }
+
+    boolean isFxpEnabled()
+    {
+        return fxpEnabled;
+    }
+
+    /**
+     * Returns the control port, which once started is the port actually bound even if 0 was asked for.
+     */
+    public int getCommandPort()
+    {
+        return commandPort;
+    }
+
+    /**
+     * Restricts passive mode to the inclusive port range, binding every port in it once at startup. Without a range
+     * an ephemeral port is bound per request. Must be set before {@link #start()}.
+     */
+    public void setPassivePortRange(int minPassivePort, int maxPassivePort)
+    {
+        if (minPassivePort < 1 || maxPassivePort > 65535 || minPassivePort > maxPassivePort)
+        {
+            throw new IllegalArgumentException("Invalid passive port range " + minPassivePort + " .. " + maxPassivePort + ".");
+        }
+
+        this.minPassivePort = minPassivePort;
+        this.maxPassivePort = maxPassivePort;
+    }
+
+    /**
+     * Uses a PKCS12 key store file for AUTH TLS instead of the bundled one. The file is reloaded when it changes.
+     * Must be set before {@link #start()}.
+     */
+    public void setKeyStore(Path keyStorePath, String keyStorePassword)
+    {
+        this.keyStorePath = keyStorePath;
+        this.keyStorePassword = keyStorePassword;
+    }
+
+    /**
+     * Returns the number of TLS handshakes that negotiated a new session.
+     */
+    public long getFullTlsHandshakes()
+    {
+        return tlsContext != null ? tlsContext.getFullHandshakes() : 0;
+    }
+
+    /**
+     * Returns the number of TLS handshakes that resumed a cached session.
+     */
+    public long getResumedTlsHandshakes()
+    {
+        return tlsContext != null ? tlsContext.getResumedHandshakes() : 0;
+    }
+
+    FTPPathResolver getPathResolver()
+    {
+        return pathResolver;
+    }
+
+    FileSystem getFileSystem()
+    {
+        return fileSystem;
+    }
+
+    ExecutorService getTransferService()
+    {
+        return transferService;
+    }
+
+    ExecutorService getWriterService()
+    {
+        return writerService;
+    }
+
+    FTPFileCache getFileCache()
+    {
+        return fileCache;
+    }
+
+    FTPListingCache getListingCache()
+    {
+        return listingCache;
+    }
+
+    int getCompressionLevel()
+    {
+        return compressionLevel;
+    }
+
+    boolean isSkipCompressedFiles()
+    {
+        return skipCompressedFiles;
+    }
+
+    FTPCompressionCache getCompressionCache()
+    {
+        return compressionCache;
+    }
+
+    FTPSignatureCache getSignatureCache()
+    {
+        return signatureCache;
+    }
+
+    FTPHasher getHasher()
+    {
+        return hasher;
+    }
+
+    FTPHashAlgorithm[] getInlineDigests()
+    {
+        return inlineDigests;
+    }
+
+    /**
+     * Returns the store for deduplicated uploads, or null if uploads are stored as they are.
+     */
+    FTPBlobStore getBlobStore()
+    {
+        return blobStore;
+    }
+
+    FTPUploadRegistry getUploadRegistry()
+    {
+        return uploadRegistry;
+    }
+
+    FTPSegmentedUploads getSegmentedUploads()
+    {
+        return segmentedUploads;
+    }
+
+    /**
+     * Returns the TLS context, or null if no key store could be loaded.
+     */
+    FTPTlsContext getTlsContext()
+    {
+        return tlsContext;
+    }
+
+    FTPPassivePortPool getPassivePortPool()
+    {
+        return passivePortPool;
+    }
+
+    /**
+     * Drops everything cached about a file that is being written, or has been written or deleted.
+     */
+    void invalidate(Path path)
+    {
+        fileCache.invalidate(path);
+        compressionCache.invalidate(path);
+        signatureCache.invalidate(path);
+        hasher.invalidate(path);
+        pathResolver.invalidate(path);
+
+        if (path.getParent() != null)
+        {
+            listingCache.invalidate(path.getParent());
+        }
+    }
+
+    /**
+     * Syncs an uploaded file according to the configured durability.
+     */
+    void sync(FileChannel channel) throws IOException
+    {
+        switch (durability)
+        {
+            case FSYNC_ON_CLOSE:
+                channel.force(true);
+                break;
+
+            case NONE:
+            default:
+                break;
+        }
+    }
+
     public void start() throws IOException
     {
+        executorService = FTPExecutors.newExecutor(executorMode, "ftp-session", maxSessionThreads);
+        transferService = FTPExecutors.newExecutor(executorMode, "ftp-transfer", maxTransferThreads);
+        writerService = FTPExecutors.newExecutor(executorMode, "ftp-writer", maxTransferThreads);
+
+        try
+        {
+            tlsContext = keyStorePath != null
+                    ? new FTPTlsContext(keyStorePath, keyStorePassword)
+                    : new FTPTlsContext();
+        }
+        catch (IOException | GeneralSecurityException e)
+        {
+            // Carry on without AUTH TLS.
+            e.printStackTrace();
+        }
+
+        fileCache = new FTPFileCache(fileCacheSize);
+        listingCache = new FTPListingCache(listingCacheSize);
+        compressionCache = new FTPCompressionCache(compressionCacheSize);
+        signatureCache = new FTPSignatureCache(signatureCacheSize);
+        hasher = new FTPHasher(Runtime.getRuntime().availableProcessors(), digestIndexPath);
+        pathResolver = new FTPPathResolver(fileSystem.getPath(anonymousDirectory));
+        blobStore = blobDirectory != null ? new FTPBlobStore(blobDirectory, pathResolver.getRoot().getPath()) : null;
+        passivePortPool = minPassivePort > 0
+                ? new FTPPassivePortPool(minPassivePort, maxPassivePort)
+                : new FTPPassivePortPool();
+
+        if (nonBlocking)
+        {
+            selectorEngine = new FTPSelectorEngine(this, executorService, executorMode, eventLoopCount);
+            commandPort = selectorEngine.bind(commandPort);
+            selectorEngine.start();
+            return;
+        }
+
         listenSocket = new ServerSocket(commandPort);
+        commandPort = listenSocket.getLocalPort();
         acceptClients();
     }
 
     public void stop()
     {
+        if (executorService != null)
+        {
+            executorService.shutdown();
+            transferService.shutdown();
+            writerService.shutdown();
+        }
+
+        segmentedUploads.close();
+
+        if (passivePortPool != null)
+        {
+            passivePortPool.close();
+        }
+
+        if (blobStore != null)
+        {
+            blobStore.close();
+        }
+
+        if (hasher != null)
+        {
+            try
+            {
+                hasher.close();
+            }
+            catch (IOException ignored)
+            {
+            }
+        }
+
+        if (listingCache != null)
+        {
+            try
+            {
+                listingCache.close();
+            }
+            catch (IOException ignored)
+            {
+            }
+        }
+
+        if (selectorEngine != null)
+        {
+            try
+            {
+                selectorEngine.close();
+            }
+            catch (IOException ignored)
+            {
+            }
+        }
+
         if (listenSocket != null)
         {
             try
@@ -68,8 +551,11 @@ public class FTPServer
             {
                 client = listenSocket.accept();
 
+                // Replies are whole lines, don't let Nagle hold one back behind the last.
+                client.setTcpNoDelay(true);
+
                 // Hand off to the thread pool.
-                final FTPClientConnection connection = new FTPClientConnection(client, anonymousDirectory);
+                final FTPClientConnection connection = new FTPClientConnection(this, client);
                 executorService.submit((Runnable) () -> {
                     try
                     {
@@ -84,7 +570,11 @@ public class FTPServer
             }
             catch (IOException e)
             {
-                e.printStackTrace();
+                // Closing the socket in stop() is how the loop ends, that's not worth a trace.
+                if (!listenSocket.isClosed())
+                {
+                    e.printStackTrace();
+                }
             }
         }
     }
@@ -0,0 +1,112 @@
+package com.haegroup.net;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of delta sync signatures per file version, so a file that is synced repeatedly is only hashed once per
+ * change. Entries are keyed by size and modification time like {@link FTPFileCache}, and a file rebuilt by a delta
+ * comes with its new signatures already computed. Cached memory is bounded, least recently used entries are dropped
+ * first.
+ */
+class FTPSignatureCache
+{
+    private final long capacity;
+
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long size;
+
+    /**
+     * @param capacity Maximum memory held by cached signatures, 0 disables the cache.
+     */
+    FTPSignatureCache(long capacity)
+    {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the signatures of the file, computing them if this version has none cached.
+     */
+    FTPSignatures get(Path path, BasicFileAttributes attributes, FileChannel channel) throws IOException
+    {
+        final Path key = path.toAbsolutePath().normalize();
+        final long fileSize = attributes.size();
+        final long modified = attributes.lastModifiedTime().toMillis();
+
+        synchronized (this)
+        {
+            final Entry entry = entries.get(key);
+            if (entry != null && entry.size == fileSize && entry.modified == modified)
+            {
+                return entry.signatures;
+            }
+        }
+
+        final FTPSignatures signatures = FTPSignatures.compute(channel, fileSize);
+        put(key, attributes, signatures);
+
+        return signatures;
+    }
+
+    /**
+     * Records the signatures of a file version computed elsewhere.
+     */
+    synchronized void put(Path path, BasicFileAttributes attributes, FTPSignatures signatures)
+    {
+        final Path key = path.toAbsolutePath().normalize();
+        final long memorySize = signatures.getMemorySize();
+
+        remove(key);
+
+        if (memorySize > capacity / 4)
+        {
+            return;
+        }
+
+        final Iterator<Map.Entry<Path, Entry>> iterator = entries.entrySet().iterator();
+        while (size + memorySize > capacity && iterator.hasNext())
+        {
+            size -= iterator.next().getValue().signatures.getMemorySize();
+            iterator.remove();
+        }
+
+        entries.put(key, new Entry(signatures, attributes.size(), attributes.lastModifiedTime().toMillis()));
+        size += memorySize;
+    }
+
+    /**
+     * Drops the signatures of a file that has been written or deleted.
+     */
+    synchronized void invalidate(Path path)
+    {
+        remove(path.toAbsolutePath().normalize());
+    }
+
+    private void remove(Path key)
+    {
+        final Entry entry = entries.remove(key);
+        if (entry != null)
+        {
+            size -= entry.signatures.getMemorySize();
+        }
+    }
+
+    private static class Entry
+    {
+        private final FTPSignatures signatures;
+        private final long size;
+        private final long modified;
+
+        private Entry(FTPSignatures signatures, long size, long modified)
+        {
+            this.signatures = signatures;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+}
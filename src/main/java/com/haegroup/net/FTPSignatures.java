@@ -0,0 +1,286 @@
+package com.haegroup.net;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Block signatures of one version of a file, for delta sync. The file is cut into fixed size blocks, the last one
+ * possibly shorter, and each block has a rolling weak checksum to find candidate matches and an MD5 to confirm them.
+ *
+ * On the wire a signature set is the file length, the block size and the block count, followed by each block's weak
+ * checksum and MD5, all big endian.
+ */
+public class FTPSignatures
+{
+    public static final int STRONG_LENGTH = 16;
+
+    private static final int MIN_BLOCK_SIZE = 2048;
+    private static final int MAX_BLOCK_SIZE = 128 * 1024;
+
+    /**
+     * Most blocks a signature set can have, so their MD5s fit in one array.
+     */
+    private static final int MAX_BLOCK_COUNT = Integer.MAX_VALUE / STRONG_LENGTH;
+
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+    private final long length;
+    private final int blockSize;
+
+    private final int[] weak;
+    private final byte[] strong;
+
+    private FTPSignatures(long length, int blockSize, int[] weak, byte[] strong)
+    {
+        this.length = length;
+        this.blockSize = blockSize;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    /**
+     * Returns the block size used for a file of the given length, around its square root like rsync, so both the
+     * signatures and the matching work grow slowly with the file.
+     */
+    public static int blockSize(long length)
+    {
+        final long root = Long.highestOneBit((long) Math.sqrt(length));
+
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, root));
+    }
+
+    /**
+     * Computes the signatures of a file's first length bytes.
+     */
+    static FTPSignatures compute(FileChannel channel, long length) throws IOException
+    {
+        final Builder builder = new Builder(blockSize(length));
+        final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        long position = 0;
+        while (position < length)
+        {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length - position));
+
+            final int count = channel.read(buffer, position);
+            if (count < 0)
+            {
+                throw new IOException("File shrank while computing its signatures.");
+            }
+
+            builder.update(buffer.array(), 0, count);
+            position += count;
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Reads a signature set sent by the other end. The arrays grow as blocks arrive rather than being sized by the
+     * count up front, which costs the sender nothing to inflate.
+     */
+    public static FTPSignatures read(DataInput input) throws IOException
+    {
+        final long length = input.readLong();
+        final int blockSize = input.readInt();
+        final int count = input.readInt();
+
+        // Bounded before the block count is worked out, which would overflow on a length near the maximum.
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || length < 0 || length > (long) MAX_BLOCK_COUNT * blockSize
+                || count != blockCount(length, blockSize))
+        {
+            throw new IOException("Malformed signatures.");
+        }
+
+        int[] weak = new int[Math.min(count, 1024)];
+        byte[] strong = new byte[weak.length * STRONG_LENGTH];
+
+        for (int i = 0; i < count; i++)
+        {
+            if (i == weak.length)
+            {
+                weak = Arrays.copyOf(weak, (int) Math.min(count, 2L * i));
+                strong = Arrays.copyOf(strong, weak.length * STRONG_LENGTH);
+            }
+
+            weak[i] = input.readInt();
+            input.readFully(strong, i * STRONG_LENGTH, STRONG_LENGTH);
+        }
+
+        return new FTPSignatures(length, blockSize, weak, strong);
+    }
+
+    public void write(DataOutput output) throws IOException
+    {
+        output.writeLong(length);
+        output.writeInt(blockSize);
+        output.writeInt(weak.length);
+
+        for (int i = 0; i < weak.length; i++)
+        {
+            output.writeInt(weak[i]);
+            output.write(strong, i * STRONG_LENGTH, STRONG_LENGTH);
+        }
+    }
+
+    public long getLength()
+    {
+        return length;
+    }
+
+    public int getBlockSize()
+    {
+        return blockSize;
+    }
+
+    public int getBlockCount()
+    {
+        return weak.length;
+    }
+
+    /**
+     * Returns the length of a block, which is the block size for all but the last.
+     */
+    public int getBlockLength(int index)
+    {
+        return (int) Math.min(blockSize, length - (long) index * blockSize);
+    }
+
+    public int getWeak(int index)
+    {
+        return weak[index];
+    }
+
+    /**
+     * Returns true if the block's MD5 equals the given digest.
+     */
+    public boolean strongEquals(int index, byte[] digest)
+    {
+        for (int i = 0; i < STRONG_LENGTH; i++)
+        {
+            if (strong[index * STRONG_LENGTH + i] != digest[i])
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the approximate memory held, for caching.
+     */
+    long getMemorySize()
+    {
+        return 64 + weak.length * (4L + STRONG_LENGTH);
+    }
+
+    static MessageDigest md5()
+    {
+        try
+        {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // Every Java platform is required to have MD5.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int blockCount(long length, int blockSize)
+    {
+        return (int) ((length + blockSize - 1) / blockSize);
+    }
+
+    /**
+     * Builds the signatures of data fed to it in order, so a file can be signed while it is being written without
+     * knowing its final length.
+     */
+    static class Builder
+    {
+        private final int blockSize;
+
+        private int[] weak = new int[16];
+        private byte[] strong = new byte[16 * STRONG_LENGTH];
+        private final MessageDigest digest = md5();
+
+        private final byte[] block;
+        private int blockLength;
+        private int blocks;
+        private long length;
+
+        Builder(int blockSize)
+        {
+            this.blockSize = blockSize;
+            this.block = new byte[blockSize];
+        }
+
+        void update(byte[] data, int offset, int count) throws IOException
+        {
+            length += count;
+
+            while (count > 0)
+            {
+                final int taken = Math.min(count, blockSize - blockLength);
+                System.arraycopy(data, offset, block, blockLength, taken);
+
+                blockLength += taken;
+                offset += taken;
+                count -= taken;
+
+                if (blockLength == blockSize)
+                {
+                    endBlock();
+                }
+            }
+        }
+
+        int getBlockSize()
+        {
+            return blockSize;
+        }
+
+        FTPSignatures build() throws IOException
+        {
+            if (blockLength > 0)
+            {
+                endBlock();
+            }
+
+            return new FTPSignatures(length, blockSize, Arrays.copyOf(weak, blocks), Arrays.copyOf(strong, blocks * STRONG_LENGTH));
+        }
+
+        private void endBlock() throws IOException
+        {
+            if (blocks == weak.length)
+            {
+                weak = Arrays.copyOf(weak, blocks * 2);
+                strong = Arrays.copyOf(strong, blocks * 2 * STRONG_LENGTH);
+            }
+
+            weak[blocks] = FTPRollingChecksum.of(block, 0, blockLength);
+
+            digest.update(block, 0, blockLength);
+            try
+            {
+                digest.digest(strong, blocks * STRONG_LENGTH, STRONG_LENGTH);
+            }
+            catch (DigestException e)
+            {
+                throw new IOException(e);
+            }
+
+            blocks++;
+            blockLength = 0;
+        }
+    }
+}
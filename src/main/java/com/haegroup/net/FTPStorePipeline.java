@@ -0,0 +1,201 @@
+package com.haegroup.net;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.function.LongConsumer;
+
+/**
+ * Write-behind upload pipeline. The calling thread fills a small ring of large direct buffers from the socket while
+ * a writer drains full buffers into the file with positional writes, so the socket is never idle while the disk is
+ * busy and the file only sees large sequential writes.
+ */
+class FTPStorePipeline
+{
+    static final FTPBufferPool BUFFERS = new FTPBufferPool(1024 * 1024, 64);
+
+    private static final int RING_SIZE = 4;
+
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final Target target;
+    private final long start;
+    private final Executor writerExecutor;
+    private final LongConsumer progress;
+
+    private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(RING_SIZE);
+    private final BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<>(RING_SIZE + 1);
+    private final CountDownLatch writerDone = new CountDownLatch(1);
+
+    private volatile IOException writeFailure;
+
+    /**
+     * @param target         Where to write, such as a {@link FileChannel}'s positional write.
+     * @param start          File position of the first byte received.
+     * @param writerExecutor Executor running the writer, which must not be the one running the caller.
+     * @param progress       Told the file position reached after each write, from the writer thread.
+     */
+    FTPStorePipeline(Target target, long start, Executor writerExecutor, LongConsumer progress)
+    {
+        this.target = target;
+        this.start = start;
+        this.writerExecutor = writerExecutor;
+        this.progress = progress;
+    }
+
+    /**
+     * Copies the source into the file until the end of the stream and waits for the writer to finish.
+     *
+     * @return Number of bytes written.
+     */
+    long transfer(ReadableByteChannel source) throws IOException
+    {
+        for (int i = 0; i < RING_SIZE; i++)
+        {
+            free.add(BUFFERS.acquire());
+        }
+
+        writerExecutor.execute(this::drain);
+
+        long received = 0;
+        ByteBuffer buffer = null;
+
+        try
+        {
+            boolean endOfStream = false;
+
+            while (!endOfStream && writeFailure == null)
+            {
+                buffer = free.take();
+
+                // Fill the whole buffer so the writer only sees large writes.
+                while (buffer.hasRemaining())
+                {
+                    if (source.read(buffer) < 0)
+                    {
+                        endOfStream = true;
+                        break;
+                    }
+                }
+
+                buffer.flip();
+                received += buffer.remaining();
+
+                filled.put(buffer);
+                buffer = null;
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while receiving.");
+        }
+        finally
+        {
+            if (buffer != null)
+            {
+                free.add(buffer);
+            }
+
+            finish();
+        }
+
+        if (writeFailure != null)
+        {
+            throw writeFailure;
+        }
+
+        return received;
+    }
+
+    private void finish()
+    {
+        boolean interrupted = false;
+
+        // The writer always drains, so these waits are bounded by the last write.
+        while (true)
+        {
+            try
+            {
+                filled.put(END);
+                writerDone.await();
+                break;
+            }
+            catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+
+        ByteBuffer buffer;
+        while ((buffer = free.poll()) != null)
+        {
+            BUFFERS.release(buffer);
+        }
+
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain()
+    {
+        long position = start;
+
+        try
+        {
+            while (true)
+            {
+                final ByteBuffer buffer = filled.take();
+                if (buffer == END)
+                {
+                    break;
+                }
+
+                // After a failure keep recycling buffers so the reader can finish.
+                if (writeFailure == null)
+                {
+                    try
+                    {
+                        while (buffer.hasRemaining())
+                        {
+                            position += target.write(buffer, position);
+                        }
+
+                        progress.accept(position);
+                    }
+                    catch (IOException e)
+                    {
+                        writeFailure = e;
+                    }
+                }
+
+                buffer.clear();
+                free.put(buffer);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            writeFailure = new InterruptedIOException("Interrupted while writing.");
+        }
+        finally
+        {
+            writerDone.countDown();
+        }
+    }
+
+    /**
+     * Positional write of received bytes, in the shape of {@link FileChannel#write(ByteBuffer, long)}.
+     */
+    interface Target
+    {
+        int write(ByteBuffer buffer, long position) throws IOException;
+    }
+}
@@ -0,0 +1,357 @@
+package com.haegroup.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+
+/**
+ * Streams a directory tree as a POSIX tar archive while walking it. Nothing is staged, memory use is one pooled
+ * buffer plus the walk's open directories, and file bodies go out by zero-copy when the destination is a plain
+ * socket. Names that do not fit the ustar header and sizes of 8 GB or more are carried in PAX extended headers.
+ * Symbolic links are skipped so an archive never reaches outside the tree.
+ */
+class FTPTarWriter
+{
+    private static final int BLOCK_SIZE = 512;
+
+    private static final int NAME_LENGTH = 100;
+    private static final int PREFIX_LENGTH = 155;
+    private static final long MAX_USTAR_SIZE = 077777777777L;
+
+    private static final byte TYPE_FILE = '0';
+    private static final byte TYPE_DIRECTORY = '5';
+    private static final byte TYPE_PAX = 'x';
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer header = ByteBuffer.allocate(BLOCK_SIZE);
+
+    private long files;
+    private long bytes;
+
+    FTPTarWriter(WritableByteChannel channel)
+    {
+        this.channel = channel;
+    }
+
+    /**
+     * Writes the directory and everything below it, named relative to the directory's parent.
+     */
+    void write(Path directory) throws IOException
+    {
+        final Path base = directory.toAbsolutePath().normalize().getParent();
+
+        Files.walkFileTree(directory.toAbsolutePath().normalize(), new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attributes) throws IOException
+            {
+                writeEntry(path, name(base, path) + "/", TYPE_DIRECTORY, FTPListing.readAttributes(path));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) throws IOException
+            {
+                if (attributes.isRegularFile())
+                {
+                    writeEntry(path, name(base, path), TYPE_FILE, FTPListing.readAttributes(path));
+                }
+
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path path, IOException e)
+            {
+                // Removed or unreadable while walking, leave it out.
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Writes the two zero blocks ending the archive.
+     */
+    void finish() throws IOException
+    {
+        header.clear();
+        while (header.hasRemaining())
+        {
+            header.put((byte) 0);
+        }
+
+        for (int i = 0; i < 2; i++)
+        {
+            header.flip();
+            writeFully(header);
+        }
+    }
+
+    long getFiles()
+    {
+        return files;
+    }
+
+    long getBytes()
+    {
+        return bytes;
+    }
+
+    private static String name(Path base, Path path)
+    {
+        return (base != null ? base.relativize(path) : path.getFileName()).toString().replace('\\', '/');
+    }
+
+    private void writeEntry(Path path, String name, byte type, BasicFileAttributes attributes) throws IOException
+    {
+        final long size = type == TYPE_FILE ? attributes.size() : 0;
+        final int mode = attributes instanceof PosixFileAttributes
+                ? FTPListing.mode(((PosixFileAttributes) attributes).permissions())
+                : type == TYPE_DIRECTORY ? 0755 : 0644;
+        final long modified = attributes.lastModifiedTime().toMillis() / 1000;
+
+        final byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        final int split = splitName(nameBytes);
+
+        // Anything ustar cannot hold goes in a PAX header first, the ustar fields then only need to be harmless.
+        if (split < 0 || size > MAX_USTAR_SIZE)
+        {
+            final StringBuilder records = new StringBuilder();
+            if (split < 0)
+            {
+                appendPaxRecord(records, "path", name);
+            }
+            if (size > MAX_USTAR_SIZE)
+            {
+                appendPaxRecord(records, "size", Long.toString(size));
+            }
+
+            final byte[] pax = records.toString().getBytes(StandardCharsets.UTF_8);
+
+            writeHeader(truncatedName(nameBytes), 0, TYPE_PAX, 0644, pax.length, modified);
+            writeFully(ByteBuffer.wrap(pax));
+            writePadding(pax.length);
+        }
+
+        writeHeader(split >= 0 ? nameBytes : truncatedName(nameBytes), Math.max(split, 0),
+                type, mode, Math.min(size, MAX_USTAR_SIZE), modified);
+
+        if (type == TYPE_FILE)
+        {
+            writeBody(path, size);
+            writePadding(size);
+
+            files++;
+        }
+    }
+
+    /**
+     * Returns where to split a name between the prefix and name fields, 0 if it fits the name field alone, or -1 if
+     * it does not fit at all.
+     */
+    private static int splitName(byte[] name)
+    {
+        if (name.length <= NAME_LENGTH)
+        {
+            return 0;
+        }
+
+        // The prefix ends at a slash, which the split drops. A directory's trailing slash is not one, the name field
+        // would be left empty.
+        for (int i = Math.min(name.length - 2, PREFIX_LENGTH); i > 0; i--)
+        {
+            if (name[i] == '/' && name.length - i - 1 <= NAME_LENGTH)
+            {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private static byte[] truncatedName(byte[] name)
+    {
+        final byte[] truncated = new byte[Math.min(name.length, NAME_LENGTH)];
+        System.arraycopy(name, name.length - truncated.length, truncated, 0, truncated.length);
+
+        return truncated;
+    }
+
+    private static void appendPaxRecord(StringBuilder records, String key, String value)
+    {
+        // The record length counts its own digits.
+        final int length = key.getBytes(StandardCharsets.UTF_8).length + value.getBytes(StandardCharsets.UTF_8).length + 3;
+
+        int total = length + Integer.toString(length).length();
+        if (Integer.toString(total).length() > Integer.toString(length).length())
+        {
+            total++;
+        }
+
+        records.append(total).append(' ').append(key).append('=').append(value).append('\n');
+    }
+
+    private void writeHeader(byte[] name, int split, byte type, int mode, long size, long modified) throws IOException
+    {
+        header.clear();
+        while (header.hasRemaining())
+        {
+            header.put((byte) 0);
+        }
+
+        if (split > 0)
+        {
+            header.position(345);
+            header.put(name, 0, split);
+            header.position(0);
+            header.put(name, split + 1, name.length - split - 1);
+        }
+        else
+        {
+            header.position(0);
+            header.put(name);
+        }
+
+        putOctal(100, 8, mode);
+        putOctal(108, 8, 0);
+        putOctal(116, 8, 0);
+        putOctal(124, 12, size);
+        putOctal(136, 12, modified);
+        header.put(156, type);
+
+        header.position(257);
+        header.put("ustar".getBytes(StandardCharsets.US_ASCII));
+        header.put((byte) 0);
+        header.put("00".getBytes(StandardCharsets.US_ASCII));
+
+        // The checksum is taken with its own field filled with spaces.
+        for (int i = 148; i < 156; i++)
+        {
+            header.put(i, (byte) ' ');
+        }
+
+        long checksum = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++)
+        {
+            checksum += header.get(i) & 0xFF;
+        }
+
+        putOctal(148, 7, checksum);
+
+        header.position(0);
+        header.limit(BLOCK_SIZE);
+        writeFully(header);
+    }
+
+    /**
+     * Writes a NUL terminated, zero padded octal field.
+     */
+    private void putOctal(int offset, int length, long value)
+    {
+        final String octal = Long.toOctalString(value);
+
+        for (int i = 0; i < length - 1; i++)
+        {
+            final int digit = i - (length - 1 - octal.length());
+            header.put(offset + i, digit < 0 ? (byte) '0' : (byte) octal.charAt(digit));
+        }
+
+        header.put(offset + length - 1, (byte) 0);
+    }
+
+    /**
+     * Copies exactly the size recorded in the header, zero filling if the file shrank since.
+     */
+    private void writeBody(Path path, long size) throws IOException
+    {
+        long position = 0;
+
+        try (FileChannel source = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            if (channel instanceof SocketChannel)
+            {
+                while (position < size)
+                {
+                    final long count = source.transferTo(position, size - position, channel);
+                    if (count <= 0)
+                    {
+                        break;
+                    }
+
+                    position += count;
+                }
+            }
+            else
+            {
+                final ByteBuffer buffer = FTPBufferPool.TRANSFER.acquire();
+
+                try
+                {
+                    while (position < size)
+                    {
+                        buffer.clear();
+                        buffer.limit((int) Math.min(buffer.capacity(), size - position));
+
+                        final int count = source.read(buffer, position);
+                        if (count <= 0)
+                        {
+                            break;
+                        }
+
+                        buffer.flip();
+                        writeFully(buffer);
+                        position += count;
+                    }
+                }
+                finally
+                {
+                    FTPBufferPool.TRANSFER.release(buffer);
+                }
+            }
+        }
+
+        bytes += position;
+
+        if (position < size)
+        {
+            writeZeros(size - position);
+        }
+    }
+
+    private void writePadding(long size) throws IOException
+    {
+        writeZeros((BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE);
+    }
+
+    private void writeZeros(long count) throws IOException
+    {
+        final ByteBuffer zeros = ByteBuffer.allocate(BLOCK_SIZE);
+
+        while (count > 0)
+        {
+            zeros.clear();
+            zeros.limit((int) Math.min(BLOCK_SIZE, count));
+            writeFully(zeros);
+
+            count -= zeros.limit();
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+    }
+}
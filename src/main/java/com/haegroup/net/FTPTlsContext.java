@@ -0,0 +1,181 @@
+package com.haegroup.net;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server side TLS state shared by every session. The key store is parsed once into an {@link SSLContext} whose
+ * session cache lets returning clients resume instead of running a full handshake. A key store file is checked for
+ * changes at most every few seconds and reloaded when it has been replaced.
+ */
+class FTPTlsContext
+{
+    private static final String DEFAULT_KEY_STORE = "/server.pfx";
+    private static final String DEFAULT_PASSWORD = "password";
+
+    private static final long RELOAD_CHECK_INTERVAL = 5000;
+
+    private static final int SESSION_CACHE_SIZE = 20000;
+    private static final int SESSION_TIMEOUT_SECONDS = 3600;
+
+    private final Path keyStorePath;
+    private final char[] password;
+
+    private volatile SSLContext sslContext;
+    private volatile long keyStoreModified;
+    private volatile long nextReloadCheck;
+
+    private final AtomicLong fullHandshakes = new AtomicLong();
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+
+    /**
+     * Creates a context from the bundled key store.
+     */
+    FTPTlsContext() throws IOException, GeneralSecurityException
+    {
+        this(null, DEFAULT_PASSWORD);
+    }
+
+    /**
+     * Creates a context from a PKCS12 key store file, or the bundled one if the path is null.
+     */
+    FTPTlsContext(Path keyStorePath, String password) throws IOException, GeneralSecurityException
+    {
+        this.keyStorePath = keyStorePath;
+        this.password = password.toCharArray();
+
+        load();
+    }
+
+    /**
+     * Returns the current context, reloading the key store first if its file changed.
+     */
+    SSLContext getSslContext()
+    {
+        if (keyStorePath != null && System.currentTimeMillis() >= nextReloadCheck)
+        {
+            synchronized (this)
+            {
+                if (System.currentTimeMillis() >= nextReloadCheck)
+                {
+                    nextReloadCheck = System.currentTimeMillis() + RELOAD_CHECK_INTERVAL;
+
+                    try
+                    {
+                        if (Files.getLastModifiedTime(keyStorePath).toMillis() != keyStoreModified)
+                        {
+                            load();
+                            System.out.println("Reloaded key store " + keyStorePath + ".");
+                        }
+                    }
+                    catch (IOException | GeneralSecurityException e)
+                    {
+                        // Keep serving with the previous key store.
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+
+        return sslContext;
+    }
+
+    /**
+     * Wraps an accepted socket in server mode and completes the handshake.
+     */
+    SSLSocket wrap(Socket socket) throws IOException
+    {
+        final SSLSocket sslSocket = (SSLSocket) getSslContext().getSocketFactory().createSocket(
+                socket,
+                null,
+                socket.getPort(),
+                false);
+        sslSocket.setUseClientMode(false);
+
+        final long started = System.currentTimeMillis();
+        sslSocket.startHandshake();
+
+        recordHandshake(sslSocket.getSession(), started);
+
+        return sslSocket;
+    }
+
+    /**
+     * Creates an engine in server mode for a protected data connection.
+     */
+    SSLEngine createEngine()
+    {
+        final SSLEngine engine = getSslContext().createSSLEngine();
+        engine.setUseClientMode(false);
+
+        return engine;
+    }
+
+    /**
+     * Counts a completed handshake, a session created before the handshake started was resumed.
+     */
+    void recordHandshake(SSLSession session, long started)
+    {
+        if (session.getCreationTime() < started)
+        {
+            resumedHandshakes.incrementAndGet();
+        }
+        else
+        {
+            fullHandshakes.incrementAndGet();
+        }
+    }
+
+    long getFullHandshakes()
+    {
+        return fullHandshakes.get();
+    }
+
+    long getResumedHandshakes()
+    {
+        return resumedHandshakes.get();
+    }
+
+    private synchronized void load() throws IOException, GeneralSecurityException
+    {
+        final long modified = keyStorePath != null ? Files.getLastModifiedTime(keyStorePath).toMillis() : 0;
+
+        final KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream stream = keyStorePath != null
+                ? Files.newInputStream(keyStorePath)
+                : FTPTlsContext.class.getResourceAsStream(DEFAULT_KEY_STORE))
+        {
+            if (stream == null)
+            {
+                throw new IOException("Key store " + DEFAULT_KEY_STORE + " not found.");
+            }
+
+            keyStore.load(stream, password);
+        }
+
+        final KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, password);
+
+        final SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagerFactory.getKeyManagers(), null, null);
+
+        final SSLSessionContext sessionContext = context.getServerSessionContext();
+        sessionContext.setSessionCacheSize(SESSION_CACHE_SIZE);
+        sessionContext.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+
+        sslContext = context;
+        keyStoreModified = modified;
+    }
+}
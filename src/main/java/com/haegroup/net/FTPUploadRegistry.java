@@ -0,0 +1,141 @@
+package com.haegroup.net;
+
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Uploads in flight, so a RETR of a file that is still being stored can follow it. Each upload publishes how far
+ * the file has been committed to disk, and followers wait on it until the upload finishes.
+ */
+class FTPUploadRegistry
+{
+    private final ConcurrentMap<Path, Upload> uploads = new ConcurrentHashMap<>();
+
+    /**
+     * Registers an upload that starts writing at the given position, replacing any earlier upload of the file.
+     */
+    Upload begin(Path path, long start)
+    {
+        return begin(path, path, start);
+    }
+
+    /**
+     * Registers an upload of the path that is received into another file until it completes.
+     */
+    Upload begin(Path path, Path file, long start)
+    {
+        final Upload upload = new Upload(path.toAbsolutePath().normalize(), file, start);
+
+        final Upload previous = uploads.put(upload.path, upload);
+        if (previous != null)
+        {
+            // Followers of the old upload would never see the rest of it.
+            previous.finish(false);
+        }
+
+        return upload;
+    }
+
+    /**
+     * Returns the upload in flight for the file, or null.
+     */
+    Upload get(Path path)
+    {
+        return uploads.get(path.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Ends an upload, waking everything following it.
+     */
+    void end(Upload upload, boolean success)
+    {
+        uploads.remove(upload.path, upload);
+        upload.finish(success);
+    }
+
+    static class Upload
+    {
+        private final Path path;
+        private final Path file;
+
+        private long committed;
+        private boolean finished;
+        private boolean successful;
+
+        private Upload(Path path, Path file, long start)
+        {
+            this.path = path;
+            this.file = file;
+            this.committed = start;
+        }
+
+        /**
+         * Returns the file the data is written to, which is the path itself unless the upload is deduplicated.
+         */
+        Path getFile()
+        {
+            return file;
+        }
+
+        /**
+         * Records that everything before the position is on disk.
+         */
+        synchronized void commit(long position)
+        {
+            if (position > committed)
+            {
+                committed = position;
+                notifyAll();
+            }
+        }
+
+        private synchronized void finish(boolean success)
+        {
+            if (!finished)
+            {
+                finished = true;
+                successful = success;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Waits until more than the position has been committed or the upload finishes, up to the timeout.
+         *
+         * @return The committed position.
+         */
+        synchronized long await(long position, long timeout) throws InterruptedIOException
+        {
+            final long deadline = System.currentTimeMillis() + timeout;
+
+            try
+            {
+                long remaining = timeout;
+                while (committed <= position && !finished && remaining > 0)
+                {
+                    wait(remaining);
+                    remaining = deadline - System.currentTimeMillis();
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while following an upload.");
+            }
+
+            return committed;
+        }
+
+        synchronized boolean isFinished()
+        {
+            return finished;
+        }
+
+        synchronized boolean isSuccessful()
+        {
+            return successful;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.haegroup.net;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class FTPDeltaPatcherTest
+{
+    private static final int BLOCK_SIZE = 2048;
+
+    /**
+     * Four whole blocks and a short one.
+     */
+    private final byte[] base = FTPSignaturesTest.random(4 * BLOCK_SIZE + 700, 5);
+
+    private Path basePath;
+    private Path targetPath;
+    private FileChannel baseChannel;
+    private FileChannel targetChannel;
+    private FTPSignatures baseSignatures;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        basePath = Files.createTempFile("base", null);
+        targetPath = Files.createTempFile("target", null);
+        Files.write(basePath, base);
+
+        baseChannel = FileChannel.open(basePath, StandardOpenOption.READ);
+        targetChannel = FileChannel.open(targetPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        baseSignatures = FTPSignatures.compute(baseChannel, base.length);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        baseChannel.close();
+        targetChannel.close();
+        Files.delete(basePath);
+        Files.delete(targetPath);
+    }
+
+    @Test
+    public void rebuildsFromCopiesAndLiterals() throws IOException
+    {
+        final byte[] literal = FTPSignaturesTest.random(3000, 6);
+
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(base, 0, BLOCK_SIZE);
+        expected.write(literal, 0, literal.length);
+        // The last two blocks, the short one included.
+        expected.write(base, 3 * BLOCK_SIZE, BLOCK_SIZE + 700);
+        expected.write(base, BLOCK_SIZE, BLOCK_SIZE);
+
+        final Delta delta = new Delta();
+        delta.copy(0, 1);
+        delta.literal(literal);
+        delta.copy(3, 2);
+        delta.copy(1, 1);
+        delta.end(expected.toByteArray());
+
+        final FTPDeltaPatcher patcher = new FTPDeltaPatcher(baseChannel, baseSignatures, targetChannel);
+        final FTPSignatures signatures = patcher.apply(delta.input());
+
+        assertArrayEquals(expected.toByteArray(), Files.readAllBytes(targetPath));
+        assertEquals(expected.size(), patcher.getWritten());
+        assertEquals(expected.size() - literal.length, patcher.getCopied());
+
+        assertNotNull(signatures);
+        FTPSignaturesTest.assertSignaturesEqual(FTPSignaturesTest.compute(expected.toByteArray()), signatures);
+    }
+
+    @Test
+    public void copiesTheWholeBase() throws IOException
+    {
+        final Delta delta = new Delta();
+        delta.copy(0, baseSignatures.getBlockCount());
+        delta.end(base);
+
+        new FTPDeltaPatcher(baseChannel, baseSignatures, targetChannel).apply(delta.input());
+
+        assertArrayEquals(base, Files.readAllBytes(targetPath));
+    }
+
+    @Test
+    public void refusesCopiesPastTheLastBlock() throws IOException
+    {
+        final int count = baseSignatures.getBlockCount();
+
+        assertRefused(new Delta().copy(count, 1));
+        assertRefused(new Delta().copy(count - 1, 2));
+        assertRefused(new Delta().copy(0, count + 1));
+        assertRefused(new Delta().copy(1, Integer.MAX_VALUE));
+        assertRefused(new Delta().copy(Integer.MAX_VALUE, 1));
+        assertRefused(new Delta().copy(-1, 1));
+        assertRefused(new Delta().copy(0, 0));
+    }
+
+    @Test
+    public void refusesAMismatchedEnd() throws IOException
+    {
+        final byte[] changed = base.clone();
+        changed[0]++;
+
+        final Delta delta = new Delta();
+        delta.copy(0, baseSignatures.getBlockCount());
+        delta.end(changed);
+
+        assertRefused(delta);
+    }
+
+    @Test
+    public void leavesResigningToACallerWhenTheBlockSizeChanges() throws IOException
+    {
+        // Large enough to be signed at 4096 byte blocks rather than the base's.
+        final byte[] literal = FTPSignaturesTest.random(16 * 1024 * 1024, 7);
+
+        final Delta delta = new Delta();
+        delta.literal(literal);
+        delta.end(literal);
+
+        assertNull(new FTPDeltaPatcher(baseChannel, baseSignatures, targetChannel).apply(delta.input()));
+        assertArrayEquals(literal, Files.readAllBytes(targetPath));
+    }
+
+    /**
+     * Checks the delta is refused for what it says, rather than for ending without an end instruction.
+     */
+    private void assertRefused(Delta delta)
+    {
+        try
+        {
+            new FTPDeltaPatcher(baseChannel, baseSignatures, targetChannel).apply(delta.input());
+            fail();
+        }
+        catch (IOException e)
+        {
+            assertFalse(e.toString(), e instanceof EOFException);
+        }
+    }
+
+    /**
+     * Writes delta instructions the way a client does.
+     */
+    private static class Delta
+    {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream output = new DataOutputStream(bytes);
+
+        Delta copy(int block, int count) throws IOException
+        {
+            output.writeByte(FTPDeltaPatcher.COPY);
+            output.writeInt(block);
+            output.writeInt(count);
+
+            return this;
+        }
+
+        Delta literal(byte[] data) throws IOException
+        {
+            output.writeByte(FTPDeltaPatcher.LITERAL);
+            output.writeInt(data.length);
+            output.write(data);
+
+            return this;
+        }
+
+        Delta end(byte[] file) throws IOException
+        {
+            output.writeByte(FTPDeltaPatcher.END);
+            output.writeLong(file.length);
+            output.write(FTPSignatures.md5().digest(file));
+
+            return this;
+        }
+
+        DataInputStream input()
+        {
+            return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        }
+    }
+}
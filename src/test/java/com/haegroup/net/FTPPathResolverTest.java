@@ -0,0 +1,184 @@
+package com.haegroup.net;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FTPPathResolverTest
+{
+    private Path directory;
+    private Path root;
+    private Path outside;
+    private FTPPathResolver resolver;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        directory = Files.createTempDirectory("resolver").toRealPath();
+        root = Files.createDirectory(directory.resolve("root"));
+        outside = Files.createDirectory(directory.resolve("outside"));
+
+        Files.createDirectory(root.resolve("a"));
+        Files.createFile(outside.resolve("secret"));
+
+        resolver = new FTPPathResolver(root);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        try (Stream<Path> paths = Files.walk(directory))
+        {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void dotsStopAtTheRoot()
+    {
+        assertSame(resolver.getRoot(), resolver.resolve(resolver.getRoot(), "/../.."));
+        assertSame(resolver.getRoot(), resolver.resolve(resolver.getRoot(), ".."));
+        assertSame(resolver.getRoot(), resolver.resolve(resolve("/a"), "../../.."));
+    }
+
+    @Test
+    public void dotsInsideAPathStopAtTheRoot()
+    {
+        final FTPPathResolver.Node node = resolve("a/../../b");
+
+        assertEquals("/b", node.getVirtualPath());
+        assertEquals(root.resolve("b"), node.getPath());
+    }
+
+    @Test
+    public void backslashesSeparateNames()
+    {
+        final FTPPathResolver.Node node = resolve("..\\..\\etc");
+
+        assertEquals("/etc", node.getVirtualPath());
+        assertEquals(root.resolve("etc"), node.getPath());
+        assertSame(resolve("/a"), resolve("\\a\\"));
+    }
+
+    @Test
+    public void driveNamesStayUnderTheRoot()
+    {
+        for (String pathname : new String[]{"C:\\", "C:\\Windows", "/C:/Windows", "C:..\\..", "\\\\server\\share"})
+        {
+            final FTPPathResolver.Node node = resolver.resolve(resolve("/a"), pathname);
+
+            if (node != null)
+            {
+                assertInside(node);
+            }
+        }
+    }
+
+    @Test
+    public void resolvesToInternedNodes()
+    {
+        final FTPPathResolver.Node node = resolve("/a/b/c");
+
+        assertEquals("/a/b/c", node.getVirtualPath());
+        assertEquals(root.resolve("a").resolve("b").resolve("c"), node.getPath());
+        assertSame(node, resolve("a/./b//c/"));
+        assertSame(resolve("/a/b"), node.getParent());
+        assertSame(node, resolver.resolve(resolve("/a"), "b/c"));
+    }
+
+    @Test
+    public void refusesLinksOutOfTheRoot() throws IOException
+    {
+        Assume.assumeTrue(createLink(root.resolve("out"), outside));
+        createLink(root.resolve("secret"), outside.resolve("secret"));
+        createLink(root.resolve("relative"), Paths.get("..", "outside"));
+        createLink(root.resolve("dangling"), outside.resolve("missing"));
+
+        assertNull(resolver.resolve(resolver.getRoot(), "/out"));
+        assertNull(resolver.resolve(resolver.getRoot(), "/out/secret"));
+        assertNull(resolver.resolve(resolver.getRoot(), "/a/../out/../out/secret"));
+        assertNull(resolver.resolve(resolver.getRoot(), "/secret"));
+        assertNull(resolver.resolve(resolver.getRoot(), "/relative/secret"));
+        assertNull(resolver.resolve(resolver.getRoot(), "/dangling"));
+    }
+
+    @Test
+    public void followsLinksUnderTheRoot() throws IOException
+    {
+        Assume.assumeTrue(createLink(root.resolve("in"), root.resolve("a")));
+
+        final FTPPathResolver.Node node = resolve("/in/file");
+
+        assertEquals("/in/file", node.getVirtualPath());
+        assertInside(node);
+    }
+
+    @Test
+    public void staysConfinedAfterTheTreeIsDropped()
+    {
+        final FTPPathResolver.Node held = resolve("/a");
+
+        // More names than the tree keeps, so it is dropped along the way.
+        for (int i = 0; i <= 64 * 1024; i++)
+        {
+            resolve("/a/" + i);
+        }
+
+        final FTPPathResolver.Node node = resolve("/a");
+
+        assertNotSame(held, node);
+        assertEquals(held.getPath(), node.getPath());
+        assertSame(resolver.getRoot(), resolver.resolve(held, "../../.."));
+        assertSame(resolver.getRoot(), resolver.resolve(node, "../../.."));
+        assertEquals(root.resolve("b"), resolver.resolve(held, "../../b").getPath());
+        assertInside(resolver.resolve(held, "x/../../../y"));
+    }
+
+    private FTPPathResolver.Node resolve(String pathname)
+    {
+        final FTPPathResolver.Node node = resolver.resolve(resolver.getRoot(), pathname);
+
+        assertNotNull(pathname, node);
+        assertInside(node);
+
+        return node;
+    }
+
+    private void assertInside(FTPPathResolver.Node node)
+    {
+        assertTrue(node.getPath().toString(), node.getPath().normalize().startsWith(root));
+        assertTrue(node.getVirtualPath(), node.getVirtualPath().startsWith("/"));
+    }
+
+    /**
+     * Returns false where the file system or user cannot make links.
+     */
+    private static boolean createLink(Path link, Path target)
+    {
+        try
+        {
+            Files.createSymbolicLink(link, target);
+
+            return true;
+        }
+        catch (IOException | UnsupportedOperationException e)
+        {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.haegroup.net;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FTPSignaturesTest
+{
+    @Test
+    public void rollingMatchesRecomputing()
+    {
+        final byte[] data = random(10000, 1);
+
+        for (int length : new int[]{1, 7, 2048, 4096})
+        {
+            int checksum = FTPRollingChecksum.of(data, 0, length);
+
+            for (int offset = 1; offset + length <= data.length; offset++)
+            {
+                checksum = FTPRollingChecksum.roll(checksum, data[offset - 1], data[offset + length - 1], length);
+
+                assertEquals("offset " + offset + ", length " + length, FTPRollingChecksum.of(data, offset, length), checksum);
+            }
+        }
+    }
+
+    @Test
+    public void blockSizeIsBounded()
+    {
+        assertEquals(2048, FTPSignatures.blockSize(0));
+        assertEquals(2048, FTPSignatures.blockSize(1024 * 1024));
+        assertEquals(4096, FTPSignatures.blockSize(16 * 1024 * 1024));
+        assertEquals(128 * 1024, FTPSignatures.blockSize(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void computeMatchesTheBlocks() throws IOException
+    {
+        final byte[] data = random(4 * 2048 + 700, 2);
+        final FTPSignatures signatures = compute(data);
+
+        assertEquals(data.length, signatures.getLength());
+        assertEquals(2048, signatures.getBlockSize());
+        assertEquals(5, signatures.getBlockCount());
+        assertEquals(2048, signatures.getBlockLength(3));
+        assertEquals(700, signatures.getBlockLength(4));
+
+        for (int i = 0; i < signatures.getBlockCount(); i++)
+        {
+            final int offset = i * 2048;
+            final int length = signatures.getBlockLength(i);
+
+            assertEquals(FTPRollingChecksum.of(data, offset, length), signatures.getWeak(i));
+
+            final MessageDigest digest = FTPSignatures.md5();
+            digest.update(data, offset, length);
+            assertTrue(signatures.strongEquals(i, digest.digest()));
+        }
+    }
+
+    @Test
+    public void builderMatchesCompute() throws IOException
+    {
+        final byte[] data = random(3 * 2048 + 1, 3);
+        final FTPSignatures.Builder builder = new FTPSignatures.Builder(2048);
+
+        // Fed in pieces that do not line up with the blocks.
+        for (int offset = 0; offset < data.length; offset += 1000)
+        {
+            builder.update(data, offset, Math.min(1000, data.length - offset));
+        }
+
+        assertSignaturesEqual(compute(data), builder.build());
+    }
+
+    @Test
+    public void roundTrips() throws IOException
+    {
+        for (int length : new int[]{0, 1, 2048, 2049, 5000 * 2048 + 3})
+        {
+            final FTPSignatures signatures = compute(random(length, length));
+
+            assertSignaturesEqual(signatures, FTPSignatures.read(input(write(signatures))));
+        }
+    }
+
+    @Test
+    public void refusesMalformedHeaders() throws IOException
+    {
+        assertMalformed(Long.MAX_VALUE, 2048, 1);
+        assertMalformed(Long.MAX_VALUE, 128 * 1024, (int) ((Long.MAX_VALUE / (128 * 1024)) & Integer.MAX_VALUE));
+        assertMalformed(Long.MAX_VALUE - 100, Integer.MAX_VALUE, 1);
+        assertMalformed(-1, 2048, 0);
+        assertMalformed(4096, 0, 2);
+        assertMalformed(4096, -2048, 2);
+        assertMalformed(4096, 1, 4096);
+        assertMalformed(4096, 256 * 1024, 1);
+        assertMalformed(4096, 2048, 3);
+        assertMalformed(4096, 2048, -1);
+        assertMalformed((long) (Integer.MAX_VALUE / FTPSignatures.STRONG_LENGTH + 1) * 2048, 2048, Integer.MAX_VALUE / FTPSignatures.STRONG_LENGTH + 1);
+    }
+
+    @Test(expected = EOFException.class)
+    public void largeCountWithoutBlocksEndsTheStream() throws IOException
+    {
+        final long count = Integer.MAX_VALUE / FTPSignatures.STRONG_LENGTH;
+
+        // Claims over two gigabytes of signatures and sends none, which must not be allocated for.
+        FTPSignatures.read(input(header(count * 128 * 1024, 128 * 1024, (int) count)));
+    }
+
+    @Test
+    public void truncatedSignaturesFail() throws IOException
+    {
+        final byte[] bytes = write(compute(random(3 * 2048, 4)));
+
+        try
+        {
+            FTPSignatures.read(input(Arrays.copyOf(bytes, bytes.length - 1)));
+            fail();
+        }
+        catch (EOFException expected)
+        {
+            // The last digest is short.
+        }
+    }
+
+    static FTPSignatures compute(byte[] data) throws IOException
+    {
+        final Path path = Files.createTempFile("signatures", null);
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            channel.write(ByteBuffer.wrap(data));
+
+            return FTPSignatures.compute(channel, data.length);
+        }
+        finally
+        {
+            Files.delete(path);
+        }
+    }
+
+    static byte[] random(int length, long seed)
+    {
+        final byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+
+        return data;
+    }
+
+    static void assertSignaturesEqual(FTPSignatures expected, FTPSignatures actual) throws IOException
+    {
+        assertEquals(expected.getLength(), actual.getLength());
+        assertEquals(expected.getBlockSize(), actual.getBlockSize());
+        assertArrayEquals(write(expected), write(actual));
+    }
+
+    private static void assertMalformed(long length, int blockSize, int count)
+    {
+        try
+        {
+            FTPSignatures.read(input(header(length, blockSize, count)));
+            fail(length + ", " + blockSize + ", " + count);
+        }
+        catch (IOException e)
+        {
+            assertFalse(e instanceof EOFException);
+        }
+    }
+
+    private static byte[] header(long length, int blockSize, int count) throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream output = new DataOutputStream(bytes);
+
+        output.writeLong(length);
+        output.writeInt(blockSize);
+        output.writeInt(count);
+
+        return bytes.toByteArray();
+    }
+
+    private static byte[] write(FTPSignatures signatures) throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        signatures.write(new DataOutputStream(bytes));
+
+        return bytes.toByteArray();
+    }
+
+    private static DataInputStream input(byte[] bytes)
+    {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+}
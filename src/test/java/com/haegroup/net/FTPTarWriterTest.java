@@ -0,0 +1,460 @@
+package com.haegroup.net;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FTPTarWriterTest
+{
+    private static final int BLOCK_SIZE = 512;
+
+    private Path directory;
+    private Path tree;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        directory = Files.createTempDirectory("tar");
+        tree = Files.createDirectory(directory.resolve("tree"));
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        try (Stream<Path> paths = Files.walk(directory))
+        {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void namesThatFitUstar() throws IOException
+    {
+        createFile(tree.resolve("short.txt"), 5);
+        // "tree/" and 95 more, the longest name the name field holds.
+        createFile(tree.resolve(repeat("n", 95)), 600);
+        // Longer than the name field, split between it and the prefix.
+        createFile(Files.createDirectories(tree.resolve(repeat("d", 60)).resolve(repeat("e", 60))).resolve(repeat("f", 90)), 1024);
+
+        final Map<String, Entry> entries = parse(archive());
+
+        assertArchiveMatchesTree(entries);
+        for (Entry entry : entries.values())
+        {
+            assertEquals(entry.name, 0, entry.paxRecords.size());
+        }
+
+        final Entry split = entries.get("tree/" + repeat("d", 60) + "/" + repeat("e", 60) + "/" + repeat("f", 90));
+        assertEquals("tree/" + repeat("d", 60) + "/" + repeat("e", 60), new String(split.prefix, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void namesThatNeedPax() throws IOException
+    {
+        // One name longer than the name field, nowhere to split it.
+        createFile(tree.resolve(repeat("l", 120)), 100);
+        // A directory whose only split would be at its trailing slash, with a file in it.
+        createFile(Files.createDirectory(tree.resolve(repeat("s", 118))).resolve("inside"), 10);
+        // A path record of 1002 bytes, where counting the length's own digits adds a digit.
+        Path deep = tree;
+        for (int i = 0; i < 4; i++)
+        {
+            deep = Files.createDirectory(deep.resolve(repeat(Integer.toString(i), 240)));
+        }
+        createFile(deep.resolve(repeat("z", 22)), 3000);
+
+        final Map<String, Entry> entries = parse(archive());
+
+        assertArchiveMatchesTree(entries);
+
+        final Entry record = entries.get(directory.relativize(deep.resolve(repeat("z", 22))).toString());
+        assertTrue(record.paxRecords.containsKey("path"));
+        assertEquals(1002, record.paxLength);
+    }
+
+    @Test
+    public void readsBackWithATarReader() throws IOException
+    {
+        createFile(tree.resolve("short.txt"), 5);
+        createFile(Files.createDirectories(tree.resolve(repeat("d", 60)).resolve(repeat("e", 60))).resolve(repeat("f", 90)), 1024);
+        createFile(tree.resolve(repeat("l", 120)), 100);
+        createFile(Files.createDirectory(tree.resolve(repeat("s", 118))).resolve("inside"), 10);
+
+        assertTarReaderMatchesTree();
+    }
+
+    @Test
+    public void namesLongerInBytesThanCharacters() throws IOException
+    {
+        final Path path;
+        try
+        {
+            path = tree.resolve(repeat("\u00e9", 60));
+        }
+        catch (InvalidPathException e)
+        {
+            Assume.assumeNoException("File names are not UTF-8 here", e);
+            return;
+        }
+
+        // Under 100 characters but over 100 bytes, so the PAX record length is counted in bytes.
+        createFile(path, 513);
+
+        final Entry entry = parse(archive()).get("tree/" + repeat("\u00e9", 60));
+        assertEquals("tree/" + repeat("\u00e9", 60), entry.paxRecords.get("path"));
+        assertEquals(3 + 1 + 4 + 1 + 125 + 1, entry.paxLength);
+
+        assertTarReaderMatchesTree();
+    }
+
+    @Test
+    public void sizesOfEightGigabytesAndMore() throws IOException
+    {
+        final long size = 8L * 1024 * 1024 * 1024 + 1;
+
+        // Sparse, so it takes no disk and reads back as zeros.
+        try (RandomAccessFile file = new RandomAccessFile(tree.resolve("big").toFile(), "rw"))
+        {
+            file.setLength(size);
+        }
+
+        final HeadChannel channel = new HeadChannel(8 * BLOCK_SIZE);
+        final FTPTarWriter writer = new FTPTarWriter(channel);
+        writer.write(tree);
+        writer.finish();
+
+        // The directory, the PAX header and its records, the file header, the body and the end.
+        assertEquals(4 * BLOCK_SIZE + (size + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE + 2 * BLOCK_SIZE, channel.count);
+        assertEquals(size, writer.getBytes());
+
+        final Map<String, Entry> entries = parse(channel.head.toByteArray());
+        final Entry big = entries.get("tree/big");
+
+        assertEquals(Long.toString(size), big.paxRecords.get("size"));
+        assertEquals(077777777777L, big.ustarSize);
+
+        try (TarArchiveInputStream input = new TarArchiveInputStream(new ByteArrayInputStream(channel.head.toByteArray())))
+        {
+            assertEquals("tree/", input.getNextEntry().getName());
+
+            final TarArchiveEntry entry = input.getNextEntry();
+            assertEquals("tree/big", entry.getName());
+            assertEquals(size, entry.getSize());
+        }
+    }
+
+    private byte[] archive() throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final FTPTarWriter writer = new FTPTarWriter(Channels.newChannel(bytes));
+
+        writer.write(tree);
+        writer.finish();
+
+        final Map<String, byte[]> contents = treeContents();
+        assertEquals(contents.values().stream().filter(content -> content != null).count(), writer.getFiles());
+        assertEquals(contents.values().stream().filter(content -> content != null).mapToLong(content -> content.length).sum(), writer.getBytes());
+
+        return bytes.toByteArray();
+    }
+
+    private void assertTarReaderMatchesTree() throws IOException
+    {
+        final Map<String, byte[]> expected = treeContents();
+        final Map<String, byte[]> actual = new HashMap<>();
+
+        try (TarArchiveInputStream input = new TarArchiveInputStream(new ByteArrayInputStream(archive()), "UTF-8"))
+        {
+            TarArchiveEntry entry;
+            while ((entry = input.getNextEntry()) != null)
+            {
+                final ByteArrayOutputStream content = new ByteArrayOutputStream();
+                final byte[] buffer = new byte[4096];
+
+                int count;
+                while ((count = input.read(buffer)) >= 0)
+                {
+                    content.write(buffer, 0, count);
+                }
+
+                actual.put(entry.getName(), entry.isDirectory() ? null : content.toByteArray());
+            }
+        }
+
+        assertEquals(expected.keySet(), actual.keySet());
+        for (Map.Entry<String, byte[]> entry : expected.entrySet())
+        {
+            assertArrayEquals(entry.getKey(), entry.getValue(), actual.get(entry.getKey()));
+        }
+    }
+
+    /**
+     * Returns the contents of every file in the tree by archive name, null for directories.
+     */
+    private Map<String, byte[]> treeContents() throws IOException
+    {
+        final Map<String, byte[]> contents = new HashMap<>();
+
+        try (Stream<Path> paths = Files.walk(tree))
+        {
+            for (Path path : (Iterable<Path>) paths::iterator)
+            {
+                final String name = directory.relativize(path).toString();
+
+                if (Files.isDirectory(path))
+                {
+                    contents.put(name + "/", null);
+                }
+                else
+                {
+                    contents.put(name, Files.readAllBytes(path));
+                }
+            }
+        }
+
+        return contents;
+    }
+
+    private void assertArchiveMatchesTree(Map<String, Entry> entries) throws IOException
+    {
+        final Map<String, byte[]> expected = treeContents();
+
+        assertEquals(expected.keySet(), entries.keySet());
+        for (Entry entry : entries.values())
+        {
+            final byte[] content = expected.get(entry.name);
+
+            assertEquals(entry.name, content == null ? '5' : '0', entry.type);
+            if (content != null)
+            {
+                assertArrayEquals(entry.name, content, entry.content);
+            }
+        }
+    }
+
+    /**
+     * Reads an archive strictly: every header's checksum and magic, every PAX record's length, and the padding.
+     * Bodies are kept only as far as the archive goes, so the head of a large one can be read.
+     */
+    private static Map<String, Entry> parse(byte[] archive)
+    {
+        final Map<String, Entry> entries = new LinkedHashMap<>();
+        final ByteBuffer buffer = ByteBuffer.wrap(archive);
+
+        Map<String, String> paxRecords = new HashMap<>();
+        int paxLength = 0;
+
+        while (buffer.remaining() >= BLOCK_SIZE)
+        {
+            final byte[] header = new byte[BLOCK_SIZE];
+            buffer.get(header);
+
+            if (Arrays.equals(header, new byte[BLOCK_SIZE]))
+            {
+                // The first of the two end blocks.
+                break;
+            }
+
+            assertHeader(header);
+
+            final Entry entry = new Entry();
+            entry.type = (char) header[156];
+            entry.ustarSize = octal(header, 124, 12);
+            entry.prefix = field(header, 345, 155);
+
+            final byte[] name = field(header, 0, 100);
+            assertNotEquals("empty name field", 0, name.length);
+
+            final long size = paxRecords.containsKey("size") ? Long.parseLong(paxRecords.get("size")) : entry.ustarSize;
+            final byte[] content = new byte[(int) Math.min(size, buffer.remaining())];
+            buffer.get(content);
+            buffer.position((int) Math.min(buffer.limit(), buffer.position() + padding(content.length)));
+
+            if (entry.type == 'x')
+            {
+                paxRecords = parsePax(content);
+                paxLength = content.length;
+                continue;
+            }
+
+            entry.name = paxRecords.containsKey("path") ? paxRecords.get("path")
+                    : entry.prefix.length > 0 ? new String(entry.prefix, StandardCharsets.UTF_8) + "/" + new String(name, StandardCharsets.UTF_8)
+                    : new String(name, StandardCharsets.UTF_8);
+            entry.paxRecords = paxRecords;
+            entry.paxLength = paxLength;
+            entry.content = content;
+
+            entries.put(entry.name, entry);
+
+            paxRecords = new HashMap<>();
+            paxLength = 0;
+        }
+
+        return entries;
+    }
+
+    private static void assertHeader(byte[] header)
+    {
+        assertEquals("ustar\u000000", new String(header, 257, 8, StandardCharsets.US_ASCII));
+
+        long checksum = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++)
+        {
+            checksum += i >= 148 && i < 156 ? ' ' : header[i] & 0xFF;
+        }
+
+        assertEquals(checksum, octal(header, 148, 8));
+    }
+
+    /**
+     * Parses "length key=value\n" records, where the length counts the whole record, its own digits included.
+     */
+    private static Map<String, String> parsePax(byte[] content)
+    {
+        final Map<String, String> records = new HashMap<>();
+
+        int position = 0;
+        while (position < content.length)
+        {
+            int space = position;
+            while (content[space] != ' ')
+            {
+                space++;
+            }
+
+            final int length = Integer.parseInt(new String(content, position, space - position, StandardCharsets.US_ASCII));
+            assertEquals('\n', content[position + length - 1]);
+
+            final String record = new String(content, space + 1, position + length - space - 2, StandardCharsets.UTF_8);
+            final int equals = record.indexOf('=');
+            records.put(record.substring(0, equals), record.substring(equals + 1));
+
+            position += length;
+        }
+
+        assertEquals(content.length, position);
+
+        return records;
+    }
+
+    private static long octal(byte[] header, int offset, int length)
+    {
+        final String field = new String(field(header, offset, length), StandardCharsets.US_ASCII).trim();
+
+        return Long.parseLong(field, 8);
+    }
+
+    /**
+     * Returns a field up to its first NUL.
+     */
+    private static byte[] field(byte[] header, int offset, int length)
+    {
+        int end = offset;
+        while (end < offset + length && header[end] != 0)
+        {
+            end++;
+        }
+
+        return Arrays.copyOfRange(header, offset, end);
+    }
+
+    private static long padding(long size)
+    {
+        return (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE;
+    }
+
+    private static void createFile(Path path, int size) throws IOException
+    {
+        Files.write(path, FTPSignaturesTest.random(size, size));
+    }
+
+    private static String repeat(String s, int count)
+    {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++)
+        {
+            builder.append(s);
+        }
+
+        return builder.toString();
+    }
+
+    private static class Entry
+    {
+        private String name;
+        private char type;
+        private long ustarSize;
+        private byte[] prefix;
+        private byte[] content;
+        private Map<String, String> paxRecords;
+        private int paxLength;
+    }
+
+    /**
+     * Keeps the first bytes written and counts the rest.
+     */
+    private static class HeadChannel implements WritableByteChannel
+    {
+        private final int headSize;
+        private final ByteArrayOutputStream head = new ByteArrayOutputStream();
+        private long count;
+
+        private HeadChannel(int headSize)
+        {
+            this.headSize = headSize;
+        }
+
+        @Override
+        public int write(ByteBuffer source)
+        {
+            final int written = source.remaining();
+
+            while (source.hasRemaining() && head.size() < headSize)
+            {
+                head.write(source.get());
+            }
+
+            source.position(source.limit());
+            count += written;
+
+            return written;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+}